@@ -19,6 +19,8 @@
 //
 package br.com.bandtec.nxtcontrol;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Set;
 
 import android.bluetooth.BluetoothAdapter;
@@ -37,15 +39,39 @@ import br.com.bandtec.nxtcontrol.ui.BgButton;
 import br.com.bandtec.nxtcontrol.ui.BgListView;
 import br.com.bandtec.nxtcontrol.ui.BgTextView;
 import br.com.bandtec.nxtcontrol.ui.UI;
+import br.com.bandtec.nxtcontrol.util.Timer;
 
 public class ActivityDeviceList extends ClientActivity implements AdapterView.OnItemClickListener, View.OnClickListener {
 	public static final String PAIRING = "pairing";
 	public static final String DEVICE_NAME_AND_ADDRESS = "device_infos";
 	public static final String EXTRA_DEVICE_ADDRESS = "device_address";
+	//devices already in the list are repositioned at most once per
+	//REPOSITION_INTERVAL ms, and only if their signal changed by RSSI_HYSTERESIS dBm
+	private static final int REPOSITION_INTERVAL = 1000;
+	private static final int RSSI_HYSTERESIS = 4;
 	private BluetoothAdapter btAdapter;
 	private BgButton btnRefresh;
 	private BaseList<DeviceItem> deviceList;
 	private BroadcastReceiver receiver;
+	private HashMap<String, DeviceItem> pendingUpdates;
+	private Timer repositionTimer;
+	
+	private void applyPendingUpdates() {
+		if (deviceList == null || pendingUpdates == null)
+			return;
+		deviceList.beginBatch();
+		for (DeviceItem item : pendingUpdates.values()) {
+			final int position = deviceList.indexOfKey(item.address);
+			if (position >= 0)
+				deviceList.updateSorted(position, item, DeviceItem.SIGNAL_COMPARER);
+		}
+		deviceList.commitBatch();
+		pendingUpdates.clear();
+	}
+	
+	private String getDescription(String name, String address) {
+		return ((name == null || name.length() == 0) ? getText(R.string.null_device_name).toString() : name) + " - " + address;
+	}
 	
 	@Override
 	protected void onCreate() {
@@ -55,6 +81,15 @@ public class ActivityDeviceList extends ClientActivity implements AdapterView.On
 		
 		final BgListView list = (BgListView)findViewById(R.id.list);
 		deviceList = new BaseList<DeviceItem>(DeviceItem.class);
+		deviceList.setKeyIndexEnabled(true);
+		pendingUpdates = new HashMap<String, DeviceItem>();
+		repositionTimer = new Timer(new Runnable() {
+			@Override
+			public void run() {
+				applyPendingUpdates();
+			}
+		}, "Device List Reposition Timer");
+		repositionTimer.setHandledOnMain(true);
 		deviceList.setObserver(list);
 		list.setOnItemClickListener(this);
 		btnRefresh = (BgButton)findViewById(R.id.btnRefresh);
@@ -75,17 +110,22 @@ public class ActivityDeviceList extends ClientActivity implements AdapterView.On
 					final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 					final String address = device.getAddress();
 					if (address.startsWith(BTCommunicator.OUI_LEGO)) {
-						boolean paired = false;
-						for (int i = deviceList.getCount() - 1; i >= 0; i--) {
-							if (deviceList.getItemT(i).address.equals(address)) {
-								paired = deviceList.getItemT(i).paired;
-								deviceList.setSelection(i, false);
-								deviceList.removeSelection();
-								break;
-							}
-						}
+						//the list is kept sorted by signal strength, and devices already
+						//in the list (i.e. paired ones) are just updated
+						final int position = deviceList.indexOfKey(address);
 						final String name = device.getName();
-						deviceList.add(new DeviceItem(((name == null || name.length() == 0) ? getText(R.string.null_device_name).toString() : name) + " - " + address, address, paired), -1);
+						final int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short)DeviceItem.RSSI_UNKNOWN);
+						final DeviceItem old = ((position >= 0) ? deviceList.getItemT(position) : null);
+						final DeviceItem item = new DeviceItem(getDescription(name, address), address, (old != null) && old.paired, rssi);
+						DiscoveryCache.put(getApplication(), address, name, rssi);
+						if (old == null) {
+							deviceList.addSorted(item, DeviceItem.SIGNAL_COMPARER);
+						} else if (old.rssi == DeviceItem.RSSI_UNKNOWN || rssi == DeviceItem.RSSI_UNKNOWN ||
+							Math.abs(rssi - old.rssi) >= RSSI_HYSTERESIS || !old.description.equals(item.description)) {
+							pendingUpdates.put(address, item);
+							if (!repositionTimer.isAlive())
+								repositionTimer.start(REPOSITION_INTERVAL, true);
+						}
 					}
 				} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
 					if (btnRefresh != null)
@@ -104,24 +144,44 @@ public class ActivityDeviceList extends ClientActivity implements AdapterView.On
 		
 		btAdapter = BluetoothAdapter.getDefaultAdapter();
 		final Set<BluetoothDevice> pairedDevices = btAdapter.getBondedDevices();
-		if (pairedDevices.size() > 0) {
-			for (BluetoothDevice device : pairedDevices) {
-				if (device.getAddress().startsWith(BTCommunicator.OUI_LEGO))
-					deviceList.add(new DeviceItem(device.getName() + " - " + device.getAddress(), device.getAddress(), true), -1);
-			}
+		final ArrayList<DiscoveryCache> cachedDevices = DiscoveryCache.getUnexpired(getApplication());
+		deviceList.beginBatch(pairedDevices.size() + cachedDevices.size());
+		for (BluetoothDevice device : pairedDevices) {
+			if (device.getAddress().startsWith(BTCommunicator.OUI_LEGO))
+				deviceList.add(new DeviceItem(device.getName() + " - " + device.getAddress(), device.getAddress(), true), -1);
+		}
+		//devices found by previous discoveries are shown right away, and a new
+		//discovery (which takes several seconds and slows down any bluetooth
+		//connection while it runs) is only started if there are none
+		for (int i = cachedDevices.size() - 1; i >= 0; i--) {
+			final DiscoveryCache device = cachedDevices.get(i);
+			if (deviceList.indexOfKey(device.address) < 0)
+				deviceList.addSorted(new DeviceItem(getDescription(device.name, device.address), device.address, false, device.rssi), DeviceItem.SIGNAL_COMPARER);
+		}
+		deviceList.commitBatch();
+		if (cachedDevices.size() > 0) {
+			btnRefresh.setVisibility(View.VISIBLE);
+			findViewById(R.id.panelScanning).setVisibility(View.GONE);
+		} else {
+			if (btAdapter.isDiscovering())
+				btAdapter.cancelDiscovery();
+			btAdapter.startDiscovery();
 		}
-        if (btAdapter.isDiscovering())
-        	btAdapter.cancelDiscovery();
-        btAdapter.startDiscovery();
 	}
 	
 	@Override
 	protected void onDestroy() {
 		btnRefresh = null;
+		if (repositionTimer != null) {
+			repositionTimer.stop();
+			repositionTimer = null;
+		}
+		pendingUpdates = null;
 		if (btAdapter != null) {
 			btAdapter.cancelDiscovery();
 			btAdapter = null;
 		}
+		DiscoveryCache.save(getApplication());
 		if (receiver != null) {
 			getHostActivity().unregisterReceiver(receiver);
 			receiver = null;
@@ -27,9 +27,14 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
 import android.graphics.drawable.Drawable;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.TypedValue;
+import android.view.ContextMenu;
+import android.view.ContextMenu.ContextMenuInfo;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup.MarginLayoutParams;
 import android.view.WindowManager;
@@ -38,16 +43,23 @@ import br.com.bandtec.nxtcontrol.activity.MainHandler;
 import br.com.bandtec.nxtcontrol.ui.BgButton;
 import br.com.bandtec.nxtcontrol.ui.BgDirControl;
 import br.com.bandtec.nxtcontrol.ui.BgTextView;
+import br.com.bandtec.nxtcontrol.ui.CustomContextMenu;
 import br.com.bandtec.nxtcontrol.ui.UI;
 import br.com.bandtec.nxtcontrol.ui.drawable.ColorDrawable;
 import br.com.bandtec.nxtcontrol.util.SerializableMap;
+import br.com.bandtec.nxtcontrol.util.Timer;
 
 public final class ActivityMain extends ClientActivity implements View.OnClickListener, BgButton.OnPressingChangeListener, BgDirControl.OnBgDirControlChangeListener, BTConnectable, DialogInterface.OnClickListener {
 	private static final int OPT_FORCEDORIENTATION = 0x0001;
+	private static final int OPT_LASTDEVICE = 0x0002;
+	private static final int OPT_CONNECTTOLASTDEVICE = 0x0003;
+	private static final int PROBE_TIMEOUT = 3000;
 	private static final int REQUEST_CONNECT_DEVICE = 1000;
 	private static final int REQUEST_ENABLE_BT = 2000;
+	private static final int MNU_RECORDMACRO = 100, MNU_STOPRECORDING = 101, MNU_PLAYMACRO = 102, MNU_STOPMACRO = 103, MNU_CONNECTTOLASTDEVICE = 104, MNU_MEASUREDRAWING = 105;
+	private static final String MACRO_FILE = "_NXTMacro", TRAFFIC_FILE = "_NXTTraffic", TRAFFIC_DUMP_FILE = "_NXTTrafficDump";
 	private BTCommunicator btCommunicator;
-	private boolean btErrorPending, btOnByUs, btAlreadyShown, pairing;
+	private boolean btErrorPending, btOnByUs, btAlreadyShown, pairing, speculativeConnection, firstCommandPending;
 	private ProgressDialog connectingProgressDialog;
 	private CharSequence lastError;
 	private int forcedOrientation, lastDir;
@@ -55,6 +67,15 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 	private BgButton[] btns;
 	private BgDirControl dirControl;
 	private Drawable windowDrawable;
+	private MacroRecorder macroRecorder;
+	private MacroPlayer macroPlayer;
+	private FlightRecorder flightRecorder;
+	private SerializableMap opts;
+	private DeviceCapabilities capabilities;
+	private Timer probeTimer;
+	private RobotProfile profile;
+	private String connectingAddress;
+	private long launchTime;
 	
 	@Override
 	public boolean isPairing() {
@@ -62,10 +83,110 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 	}
 	
 	private void destroyBTCommunicator() {
+		stopMacro();
+		stopProbe();
 		BTCommunicator.destroyBTCommunicatorNow();
 		btCommunicator = null;
 	}
 	
+	private void sendCommand(int message, String value1) {
+		if (btCommunicator != null) {
+			btCommunicator.sendMessage(message, value1);
+			if (macroRecorder != null)
+				macroRecorder.record(message, value1);
+			if (firstCommandPending) {
+				firstCommandPending = false;
+				//the startup time is only shown in debug builds
+				if ((getApplication().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+					UI.toast(getApplication(), getText(R.string.first_command).toString() + " " + (SystemClock.elapsedRealtime() - launchTime) + " ms");
+			}
+		}
+	}
+	
+	private void connect(String address, boolean pairing) {
+		connectingAddress = address;
+		stopProbe();
+		this.pairing = pairing;
+		connectingProgressDialog = ProgressDialog.show(getHostActivity(), "", getResources().getString(R.string.connecting_please_wait), true);
+		destroyBTCommunicator();
+		btCommunicator = BTCommunicator.getBTCommunicator(this, MainHandler.handler, BluetoothAdapter.getDefaultAdapter(), getResources());
+		btCommunicator.setMACAddress(address);
+		btCommunicator.setFlightRecorder(flightRecorder);
+		//the profile must be in place before the connection is opened
+		profile = RobotProfile.get(getApplication(), address);
+		btCommunicator.setProfile(profile);
+		btCommunicator.start();
+	}
+	
+	private void connectOrSelectDevice() {
+		final String lastDevice = opts.getString(OPT_LASTDEVICE);
+		if (lastDevice != null && opts.getBoolean(OPT_CONNECTTOLASTDEVICE)) {
+			//try the last brick right away, without waiting for the device list
+			//(a discovery running in the background would only slow the connection down)
+			speculativeConnection = true;
+			BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
+			connect(lastDevice, false);
+		} else {
+			startActivity(new ActivityDeviceList(), REQUEST_CONNECT_DEVICE);
+		}
+	}
+	
+	private void stopRecording() {
+		if (macroRecorder != null) {
+			macroRecorder.stop();
+			macroRecorder = null;
+		}
+	}
+	
+	private void stopMacro() {
+		if (macroPlayer != null) {
+			macroPlayer.cancel();
+			macroPlayer = null;
+		}
+	}
+	
+	private void probeCapabilities() {
+		if (btCommunicator == null)
+			return;
+		capabilities = DeviceCapabilities.getCached(connectingAddress);
+		if (capabilities != null) {
+			applyCapabilities();
+			return;
+		}
+		//both requests are sent right away, without waiting for the first reply
+		capabilities = new DeviceCapabilities(connectingAddress);
+		btCommunicator.sendMessage(BTCommunicator.GET_FIRMWARE_VERSION, 0);
+		btCommunicator.sendMessage(BTCommunicator.GET_DEVICE_INFO, 0);
+		//a reply may never arrive, so the probe is finished with whatever
+		//has been learned after PROBE_TIMEOUT
+		if (probeTimer == null) {
+			probeTimer = new Timer(new Runnable() {
+				@Override
+				public void run() {
+					if (capabilities != null && !capabilities.isComplete())
+						capabilities.finishProbe();
+				}
+			}, "Capabilities Probe Timer");
+			probeTimer.setHandledOnMain(true);
+		}
+		probeTimer.start(PROBE_TIMEOUT, true);
+	}
+	
+	private void stopProbe() {
+		if (probeTimer != null)
+			probeTimer.stop();
+		capabilities = null;
+	}
+	
+	private void applyCapabilities() {
+		//the features only depend on the firmware version, so they are applied
+		//as soon as it arrives, without waiting for the rest of the probe
+		if (btCommunicator != null && capabilities != null && capabilities.hasFirmwareVersion())
+			btCommunicator.setFeatures(capabilities.getFeatures());
+		if (probeTimer != null && capabilities != null && capabilities.isComplete())
+			probeTimer.stop();
+	}
+	
 	private void showError(CharSequence error) {
 		lastError = error;
 		final BgTextView txtError = (BgTextView)findViewById(R.id.txtError);
@@ -86,13 +207,8 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 		switch (requestCode) {
 		case REQUEST_CONNECT_DEVICE:
 			if (resultCode > 0) {
-				final String address = data.getExtras().getString(ActivityDeviceList.EXTRA_DEVICE_ADDRESS);
-				pairing = data.getExtras().getBoolean(ActivityDeviceList.PAIRING);
-				connectingProgressDialog = ProgressDialog.show(getHostActivity(), "", getResources().getString(R.string.connecting_please_wait), true);
-				destroyBTCommunicator();
-				btCommunicator = BTCommunicator.getBTCommunicator(this, MainHandler.handler, BluetoothAdapter.getDefaultAdapter(), getResources());
-				btCommunicator.setMACAddress(address);
-				btCommunicator.start();
+				speculativeConnection = false;
+				connect(data.getExtras().getString(ActivityDeviceList.EXTRA_DEVICE_ADDRESS), data.getExtras().getBoolean(ActivityDeviceList.PAIRING));
 			} else {
 				showError(R.string.none_paired);
 			}
@@ -108,7 +224,7 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 				case Activity.RESULT_OK:
 					btOnByUs = true;
 					lastError = null;
-					startActivity(new ActivityDeviceList(), REQUEST_CONNECT_DEVICE);
+					connectOrSelectDevice();
 					break;
 				case Activity.RESULT_CANCELED:
 					showError(R.string.bt_needs_to_be_enabled);
@@ -127,9 +243,11 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 			finish();
 		} else if (view == btnPortrait) {
 			forcedOrientation = 1;
+			opts.put(OPT_FORCEDORIENTATION, forcedOrientation);
 			getHostActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
 		} else if (view == btnLandscape) {
 			forcedOrientation = -1;
+			opts.put(OPT_FORCEDORIENTATION, forcedOrientation);
 			getHostActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 		} else if (view == btnAbout) {
 			startActivity(new ActivityAbout());
@@ -140,8 +258,7 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 	public void onPressingChanged(BgButton button, boolean pressed) {
 		for (int i = 0; i < 8; i++) {
 			if (button == btns[i]) {
-				if (btCommunicator != null)
-					btCommunicator.sendMessage(BTCommunicator.WRITE_MAILBOX, Character.toString((char) ((pressed ? 'A' : 'a') + i)));
+				sendCommand(BTCommunicator.WRITE_MAILBOX, Character.toString((char) ((pressed ? 'A' : 'a') + i)));
 				return;
 			}
 		}
@@ -149,8 +266,67 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 	
 	@Override
 	public void onDirectionChanged(BgDirControl dirControl, String direction) {
-		if (btCommunicator != null)
-			btCommunicator.sendMessage(BTCommunicator.WRITE_MAILBOX, direction);
+		sendCommand(BTCommunicator.WRITE_MAILBOX, direction);
+	}
+	
+	@Override
+	public View getNullContextMenuView() {
+		return btnAbout;
+	}
+	
+	@Override
+	public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
+		UI.prepare(menu);
+		if (macroRecorder != null) {
+			menu.add(0, MNU_STOPRECORDING, 0, R.string.stop_recording).setOnMenuItemClickListener(this);
+		} else if (macroPlayer != null) {
+			menu.add(0, MNU_STOPMACRO, 0, R.string.stop_macro).setOnMenuItemClickListener(this);
+		} else {
+			menu.add(0, MNU_RECORDMACRO, 0, R.string.record_macro).setOnMenuItemClickListener(this).setEnabled(btCommunicator != null);
+			menu.add(0, MNU_PLAYMACRO, 1, R.string.play_macro).setOnMenuItemClickListener(this).setEnabled(btCommunicator != null);
+		}
+		menu.add(1, MNU_CONNECTTOLASTDEVICE, 2, R.string.connect_to_last_device).setOnMenuItemClickListener(this).setCheckable(true).setChecked(opts.getBoolean(OPT_CONNECTTOLASTDEVICE));
+		//the drawing benchmark is only offered in debug builds
+		if ((getApplication().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+			menu.add(1, MNU_MEASUREDRAWING, 3, R.string.measure_drawing).setOnMenuItemClickListener(this).setEnabled(dirControl != null && dirControl.getVisibility() == View.VISIBLE);
+	}
+	
+	@Override
+	public boolean onMenuItemClick(MenuItem item) {
+		switch (item.getItemId()) {
+		case MNU_RECORDMACRO:
+			if (btCommunicator != null && macroRecorder == null && macroPlayer == null) {
+				macroRecorder = new MacroRecorder(getApplication(), MACRO_FILE);
+				macroRecorder.start();
+			}
+			break;
+		case MNU_STOPRECORDING:
+			stopRecording();
+			break;
+		case MNU_PLAYMACRO:
+			if (btCommunicator != null && macroRecorder == null && macroPlayer == null) {
+				macroPlayer = MacroPlayer.load(getApplication(), MACRO_FILE, profile);
+				if (macroPlayer == null)
+					UI.toast(getApplication(), R.string.no_macro);
+				else
+					macroPlayer.play(btCommunicator, MainHandler.handler);
+			}
+			break;
+		case MNU_STOPMACRO:
+			stopMacro();
+			break;
+		case MNU_CONNECTTOLASTDEVICE:
+			opts.put(OPT_CONNECTTOLASTDEVICE, !opts.getBoolean(OPT_CONNECTTOLASTDEVICE));
+			break;
+		case MNU_MEASUREDRAWING:
+			if (dirControl != null) {
+				final String result = dirControl.measureDrawTime(500);
+				if (result != null)
+					UI.toast(getApplication(), getText(R.string.drawing_time).toString() + " " + result + "\n" + UI.getCacheStatistics());
+			}
+			break;
+		}
+		return true;
 	}
 	
 	@Override
@@ -173,15 +349,38 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 		case BTCommunicator.STATE_CONNECTED:
 			connectingProgressDialog.dismiss();
 			UI.toast(getApplication(), R.string.connected);
-			//btCommunicator.sendMessage(BTCommunicator.GET_FIRMWARE_VERSION, 0);
+			speculativeConnection = false;
+			if (connectingAddress != null && !connectingAddress.equals(opts.getString(OPT_LASTDEVICE)))
+				opts.put(OPT_LASTDEVICE, connectingAddress);
+			if (btCommunicator != null && profile != null && profile.getConnectStrategy() == RobotProfile.CONNECT_AUTO && btCommunicator.isConnectedThroughChannel1()) {
+				//remember it, so the next connection goes straight to channel 1
+				profile.setConnectStrategy(RobotProfile.CONNECT_CHANNEL_1);
+				RobotProfile.save(getApplication(), profile);
+			}
+			probeCapabilities();
+			break;
+		case MacroPlayer.MACRO_FINISHED:
+			if (macroPlayer != null && macroPlayer.isFinished()) {
+				UI.toast(getApplication(), getText(R.string.macro_finished).toString() + " " + macroPlayer.getSentFrameCount() + "/" + macroPlayer.getFrameCount() +
+						" (" + macroPlayer.getMeanErrorMicros() + " / " + macroPlayer.getMaxErrorMicros() + " \u00b5s)");
+				macroPlayer = null;
+			}
 			break;
 		case BTCommunicator.STATE_CONNECTERROR_PAIRING:
 			connectingProgressDialog.dismiss();
+			speculativeConnection = false;
 			destroyBTCommunicator();
 			startActivity(new ActivityDeviceList(), REQUEST_CONNECT_DEVICE);
 			break;
 		case BTCommunicator.STATE_CONNECTERROR:
 			connectingProgressDialog.dismiss();
+			if (speculativeConnection) {
+				//the last brick is not around, so just let the user pick another one
+				speculativeConnection = false;
+				destroyBTCommunicator();
+				startActivity(new ActivityDeviceList(), REQUEST_CONNECT_DEVICE);
+				break;
+			}
 		case BTCommunicator.STATE_RECEIVEERROR:
 		case BTCommunicator.STATE_SENDERROR:
 			destroyBTCommunicator();
@@ -195,26 +394,19 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 				builder.create().show();
 			}
 			break;
-		/*case BTCommunicator.FIRMWARE_VERSION:
-			if (btCommunicator != null) {
-				final byte[] firmwareMessage = btCommunicator.getReturnMessage();
-				// check if we know the firmware
-				boolean isLejosMindDroid = true;
-				for (int pos = 0; pos < 4; pos++) {
-					if (firmwareMessage[pos + 3] != LCPMessage.FIRMWARE_VERSION_LEJOSMINDDROID[pos]) {
-						isLejosMindDroid = false;
-						break;
-					}
-				}
-				//UI.toast(getApplication(), isLejosMindDroid ? "TRUE" : "FALSE");
-				//if (isLejosMindDroid) {
-				//	mRobotType = R.id.robot_type_lejos;
-				//}
-				// afterwards we search for all files on the robot
-				btCommunicator.sendMessage(BTCommunicator.FIND_FILES, 0);
+		case BTCommunicator.FIRMWARE_VERSION:
+			if (capabilities != null && !capabilities.isComplete()) {
+				capabilities.setFirmwareVersion(message.getData().getByteArray("reply"));
+				applyCapabilities();
+			}
+			break;
+		case BTCommunicator.DEVICE_INFO:
+			if (capabilities != null && !capabilities.isComplete()) {
+				capabilities.setDeviceInfo(message.getData().getByteArray("reply"));
+				applyCapabilities();
 			}
 			break;
-		case BTCommunicator.FIND_FILES:
+		/*case BTCommunicator.FIND_FILES:
 			if (btCommunicator != null) {
 				byte[] fileMessage = btCommunicator.getReturnMessage();
 				String fileName = new String(fileMessage, 4, 20);
@@ -247,10 +439,10 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 	protected void onCreate() {
 		MainHandler.activity = this;
 		final Context context = getApplication();
-		SerializableMap opts = SerializableMap.deserialize(context, "_NXTControl");
-		if (opts == null)
-			opts = new SerializableMap();
+		opts = SerializableMap.openJournaled(context, "_NXTControl");
 		forcedOrientation = opts.getInt(OPT_FORCEDORIENTATION, 1);
+		launchTime = SystemClock.elapsedRealtime();
+		firstCommandPending = true;
 		addWindowFlags(WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED | WindowManager.LayoutParams.FLAG_DISMISS_KEYGUARD | WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 		if (forcedOrientation < 0)
 			getHostActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
@@ -260,6 +452,11 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 		lastError = null;
 		lastDir = BgDirControl.CENTER_DIRECTION;
 		btAlreadyShown = false;
+		//the traffic is only recorded in debug builds
+		if ((getApplication().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+			flightRecorder = new FlightRecorder(context.getFileStreamPath(TRAFFIC_FILE), context.getFileStreamPath(TRAFFIC_DUMP_FILE));
+			flightRecorder.start();
+		}
 	}
 	
 	@Override
@@ -273,10 +470,18 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 			if (!BluetoothAdapter.getDefaultAdapter().isEnabled())
 				getHostActivity().startActivityForResult(new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE), REQUEST_ENABLE_BT);
 			else
-				startActivity(new ActivityDeviceList(), REQUEST_CONNECT_DEVICE);
+				connectOrSelectDevice();
 		}
 	}
 	
+	@Override
+	protected void onPause() {
+		//write the settings now, in the background, since the process might be
+		//killed at any moment from now on
+		if (opts != null)
+			opts.requestFlush();
+	}
+	
 	@Override
 	protected void onCreateLayout(boolean firstCreation) {
 		if (windowDrawable == null) {
@@ -292,6 +497,7 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 		btnLandscape.setOnClickListener(this);
 		btnAbout = (BgButton)findViewById(R.id.btnAbout);
 		btnAbout.setOnClickListener(this);
+		CustomContextMenu.registerForContextMenu(btnAbout, this);
 		btnExit.setIcon(UI.ICON_EXIT);
 		btnPortrait.setIcon(UI.ICON_PORTRAIT);
 		btnLandscape.setIcon(UI.ICON_LANDSCAPE);
@@ -358,10 +564,16 @@ public final class ActivityMain extends ClientActivity implements View.OnClickLi
 		windowDrawable = null;
 		lastError = null;
 		btns = null;
-		SerializableMap opts = new SerializableMap(32);
-		opts.put(OPT_FORCEDORIENTATION, forcedOrientation);
-		opts.serialize(getApplication(), "_NXTControl");
+		stopRecording();
+		if (opts != null) {
+			opts.close();
+			opts = null;
+		}
 		destroyBTCommunicator();
+		if (flightRecorder != null) {
+			flightRecorder.stop();
+			flightRecorder = null;
+		}
 		if (btOnByUs) {
 			BluetoothAdapter.getDefaultAdapter().disable();
 			btOnByUs = false;
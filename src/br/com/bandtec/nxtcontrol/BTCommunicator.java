@@ -49,6 +49,7 @@ public class BTCommunicator extends Thread {
 	public static final int DO_ACTION = 52;	
 	public static final int READ_MOTOR_STATE = 60;
 	public static final int GET_FIRMWARE_VERSION = 70;
+	public static final int GET_DEVICE_INFO = 71;
 	public static final int WRITE_MAILBOX = 72;
 	public static final int DISCONNECT = 99;
 	
@@ -65,6 +66,7 @@ public class BTCommunicator extends Thread {
 	public static final int STOP_PROGRAM = 1009;
 	public static final int GET_PROGRAM_NAME = 1010;
 	public static final int PROGRAM_NAME = 1011;
+	public static final int DEVICE_INFO = 1012;
 	public static final int SAY_TEXT = 1030;
 	public static final int VIBRATE_PHONE = 1031;
 	
@@ -81,11 +83,17 @@ public class BTCommunicator extends Thread {
 	private InputStream nxtInputStream;
 	private boolean connected;
 	
-	private Handler uiHandler;
+	//cleared by destroyBTCommunicatorNow() on the main thread, while other threads may still use it
+	private volatile Handler uiHandler;
 	private String mMACaddress;
 	private BTConnectable myOwner;
+	private FlightRecorder flightRecorder;
+	private volatile int features;
+	private volatile RobotProfile profile;
+	private boolean connectedThroughChannel1;
 	
 	private byte[] returnMessage;
+	private final Object sendSync = new Object();
 	
 	private static BTCommunicator btCommunicator;
 	
@@ -106,6 +114,8 @@ public class BTCommunicator extends Thread {
 			} catch (IOException e) {
 			}
 			btCommunicator.myOwner = null;
+			btCommunicator.flightRecorder = null;
+			btCommunicator.profile = null;
 			btCommunicator.uiHandler = null;
 			btCommunicator.btAdapter = null;
 			btCommunicator.mResources = null;
@@ -131,6 +141,49 @@ public class BTCommunicator extends Thread {
 		this.mMACaddress = mMACaddress;
 	}
 	
+	/**
+	 * Sets the recorder that will capture every frame sent and received
+	 * @param flightRecorder, the recorder or null
+	 */
+	public void setFlightRecorder(FlightRecorder flightRecorder) {
+		this.flightRecorder = flightRecorder;
+	}
+	
+	/**
+	 * Enables the protocol features supported by the brick. Must be called on
+	 * the main thread, as it may send a command to the brick.
+	 * @param features, a combination of DeviceCapabilities.FEATURE_* flags
+	 */
+	public void setFeatures(int features) {
+		final boolean hadPacketMode = hasFeature(DeviceCapabilities.FEATURE_NXJ_PACKET_MODE);
+		this.features = features;
+		//ask leJOS to use packet mode on this connection, which is the framing
+		//used by this class (a 2-byte length header before every message)
+		if (!hadPacketMode && hasFeature(DeviceCapabilities.FEATURE_NXJ_PACKET_MODE))
+			sendMessageAndState(LCPMessage.getPacketModeMessage());
+	}
+	
+	public boolean hasFeature(int feature) {
+		return ((features & feature) == feature);
+	}
+	
+	/**
+	 * Sets the profile used to map the motor commands and to open the connection,
+	 * which must be done before calling start()
+	 * @param profile, the profile of the brick or null
+	 */
+	public void setProfile(RobotProfile profile) {
+		this.profile = profile;
+	}
+	
+	/**
+	 * @return true if the service record lookup failed and the connection was
+	 * opened directly on RFCOMM channel 1
+	 */
+	public boolean isConnectedThroughChannel1() {
+		return connectedThroughChannel1;
+	}
+	
 	/**
 	 * @return The current status of the connection
 	 */			
@@ -172,8 +225,11 @@ public class BTCommunicator extends Thread {
 	 * case of no message handler.
 	 */
 	private void createNXTconnection() throws IOException {
+		final RobotProfile profile = this.profile;
+		final int strategy = ((profile == null) ? RobotProfile.CONNECT_AUTO : profile.getConnectStrategy());
+		connectedThroughChannel1 = false;
 		try {
-			BluetoothSocket nxtBTSocketTemporary;
+			BluetoothSocket nxtBTSocketTemporary = null;
 			BluetoothDevice nxtDevice = null;
 			nxtDevice = btAdapter.getRemoteDevice(mMACaddress);
 			if (nxtDevice == null) {
@@ -185,30 +241,42 @@ public class BTCommunicator extends Thread {
 					return;
 				}
 			}
-			nxtBTSocketTemporary = nxtDevice.createRfcommSocketToServiceRecord(SERIAL_PORT_SERVICE_CLASS_UUID);
-			try {
-				nxtBTSocketTemporary.connect();
-			} catch (IOException e) {  
-				if (myOwner.isPairing()) {
-					if (uiHandler != null) {
-						sendToast(mResources.getString(R.string.pairing_message));
-						sendState(STATE_CONNECTERROR_PAIRING);
-					}
-					else
-						throw e;
-					return;
+			if (strategy == RobotProfile.CONNECT_CHANNEL_1 && !myOwner.isPairing()) {
+				//the service record lookup is known to fail with this brick, so skip it
+				try {
+					nxtBTSocketTemporary = createChannel1Socket(nxtDevice);
+					connectedThroughChannel1 = true;
+				} catch (Exception e) {
+					nxtBTSocketTemporary = null;
 				}
-				// try another method for connection, this should work on the HTC desire, credits to Michael Biermann
+			}
+			if (nxtBTSocketTemporary == null) {
 				try {
-					Method mMethod = nxtDevice.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
-					nxtBTSocketTemporary = (BluetoothSocket) mMethod.invoke(nxtDevice, Integer.valueOf(1));			
+					nxtBTSocketTemporary = nxtDevice.createRfcommSocketToServiceRecord(SERIAL_PORT_SERVICE_CLASS_UUID);
 					nxtBTSocketTemporary.connect();
-				} catch (Exception e1){
-					if (uiHandler == null)
-						throw new IOException();
-					else
-						sendState(STATE_CONNECTERROR);
-					return;
+				} catch (IOException e) {  
+					if (myOwner.isPairing()) {
+						if (uiHandler != null) {
+							sendToast(mResources.getString(R.string.pairing_message));
+							sendState(STATE_CONNECTERROR_PAIRING);
+						}
+						else
+							throw e;
+						return;
+					}
+					// try another method for connection, this should work on the HTC desire, credits to Michael Biermann
+					try {
+						if (strategy != RobotProfile.CONNECT_AUTO)
+							throw e;
+						nxtBTSocketTemporary = createChannel1Socket(nxtDevice);
+						connectedThroughChannel1 = true;
+					} catch (Exception e1){
+						if (uiHandler == null)
+							throw new IOException();
+						else
+							sendState(STATE_CONNECTERROR);
+						return;
+					}
 				}
 			}
 			nxtBTsocket = nxtBTSocketTemporary;
@@ -230,6 +298,13 @@ public class BTCommunicator extends Thread {
 			sendState(STATE_CONNECTED);
 	}
 	
+	private static BluetoothSocket createChannel1Socket(BluetoothDevice nxtDevice) throws Exception {
+		Method mMethod = nxtDevice.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
+		BluetoothSocket socket = (BluetoothSocket) mMethod.invoke(nxtDevice, Integer.valueOf(1));
+		socket.connect();
+		return socket;
+	}
+	
 	/**
 	 * Closes the bluetooth connection. On error the method either sends a message
 	 * to it's owner or creates an exception in the case of no message handler.
@@ -260,11 +335,43 @@ public class BTCommunicator extends Thread {
 			throw new IOException();
 		// send message length
 		int messageLength = message.length;
-		nxtOutputStream.write(messageLength);
-		nxtOutputStream.write(messageLength >> 8);
-		nxtOutputStream.write(message, 0, message.length);
+		synchronized (sendSync) {
+			nxtOutputStream.write(messageLength);
+			nxtOutputStream.write(messageLength >> 8);
+			nxtOutputStream.write(message, 0, message.length);
+		}
+		final FlightRecorder recorder = flightRecorder;
+		if (recorder != null)
+			recorder.record(FlightRecorder.OUTBOUND, message, 0, message.length);
 	}  
 	
+	/**
+	 * Sends an already framed message (length prefix included) on the opened
+	 * OutputStream. Unlike the other send methods, this one may be called from
+	 * any thread. In case of an error the state is sent to the handler.
+	 * @param frame, the framed message as a byte array
+	 * @return true if the frame was sent
+	 */
+	public boolean sendFrame(byte[] frame) {
+		final OutputStream outputStream = nxtOutputStream;
+		if (outputStream == null)
+			return false;
+		try {
+			synchronized (sendSync) {
+				outputStream.write(frame, 0, frame.length);
+			}
+			final FlightRecorder recorder = flightRecorder;
+			if (recorder != null)
+				recorder.record(FlightRecorder.OUTBOUND, frame, 2, frame.length - 2);
+			return true;
+		} catch (IOException e) {
+			//sendBundle() ignores the error if the communicator is being destroyed
+			if (connected)
+				sendState(STATE_SENDERROR);
+		}
+		return false;
+	}
+	
 	/**
 	 * Receives a message on the opened InputStream
 	 * @return the message
@@ -276,6 +383,9 @@ public class BTCommunicator extends Thread {
 		length = (nxtInputStream.read() << 8) | length;
 		final byte[] returnMessage = new byte[length];
 		nxtInputStream.read(returnMessage);
+		final FlightRecorder recorder = flightRecorder;
+		if (recorder != null)
+			recorder.record(FlightRecorder.INBOUND, returnMessage, 0, length);
 		return returnMessage;
 	}	
 	
@@ -300,9 +410,15 @@ public class BTCommunicator extends Thread {
 			if (message.length >= 25)
 				sendState(MOTOR_STATE);
 			break;
+		//replies with an error status are shorter, but they are also forwarded,
+		//so the probe does not have to wait for a reply that will never come
 		case LCPMessage.GET_FIRMWARE_VERSION:
-			if (message.length >= 7)
-				sendState(FIRMWARE_VERSION);
+			if (message.length >= 3)
+				sendReply(FIRMWARE_VERSION, message);
+			break;
+		case LCPMessage.GET_DEVICE_INFO:
+			if (message.length >= 3)
+				sendReply(DEVICE_INFO, message);
 			break;
 		case LCPMessage.FIND_FIRST:
 		case LCPMessage.FIND_NEXT:
@@ -330,12 +446,12 @@ public class BTCommunicator extends Thread {
 	}
 	
 	private void doBeep(int frequency, int duration) {
-		sendMessageAndState(LCPMessage.getBeepMessage(frequency, duration));
+		sendFrame(LCPMessage.getBeepFrame(frequency, duration));
 		waitSomeTime(20);
 	}
 	
 	private void doAction(int actionNr) {
-		sendMessageAndState(LCPMessage.getActionMessage(actionNr));
+		sendFrame(LCPMessage.getActionFrame(actionNr));
 	}
 	
 	private void writeMailbox(String textMessage) {
@@ -347,7 +463,7 @@ public class BTCommunicator extends Thread {
 	}
 	
 	private void stopProgram() {
-		sendMessageAndState(LCPMessage.getStopProgramMessage());
+		sendFrame(LCPMessage.getStopProgramFrame());
 	}
 	
 	private void getProgramName() {
@@ -355,25 +471,44 @@ public class BTCommunicator extends Thread {
 	}
 	
 	private void changeMotorSpeed(int motor, int speed) {
-		sendMessageAndState(LCPMessage.getMotorMessage(motor, (speed < -100) ? -100 : ((speed > 100) ? 100 : speed)));
+		sendFrame(getMotorFrame(motor, speed, profile));
 	}
 	
 	private void rotateTo(int motor, int end) {
-		sendMessageAndState(LCPMessage.getMotorMessage(motor, -80, end));
+		sendMessageAndState(getRotateMessage(motor, end, profile));
 	}
 	
 	private void reset(int motor) {
-		sendMessageAndState(LCPMessage.getResetMessage(motor));
+		final RobotProfile profile = this.profile;
+		sendMessageAndState(LCPMessage.getResetMessage((profile == null) ? motor : profile.getPort(motor)));
 	}
 	
 	private void readMotorState(int motor) {
-		sendMessageAndState(LCPMessage.getOutputStateMessage(motor));
+		final RobotProfile profile = this.profile;
+		sendMessageAndState(LCPMessage.getOutputStateMessage((profile == null) ? motor : profile.getPort(motor)));
+	}
+	
+	private static byte[] getMotorFrame(int motor, int speed, RobotProfile profile) {
+		speed = ((speed < -100) ? -100 : ((speed > 100) ? 100 : speed));
+		if (profile == null)
+			return LCPMessage.getMotorFrame(motor, speed);
+		return LCPMessage.getMotorFrame(profile.getPort(motor), profile.getSpeed(motor, speed));
+	}
+	
+	private static byte[] getRotateMessage(int motor, int end, RobotProfile profile) {
+		if (profile == null)
+			return LCPMessage.getMotorMessage(motor, -80, end);
+		return LCPMessage.getMotorMessage(profile.getPort(motor), profile.getSpeed(motor, -80), end);
 	}
 	
 	private void getFirmwareVersion() {
 		sendMessageAndState(LCPMessage.getFirmwareVersionMessage());
 	}
 	
+	private void getDeviceInfo() {
+		sendMessageAndState(LCPMessage.getDeviceInfoMessage());
+	}
+	
 	private void findFiles(boolean findFirst, int handle) {
 		sendMessageAndState(LCPMessage.getFindFilesMessage(findFirst, handle, "*.*"));
 	}
@@ -393,12 +528,28 @@ public class BTCommunicator extends Thread {
 	}
 	
 	private void sendState(int message) {
+		if (message == STATE_RECEIVEERROR || message == STATE_SENDERROR) {
+			// keep the last frames for later analysis
+			final FlightRecorder recorder = flightRecorder;
+			if (recorder != null)
+				recorder.dump();
+		}
+		final Bundle myBundle = new Bundle();
+		myBundle.putInt("message", message);
+		sendBundle(myBundle);
+	}
+	
+	private void sendReply(int message, byte[] reply) {
 		final Bundle myBundle = new Bundle();
 		myBundle.putInt("message", message);
+		myBundle.putByteArray("reply", reply);
 		sendBundle(myBundle);
 	}
 	
 	private void sendBundle(Bundle myBundle) {
+		final Handler uiHandler = this.uiHandler;
+		if (uiHandler == null)
+			return;
 		final Message myMessage = uiHandler.obtainMessage();
 		myMessage.setData(myBundle);
 		uiHandler.sendMessage(myMessage);
@@ -448,6 +599,9 @@ public class BTCommunicator extends Thread {
 			case GET_FIRMWARE_VERSION:
 				btc.getFirmwareVersion();
 				break;
+			case GET_DEVICE_INFO:
+				btc.getDeviceInfo();
+				break;
 			case FIND_FILES:
 				btc.findFiles(myMessage.getData().getInt("value1") == 0, myMessage.getData().getInt("value2"));
 				break;
@@ -466,6 +620,53 @@ public class BTCommunicator extends Thread {
 		}
 	};
 	
+	/**
+	 * Encodes the given command the same way the communicator would send it
+	 * @return the framed message (length prefix included) or null if the
+	 * command cannot be encoded ahead of time
+	 */
+	public static byte[] getFrame(int message, int value1) {
+		return getFrame(message, value1, null);
+	}
+	
+	/**
+	 * Encodes the given command the same way a communicator using the given profile would send it
+	 * @return the framed message (length prefix included) or null if the
+	 * command cannot be encoded ahead of time
+	 */
+	public static byte[] getFrame(int message, int value1, RobotProfile profile) {
+		switch (message) {
+		case MOTOR_A:
+		case MOTOR_B:
+		case MOTOR_C:
+			return getMotorFrame(message, value1, profile);
+		case MOTOR_B_ACTION:
+			return LCPMessage.getFrame(getRotateMessage(MOTOR_B, value1, profile));
+		case MOTOR_RESET:
+			return LCPMessage.getFrame(LCPMessage.getResetMessage((profile == null) ? value1 : profile.getPort(value1)));
+		case DO_ACTION:
+			return LCPMessage.getActionFrame(value1);
+		case STOP_PROGRAM:
+			return LCPMessage.getStopProgramFrame();
+		}
+		return null;
+	}
+	
+	/**
+	 * Encodes the given command the same way the communicator would send it
+	 * @return the framed message (length prefix included) or null if the
+	 * command cannot be encoded ahead of time
+	 */
+	public static byte[] getFrame(int message, String value1) {
+		switch (message) {
+		case WRITE_MAILBOX:
+			return LCPMessage.getFrame(LCPMessage.getWriteMailboxMessage(value1));
+		case START_PROGRAM:
+			return LCPMessage.getFrame(LCPMessage.getStartProgramMessage(value1));
+		}
+		return null;
+	}
+	
 	public void sendMessage(int message, String value1) {
 		final Bundle myBundle = new Bundle();
 		myBundle.putInt("message", message);
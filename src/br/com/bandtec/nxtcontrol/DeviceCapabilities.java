@@ -0,0 +1,169 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol;
+
+import java.util.HashMap;
+
+/**
+ * Protocol features supported by a brick, as reported by the replies to
+ * GET_FIRMWARE_VERSION and GET_DEVICE_INFO.
+ * 
+ * The probe is finished once both replies have arrived, or when the caller
+ * gives up waiting (see finishProbe()). A reply with an error status finishes
+ * its part of the probe without adding any information. If the firmware version
+ * was learned, the capabilities are then cached by MAC address, so reconnecting
+ * to the same brick does not require probing it again.
+ * All methods must be called on the main thread.
+ */
+public final class DeviceCapabilities {
+	// The brick runs leJOS with the MINDdroid connector, which understands
+	// the NXJ additions, NXJ packet mode and the MINDdroidConnector additions
+	public static final int FEATURE_LEJOS_MINDDROID = 0x0001;
+	public static final int FEATURE_NXJ_PACKET_MODE = 0x0002;
+	
+	private static final HashMap<String, DeviceCapabilities> cache = new HashMap<String, DeviceCapabilities>();
+	
+	public final String address;
+	private boolean hasFirmwareVersion, hasDeviceInfo, firmwareVersionProbed, deviceInfoProbed;
+	private int protocolVersion, firmwareVersion, features, freeFlash;
+	private String brickName;
+	
+	public DeviceCapabilities(String address) {
+		this.address = address;
+	}
+	
+	/**
+	 * @return The complete capabilities of the brick, or null if it has not been probed yet
+	 */
+	public static DeviceCapabilities getCached(String address) {
+		return ((address == null) ? null : cache.get(address));
+	}
+	
+	/**
+	 * Discards the cached capabilities (i.e. after a firmware update)
+	 */
+	public static void forget(String address) {
+		cache.remove(address);
+	}
+	
+	private void completed() {
+		//the features come from the firmware version, so there is nothing worth
+		//caching without it (the device info is just informative)
+		if (isComplete() && hasFirmwareVersion && address != null)
+			cache.put(address, this);
+	}
+	
+	/**
+	 * @param reply, the reply to GET_FIRMWARE_VERSION
+	 */
+	public void setFirmwareVersion(byte[] reply) {
+		firmwareVersionProbed = true;
+		if (reply == null || reply.length < 7 || reply[2] != 0) {
+			completed();
+			return;
+		}
+		protocolVersion = ((reply[4] & 0xFF) << 8) | (reply[3] & 0xFF);
+		firmwareVersion = ((reply[6] & 0xFF) << 8) | (reply[5] & 0xFF);
+		// check if we know the firmware
+		boolean isLejosMindDroid = true;
+		for (int pos = 0; pos < 4; pos++) {
+			if (reply[pos + 3] != LCPMessage.FIRMWARE_VERSION_LEJOSMINDDROID[pos]) {
+				isLejosMindDroid = false;
+				break;
+			}
+		}
+		if (isLejosMindDroid)
+			features |= (FEATURE_LEJOS_MINDDROID | FEATURE_NXJ_PACKET_MODE);
+		hasFirmwareVersion = true;
+		completed();
+	}
+	
+	/**
+	 * @param reply, the reply to GET_DEVICE_INFO
+	 */
+	public void setDeviceInfo(byte[] reply) {
+		deviceInfoProbed = true;
+		if (reply == null || reply.length < 33 || reply[2] != 0) {
+			completed();
+			return;
+		}
+		int len = 0;
+		while (len < 15 && reply[3 + len] != 0)
+			len++;
+		brickName = new String(reply, 3, len);
+		freeFlash = (reply[29] & 0xFF) | ((reply[30] & 0xFF) << 8) | ((reply[31] & 0xFF) << 16) | ((reply[32] & 0xFF) << 24);
+		hasDeviceInfo = true;
+		completed();
+	}
+	
+	/**
+	 * Finishes the probe without waiting for the replies that have not arrived yet
+	 */
+	public void finishProbe() {
+		firmwareVersionProbed = true;
+		deviceInfoProbed = true;
+		completed();
+	}
+	
+	/**
+	 * @return true if the probe has finished, even if some replies were missing or had errors
+	 */
+	public boolean isComplete() {
+		return (firmwareVersionProbed && deviceInfoProbed);
+	}
+	
+	public boolean hasFirmwareVersion() {
+		return hasFirmwareVersion;
+	}
+	
+	public boolean hasDeviceInfo() {
+		return hasDeviceInfo;
+	}
+	
+	public boolean hasFeature(int feature) {
+		return ((features & feature) == feature);
+	}
+	
+	public int getFeatures() {
+		return features;
+	}
+	
+	/**
+	 * @return The protocol version, major in the high byte and minor in the low byte
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+	
+	/**
+	 * @return The firmware version, major in the high byte and minor in the low byte
+	 */
+	public int getFirmwareVersion() {
+		return firmwareVersion;
+	}
+	
+	public String getBrickName() {
+		return brickName;
+	}
+	
+	public int getFreeFlash() {
+		return freeFlash;
+	}
+}
@@ -0,0 +1,182 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.Context;
+import br.com.bandtec.nxtcontrol.util.Serializer;
+
+/**
+ * LEGO devices found by the last discoveries, so the device list can be
+ * filled right away, without waiting for a new discovery to finish.
+ * 
+ * Devices are forgotten TTL ms after they were last seen. The file starts
+ * with MAGIC, VERSION and the count of devices (ints), followed by one
+ * record per device (at least RECORD_SIZE bytes): address (long), time it was last seen
+ * (long, System.currentTimeMillis()), signal strength (short) and name
+ * (string, as written by Serializer).
+ * All methods must be called on the main thread.
+ */
+public final class DiscoveryCache {
+	public static final long TTL = 3L * 24L * 60L * 60L * 1000L;
+	
+	private static final String FILE_NAME = "_NXTDevices";
+	private static final int MAGIC = 0x44545846;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int RECORD_SIZE = 22;
+	
+	private static HashMap<Long, DiscoveryCache> devices;
+	private static boolean modified;
+	
+	public final String address, name;
+	public final int rssi;
+	public final long lastSeen;
+	private final long mac;
+	
+	private DiscoveryCache(long mac, String name, int rssi, long lastSeen) {
+		this.address = RobotProfile.formatAddress(mac);
+		this.name = name;
+		this.rssi = rssi;
+		this.lastSeen = lastSeen;
+		this.mac = mac;
+	}
+	
+	private static void load(Context context) {
+		devices = new HashMap<Long, DiscoveryCache>();
+		modified = false;
+		FileInputStream fs = null;
+		try {
+			fs = context.openFileInput(FILE_NAME);
+			//read the entire file at once
+			final FileChannel channel = fs.getChannel();
+			final ByteBuffer buf = Serializer.allocate((int)channel.size());
+			Serializer.readFully(channel, buf);
+			buf.flip();
+			if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION)
+				return;
+			int count = buf.getInt();
+			final long now = System.currentTimeMillis();
+			while (count > 0 && buf.remaining() >= RECORD_SIZE) {
+				final long mac = buf.getLong();
+				final long lastSeen = buf.getLong();
+				final int rssi = buf.getShort();
+				final String name = Serializer.deserializeString(buf);
+				//expired devices are dropped here, and will be gone from the file the next time it is written
+				if (lastSeen <= now && (now - lastSeen) < TTL)
+					devices.put(mac, new DiscoveryCache(mac, name, rssi, lastSeen));
+				else
+					modified = true;
+				count--;
+			}
+		} catch (Throwable ex) {
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+			}
+		}
+	}
+	
+	/**
+	 * Loads the cache file if it has not been loaded yet
+	 * @return The devices seen less than TTL ms ago (the list is empty if there are none)
+	 */
+	public static ArrayList<DiscoveryCache> getUnexpired(Context context) {
+		if (devices == null)
+			load(context);
+		final ArrayList<DiscoveryCache> list = new ArrayList<DiscoveryCache>(devices.size());
+		final long now = System.currentTimeMillis();
+		for (DiscoveryCache device : devices.values()) {
+			if (device.lastSeen <= now && (now - device.lastSeen) < TTL)
+				list.add(device);
+		}
+		return list;
+	}
+	
+	/**
+	 * Records a device that has just been seen (the file is only written by save())
+	 */
+	public static void put(Context context, String address, String name, int rssi) {
+		final long mac = RobotProfile.parseAddress(address);
+		if (mac < 0)
+			return;
+		if (devices == null)
+			load(context);
+		devices.put(mac, new DiscoveryCache(mac, name, rssi, System.currentTimeMillis()));
+		modified = true;
+	}
+	
+	/**
+	 * Rewrites the cache file, if any device has been added or has expired since it was loaded
+	 * @return true if the file was successfully written, or did not need to be
+	 */
+	public static boolean save(Context context) {
+		if (devices == null || !modified)
+			return true;
+		final byte[][] names = new byte[devices.size()][];
+		int length = HEADER_SIZE, i = 0;
+		for (DiscoveryCache device : devices.values()) {
+			names[i] = ((device.name == null) ? null : device.name.getBytes(Serializer.UTF8));
+			length += RECORD_SIZE - 4 + Serializer.getStringLength(names[i]);
+			i++;
+		}
+		final ByteBuffer buf = Serializer.allocate(length);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(devices.size());
+		i = 0;
+		for (DiscoveryCache device : devices.values()) {
+			buf.putLong(device.mac);
+			buf.putLong(device.lastSeen);
+			buf.putShort((short)device.rssi);
+			Serializer.serializeString(buf, names[i++]);
+		}
+		buf.flip();
+		final String tmpName = FILE_NAME + ".tmp";
+		FileOutputStream fs = null;
+		try {
+			fs = context.openFileOutput(tmpName, 0);
+			Serializer.writeFully(fs.getChannel(), buf);
+			fs.getFD().sync();
+			fs.close();
+			fs = null;
+			if (context.getFileStreamPath(tmpName).renameTo(context.getFileStreamPath(FILE_NAME))) {
+				modified = false;
+				return true;
+			}
+		} catch (Throwable ex) {
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+			}
+		}
+		return false;
+	}
+}
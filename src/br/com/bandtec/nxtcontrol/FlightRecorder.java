@@ -0,0 +1,307 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the last SLOT_COUNT frames exchanged with the robot in memory and
+ * spills them to a file in background.
+ * 
+ * The memory buffer is a lock-free ring of fixed-size slots. Producers (the
+ * threads sending and receiving frames) claim a sequence number with a
+ * single atomic increment and copy at most MAX_CAPTURED_BYTES into their
+ * slot, which is then published by storing its sequence number. Therefore,
+ * the cost of record() is bounded, no matter how large the frame is.
+ * 
+ * The spill thread copies published slots into a ByteBuffer, and writes it
+ * through a FileChannel. If producers lap the spill thread, the overwritten
+ * frames are skipped and counted as lost.
+ * 
+ * The file is never truncated: when the recorder starts, or when the file
+ * reaches MAX_FILE_SIZE, it is renamed to the same name followed by
+ * PREVIOUS_SUFFIX (replacing the previous one), and a new file is started.
+ * Therefore, the traffic of the previous session is kept, and both files
+ * together never take more than twice MAX_FILE_SIZE.
+ * 
+ * File layout (little-endian):
+ * header: MAGIC (int), VERSION (int)
+ * record: System.nanoTime() (long), direction (byte), frame length (short),
+ *         captured length (short), captured bytes
+ */
+public final class FlightRecorder implements Runnable {
+	public static final int MAGIC = 0x5454584E; //"NXTT"
+	public static final int VERSION = 1;
+	public static final int OUTBOUND = 0;
+	public static final int INBOUND = 1;
+	public static final int RECORD_HEADER_SIZE = 13;
+	public static final int MAX_CAPTURED_BYTES = 64 - RECORD_HEADER_SIZE;
+	public static final String PREVIOUS_SUFFIX = ".1";
+	public static final long MAX_FILE_SIZE = 1024 * 1024;
+	
+	private static final int SLOT_SIZE = 64;
+	private static final int SLOT_COUNT = 1024; //MUST be a power of 2
+	private static final long IN_PROGRESS = -1;
+	private static final int SPILL_INTERVAL = 250;
+	
+	private final byte[] slots;
+	private final AtomicLongArray published;
+	private final AtomicLong sequence;
+	private final File file, previousFile, dumpFile;
+	private final Object sync;
+	private volatile boolean alive, dumpRequested;
+	private volatile long lostFrames;
+	private Thread thread;
+	
+	public FlightRecorder(File file, File dumpFile) {
+		this.slots = new byte[SLOT_SIZE * SLOT_COUNT];
+		this.published = new AtomicLongArray(SLOT_COUNT);
+		for (int i = 0; i < SLOT_COUNT; i++)
+			published.set(i, IN_PROGRESS);
+		this.sequence = new AtomicLong(0);
+		this.file = file;
+		this.previousFile = new File(file.getPath() + PREVIOUS_SUFFIX);
+		this.dumpFile = dumpFile;
+		this.sync = new Object();
+	}
+	
+	public void start() {
+		synchronized (sync) {
+			if (thread != null)
+				return;
+			alive = true;
+			thread = new Thread(this, "Flight Recorder Thread");
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Stops the spill thread, after writing all the frames recorded so far
+	 */
+	public void stop() {
+		final Thread t;
+		synchronized (sync) {
+			t = thread;
+			thread = null;
+			alive = false;
+			sync.notifyAll();
+		}
+		if (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Requests the frames currently in memory to be written to the dump file,
+	 * which is overwritten at every request. Can be called from any thread.
+	 */
+	public void dump() {
+		synchronized (sync) {
+			dumpRequested = true;
+			sync.notifyAll();
+		}
+	}
+	
+	/**
+	 * @return The amount of frames that were overwritten before reaching the file
+	 */
+	public long getLostFrameCount() {
+		return lostFrames;
+	}
+	
+	/**
+	 * Records a frame. Can be called from any thread. Invalid arguments are
+	 * ignored, and never leave a slot unpublished.
+	 * @param direction, either OUTBOUND or INBOUND
+	 * @param frame, the frame as a byte array
+	 * @param offset, the offset of the frame within the array
+	 * @param length, the length of the frame
+	 */
+	public void record(int direction, byte[] frame, int offset, int length) {
+		//the arguments are validated before claiming a sequence number, because
+		//the spill thread stops at the first slot that has not been published
+		if (frame == null || offset < 0 || length < 0 || offset > frame.length - length)
+			return;
+		final long seq = sequence.getAndIncrement();
+		final int slot = (int)seq & (SLOT_COUNT - 1);
+		final int captured = ((length > MAX_CAPTURED_BYTES) ? MAX_CAPTURED_BYTES : length);
+		final long now = System.nanoTime();
+		final byte[] slots = this.slots;
+		int o = slot * SLOT_SIZE;
+		published.set(slot, IN_PROGRESS);
+		slots[o] = (byte)now;
+		slots[o + 1] = (byte)(now >>> 8);
+		slots[o + 2] = (byte)(now >>> 16);
+		slots[o + 3] = (byte)(now >>> 24);
+		slots[o + 4] = (byte)(now >>> 32);
+		slots[o + 5] = (byte)(now >>> 40);
+		slots[o + 6] = (byte)(now >>> 48);
+		slots[o + 7] = (byte)(now >>> 56);
+		slots[o + 8] = (byte)direction;
+		slots[o + 9] = (byte)length;
+		slots[o + 10] = (byte)(length >>> 8);
+		slots[o + 11] = (byte)captured;
+		slots[o + 12] = 0;
+		System.arraycopy(frame, offset, slots, o + RECORD_HEADER_SIZE, captured);
+		published.set(slot, seq);
+	}
+	
+	private boolean copySlot(long seq, ByteBuffer buffer) {
+		//seqlock-like read: the slot is only valid if it still holds the same
+		//sequence number after its contents have been copied
+		final int slot = (int)seq & (SLOT_COUNT - 1);
+		if (published.get(slot) != seq)
+			return false;
+		final int position = buffer.position();
+		final int o = slot * SLOT_SIZE;
+		buffer.put(slots, o, RECORD_HEADER_SIZE + (slots[o + 11] & 0xFF));
+		if (published.get(slot) != seq) {
+			buffer.position(position);
+			return false;
+		}
+		return true;
+	}
+	
+	private long spill(FileChannel channel, ByteBuffer buffer, long cursor) throws Exception {
+		final long end = sequence.get();
+		if (end - cursor > SLOT_COUNT) {
+			lostFrames += (end - cursor - SLOT_COUNT);
+			cursor = end - SLOT_COUNT;
+		}
+		boolean blocked = false;
+		while (cursor < end && !blocked) {
+			buffer.clear();
+			while (cursor < end && buffer.remaining() >= SLOT_SIZE) {
+				final long p = published.get((int)cursor & (SLOT_COUNT - 1));
+				//a producer claimed this sequence number but has not finished yet
+				if (p == IN_PROGRESS || p < cursor) {
+					blocked = true;
+					break;
+				}
+				if (!copySlot(cursor, buffer))
+					lostFrames++;
+				cursor++;
+			}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		return cursor;
+	}
+	
+	private FileOutputStream openFile(ByteBuffer buffer) throws Exception {
+		//keeps the current file as the previous one, and starts a new file
+		if (file.exists()) {
+			previousFile.delete();
+			file.renameTo(previousFile);
+		}
+		final FileOutputStream fs = new FileOutputStream(file);
+		final FileChannel channel = fs.getChannel();
+		buffer.clear();
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		return fs;
+	}
+	
+	private void writeDump(ByteBuffer buffer) throws Exception {
+		FileOutputStream fs = null;
+		try {
+			fs = new FileOutputStream(dumpFile);
+			final FileChannel channel = fs.getChannel();
+			buffer.clear();
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			final long end = sequence.get();
+			for (long seq = ((end > SLOT_COUNT) ? (end - SLOT_COUNT) : 0); seq < end; seq++) {
+				if (buffer.remaining() < SLOT_SIZE) {
+					buffer.flip();
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+					buffer.clear();
+				}
+				copySlot(seq, buffer);
+			}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			if (fs != null)
+				fs.close();
+		}
+	}
+	
+	@Override
+	public void run() {
+		FileOutputStream fs = null;
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(SLOT_SIZE * 64);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			fs = openFile(buffer);
+			long cursor = 0;
+			for (;;) {
+				final boolean last, dump;
+				synchronized (sync) {
+					if (alive && !dumpRequested) {
+						try {
+							sync.wait(SPILL_INTERVAL);
+						} catch (InterruptedException e) {
+						}
+					}
+					last = !alive;
+					dump = dumpRequested;
+					dumpRequested = false;
+				}
+				cursor = spill(fs.getChannel(), buffer, cursor);
+				if (fs.getChannel().position() >= MAX_FILE_SIZE) {
+					fs.close();
+					fs = null;
+					fs = openFile(buffer);
+				}
+				if (dump) {
+					try {
+						writeDump(buffer);
+					} catch (Throwable ex) {
+					}
+				}
+				if (last)
+					break;
+			}
+		} catch (Throwable ex) {
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+			}
+		}
+	}
+}
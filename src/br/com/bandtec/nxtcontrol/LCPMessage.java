@@ -19,6 +19,8 @@
 
 package br.com.bandtec.nxtcontrol;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * Class for composing the proper messages for simple
  * communication over bluetooth
@@ -99,6 +101,95 @@ public class LCPMessage {
 	// Firmware codes
 	public static byte[] FIRMWARE_VERSION_LEJOSMINDDROID = { 0x6c, 0x4d, 0x49, 0x64 };
 	
+	// Cache of ready-to-send frames (length prefix included) for the most
+	// frequent commands. The frames are created on demand, and are shared,
+	// therefore, they MUST NOT be modified by the callers.
+	private static final int BEEP_CACHE_BITS = 5;
+	private static final AtomicReferenceArray<byte[]> motorFrames = new AtomicReferenceArray<byte[]>(3 * 201);
+	private static final AtomicReferenceArray<byte[]> actionFrames = new AtomicReferenceArray<byte[]>(256);
+	private static final AtomicReferenceArray<byte[]> beepFrames = new AtomicReferenceArray<byte[]>(1 << BEEP_CACHE_BITS);
+	private static volatile byte[] stopProgramFrame;
+	
+	/**
+	 * Prepends the 2-byte little-endian length expected by the NXT
+	 * to the given message, producing a frame ready to be written to the socket
+	 * @param message, the message as a byte array
+	 * @return the framed message
+	 */
+	public static byte[] getFrame(byte[] message) {
+		final byte[] frame = new byte[message.length + 2];
+		frame[0] = (byte)message.length;
+		frame[1] = (byte)(message.length >>> 8);
+		System.arraycopy(message, 0, frame, 2, message.length);
+		return frame;
+	}
+
+	/**
+	 * @param motor, the output port (0 - 2)
+	 * @param speed, the power (-100 - 100)
+	 * @return the shared, read-only, frame equivalent to getFrame(getMotorMessage(motor, speed))
+	 */
+	public static byte[] getMotorFrame(int motor, int speed) {
+		if (motor < 0 || motor > 2 || speed < -100 || speed > 100)
+			return getFrame(getMotorMessage(motor, speed));
+		final int index = (motor * 201) + speed + 100;
+		byte[] frame = motorFrames.get(index);
+		if (frame == null) {
+			frame = getFrame(getMotorMessage(motor, speed));
+			motorFrames.lazySet(index, frame);
+		}
+		return frame;
+	}
+	
+	/**
+	 * @return the shared, read-only, frame equivalent to getFrame(getActionMessage(actionNr))
+	 */
+	public static byte[] getActionFrame(int actionNr) {
+		final int index = actionNr & 0xFF;
+		byte[] frame = actionFrames.get(index);
+		if (frame == null) {
+			frame = getFrame(getActionMessage(actionNr));
+			actionFrames.lazySet(index, frame);
+		}
+		return frame;
+	}
+	
+	/**
+	 * @return the shared, read-only, frame equivalent to getFrame(getBeepMessage(frequency, duration))
+	 */
+	public static byte[] getBeepFrame(int frequency, int duration) {
+		// Only a handful of different tones are used at a time: each tone can
+		// live in two slots (index and index ^ 1), found through a multiplicative hash
+		final int index = ((frequency * 0x9E3779B1) + (duration * 0x85EBCA6B)) >>> (32 - BEEP_CACHE_BITS);
+		byte[] frame = beepFrames.get(index);
+		if (isBeepFrame(frame, frequency, duration))
+			return frame;
+		frame = beepFrames.get(index ^ 1);
+		if (isBeepFrame(frame, frequency, duration))
+			return frame;
+		final byte[] newFrame = getFrame(getBeepMessage(frequency, duration));
+		beepFrames.lazySet((beepFrames.get(index) == null || frame != null) ? index : (index ^ 1), newFrame);
+		return newFrame;
+	}
+	
+	private static boolean isBeepFrame(byte[] frame, int frequency, int duration) {
+		return (frame != null &&
+			frame[4] == (byte)frequency && frame[5] == (byte)(frequency >>> 8) &&
+			frame[6] == (byte)duration && frame[7] == (byte)(duration >>> 8));
+	}
+	
+	/**
+	 * @return the shared, read-only, frame equivalent to getFrame(getStopProgramMessage())
+	 */
+	public static byte[] getStopProgramFrame() {
+		byte[] frame = stopProgramFrame;
+		if (frame == null) {
+			frame = getFrame(getStopProgramMessage());
+			stopProgramFrame = frame;
+		}
+		return frame;
+	}
+	
 	public static byte[] getBeepMessage(int frequency, int duration) {
 		return new byte[] {
 			DIRECT_COMMAND_NOREPLY,
@@ -227,6 +318,20 @@ public class LCPMessage {
 		};
 	}
 	
+	public static byte[] getDeviceInfoMessage() {
+		return new byte[] {
+			SYSTEM_COMMAND_REPLY,
+			GET_DEVICE_INFO
+		};
+	}
+	
+	public static byte[] getPacketModeMessage() {
+		return new byte[] {
+			SYSTEM_COMMAND_NOREPLY,
+			NXJ_PACKET_MODE
+		};
+	}
+	
 	public static byte[] getFindFilesMessage(boolean findFirst, int handle, String searchString) {
 		final byte[] message;
 		
@@ -0,0 +1,201 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import br.com.bandtec.nxtcontrol.util.Serializer;
+
+/**
+ * Replays a file created by MacroRecorder through a BTCommunicator.
+ * 
+ * All frames are encoded when the file is loaded, so the playback thread only
+ * has to wait for each deadline and hand the frame to the communicator. The
+ * thread sleeps while the deadline is far away and spins on System.nanoTime()
+ * during the last SPIN_NANOS, which keeps the timing error in the microsecond
+ * range. The error of each frame, measured against the recording, is
+ * accumulated and reported when the playback finishes.
+ */
+public final class MacroPlayer extends Thread {
+	public static final int MACRO_FINISHED = 1040;
+	
+	private static final long SPIN_NANOS = 2000000L;
+	
+	private final long[] times;
+	private final byte[][] frames;
+	private final int count;
+	private volatile boolean cancelled, finished;
+	private BTCommunicator btCommunicator;
+	private Handler uiHandler;
+	private long maxErrorNanos, totalErrorNanos;
+	private int sent;
+	
+	private MacroPlayer(long[] times, byte[][] frames, int count) {
+		super("Macro Player Thread");
+		this.times = times;
+		this.frames = frames;
+		this.count = count;
+	}
+	
+	/**
+	 * Loads and pre-encodes all the frames of a recorded macro
+	 * @param profile, the profile of the brick the macro will be played on, or null
+	 * @return the player, or null if the file does not exist, is invalid or is empty
+	 */
+	public static MacroPlayer load(Context context, String fileName, RobotProfile profile) {
+		FileInputStream fs = null;
+		try {
+			fs = context.openFileInput(fileName);
+			final ByteArrayOutputStream contents = new ByteArrayOutputStream(1024);
+			final byte[] buf = new byte[1024];
+			int len;
+			while ((len = fs.read(buf, 0, buf.length)) > 0)
+				contents.write(buf, 0, len);
+			final byte[] data = contents.toByteArray();
+			if (data.length < 8 || Serializer.deserializeInt(data, 0) != MacroRecorder.MAGIC || Serializer.deserializeInt(data, 4) != MacroRecorder.VERSION)
+				return null;
+			//every record takes at least 17 bytes
+			final int maxCount = (data.length - 8) / 17;
+			final long[] times = new long[maxCount];
+			final byte[][] frames = new byte[maxCount][];
+			int count = 0, offset = 8;
+			while ((offset + 17) <= data.length) {
+				final long time = Serializer.deserializeLong(data, offset) * 1000L;
+				if (time < 0)
+					break;
+				offset += 8;
+				final int message = Serializer.deserializeInt(data, offset);
+				final int type = data[offset + 4];
+				final int value = Serializer.deserializeInt(data, offset + 5);
+				offset += 9;
+				final byte[] frame;
+				if (type == MacroRecorder.VALUE_STRING) {
+					if (value < 0 || (offset + value) > data.length)
+						break;
+					frame = BTCommunicator.getFrame(message, new String(data, offset, value));
+					offset += value;
+				} else {
+					frame = BTCommunicator.getFrame(message, value, profile);
+				}
+				if (frame != null) {
+					times[count] = time;
+					frames[count] = frame;
+					count++;
+				}
+			}
+			return ((count == 0) ? null : new MacroPlayer(times, frames, count));
+		} catch (Throwable ex) {
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+			}
+		}
+		return null;
+	}
+	
+	public boolean isFinished() {
+		return finished;
+	}
+	
+	public int getFrameCount() {
+		return count;
+	}
+	
+	public int getSentFrameCount() {
+		return sent;
+	}
+	
+	/**
+	 * @return The mean difference, in microseconds, between the moment a frame
+	 * was sent and the moment it should have been sent, according to the recording
+	 */
+	public int getMeanErrorMicros() {
+		return ((sent == 0) ? 0 : (int)((totalErrorNanos / sent) / 1000L));
+	}
+	
+	/**
+	 * @return The maximum difference, in microseconds, between the moment a frame
+	 * was sent and the moment it should have been sent, according to the recording
+	 */
+	public int getMaxErrorMicros() {
+		return (int)(maxErrorNanos / 1000L);
+	}
+	
+	/**
+	 * Starts the playback. When it finishes (or is cancelled), a message with
+	 * MACRO_FINISHED is sent to uiHandler.
+	 */
+	public void play(BTCommunicator btCommunicator, Handler uiHandler) {
+		this.btCommunicator = btCommunicator;
+		this.uiHandler = uiHandler;
+		start();
+	}
+	
+	public void cancel() {
+		cancelled = true;
+		interrupt();
+	}
+	
+	@Override
+	public void run() {
+		final long startTime = System.nanoTime();
+		for (int i = 0; i < count && !cancelled; i++) {
+			final long deadline = startTime + times[i];
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+				try {
+					remaining -= SPIN_NANOS;
+					Thread.sleep(remaining / 1000000L, (int)(remaining % 1000000L));
+				} catch (InterruptedException e) {
+					if (cancelled)
+						break;
+				}
+			}
+			if (cancelled)
+				break;
+			//the last stretch is done spinning, as sleep() is not that accurate
+			long now;
+			while ((now = System.nanoTime()) < deadline) {
+			}
+			if (!btCommunicator.sendFrame(frames[i]))
+				break;
+			final long error = now - deadline;
+			totalErrorNanos += error;
+			if (error > maxErrorNanos)
+				maxErrorNanos = error;
+			sent++;
+		}
+		btCommunicator = null;
+		finished = true;
+		final Bundle myBundle = new Bundle();
+		myBundle.putInt("message", MACRO_FINISHED);
+		final Message myMessage = uiHandler.obtainMessage();
+		myMessage.setData(myBundle);
+		uiHandler.sendMessage(myMessage);
+		uiHandler = null;
+	}
+}
@@ -0,0 +1,185 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol;
+
+import java.io.FileOutputStream;
+
+import android.content.Context;
+import br.com.bandtec.nxtcontrol.util.Serializer;
+
+/**
+ * Records the commands sent to the robot, along with their timestamps, into a
+ * compact binary file that can be replayed later by MacroPlayer.
+ * 
+ * File layout (little-endian):
+ * header: MAGIC (int), VERSION (int)
+ * record: time since the recording started in microseconds (long),
+ *         command (int), value type (byte), value (int or length-prefixed string)
+ * 
+ * Calls to record() only append the record to a memory buffer, the actual
+ * file I/O is done by a background thread, so it is safe to call them on the
+ * main thread.
+ */
+public final class MacroRecorder implements Runnable {
+	public static final int MAGIC = 0x4D54584E; //"NXTM"
+	public static final int VERSION = 1;
+	public static final int VALUE_INT = 0;
+	public static final int VALUE_STRING = 1;
+	
+	private final Object sync;
+	private final Context context;
+	private final String fileName;
+	private final long startTime;
+	private byte[] pending, writing;
+	private int pendingLength;
+	private boolean alive, failed;
+	private Thread thread;
+	
+	public MacroRecorder(Context context, String fileName) {
+		this.sync = new Object();
+		this.context = context;
+		this.fileName = fileName;
+		this.startTime = System.nanoTime();
+		this.pending = new byte[1024];
+		this.writing = new byte[1024];
+	}
+	
+	public void start() {
+		synchronized (sync) {
+			if (thread != null)
+				return;
+			alive = true;
+			thread = new Thread(this, "Macro Recorder Thread");
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Stops recording and waits for all pending records to be written
+	 * @return true if the whole recording was successfully written
+	 */
+	public boolean stop() {
+		final Thread t;
+		synchronized (sync) {
+			t = thread;
+			thread = null;
+			alive = false;
+			sync.notifyAll();
+		}
+		if (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+			}
+		}
+		return !failed;
+	}
+	
+	private int reserve(int length) {
+		//must be called while holding sync
+		final int offset = pendingLength;
+		if ((offset + length) > pending.length) {
+			final byte[] tmp = new byte[(offset + length) << 1];
+			System.arraycopy(pending, 0, tmp, 0, offset);
+			pending = tmp;
+		}
+		pendingLength = offset + length;
+		return offset;
+	}
+	
+	private int header(int message, int type, int length) {
+		//must be called while holding sync
+		final int offset = reserve(13 + length);
+		Serializer.serializeLong(pending, offset, (System.nanoTime() - startTime) / 1000L);
+		Serializer.serializeInt(pending, offset + 8, message);
+		pending[offset + 12] = (byte)type;
+		return offset + 13;
+	}
+	
+	public void record(int message, int value1) {
+		synchronized (sync) {
+			if (!alive)
+				return;
+			Serializer.serializeInt(pending, header(message, VALUE_INT, 4), value1);
+			sync.notifyAll();
+		}
+	}
+	
+	public void record(int message, String value1) {
+		final byte[] value = ((value1 == null) ? new byte[0] : value1.getBytes());
+		synchronized (sync) {
+			if (!alive)
+				return;
+			final int offset = header(message, VALUE_STRING, 4 + value.length);
+			Serializer.serializeInt(pending, offset, value.length);
+			System.arraycopy(value, 0, pending, offset + 4, value.length);
+			sync.notifyAll();
+		}
+	}
+	
+	@Override
+	public void run() {
+		FileOutputStream fs = null;
+		try {
+			fs = context.openFileOutput(fileName, 0);
+			final byte[] buf = new byte[8];
+			Serializer.serializeInt(buf, 0, MAGIC);
+			Serializer.serializeInt(buf, 4, VERSION);
+			fs.write(buf, 0, 8);
+			for (;;) {
+				final byte[] tmp;
+				final int length;
+				final boolean last;
+				synchronized (sync) {
+					while (alive && pendingLength == 0) {
+						try {
+							sync.wait();
+						} catch (InterruptedException e) {
+						}
+					}
+					//swap the buffers, so the main thread can keep on recording
+					//while we write what has been recorded so far
+					tmp = pending;
+					length = pendingLength;
+					last = !alive;
+					pending = writing;
+					pendingLength = 0;
+					writing = tmp;
+				}
+				if (length > 0)
+					fs.write(tmp, 0, length);
+				if (last)
+					break;
+			}
+		} catch (Throwable ex) {
+			failed = true;
+			synchronized (sync) {
+				alive = false;
+			}
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+				failed = true;
+			}
+		}
+	}
+}
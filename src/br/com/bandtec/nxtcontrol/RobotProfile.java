@@ -0,0 +1,226 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol;
+
+import java.util.HashMap;
+
+import android.content.Context;
+import br.com.bandtec.nxtcontrol.util.Serializer;
+import br.com.bandtec.nxtcontrol.util.SerializableMap;
+
+/**
+ * Per-brick settings: motor port mapping, motor inversion, speed limit and
+ * the preferred way of opening the bluetooth connection.
+ * 
+ * All profiles are kept in a single indexed SerializableMap file (see
+ * SerializableMap.serializeIndexed()), which is just mapped the first time a
+ * profile is requested, so only the profile of the brick being connected to
+ * is ever decoded. Each profile is a RECORD_SIZE-byte buffer: address (long),
+ * physical port of motors A, B and C (bytes), inverted motors (byte, bit 0 =
+ * A), speed limit (byte), connect strategy (byte) and two reserved bytes.
+ * Its key is a hash of the MAC address, and the following keys are tried in
+ * order when a different brick is found there (profiles are never removed,
+ * so there are no holes in these sequences).
+ * Decoded profiles are kept in memory, indexed by the MAC address (as a long).
+ * All methods must be called on the main thread.
+ */
+public final class RobotProfile {
+	public static final int CONNECT_AUTO = 0;
+	public static final int CONNECT_SERVICE_RECORD = 1;
+	public static final int CONNECT_CHANNEL_1 = 2;
+	
+	private static final String FILE_NAME = "_NXTProfiles";
+	private static final int RECORD_SIZE = 16;
+	
+	private static SerializableMap store;
+	private static HashMap<Long, RobotProfile> profiles;
+	
+	public final String address;
+	private final long mac;
+	private final byte[] ports;
+	private int inverted, maxSpeed, connectStrategy;
+	
+	public RobotProfile(String address) {
+		this.address = address;
+		this.mac = parseAddress(address);
+		this.ports = new byte[] { BTCommunicator.MOTOR_A, BTCommunicator.MOTOR_B, BTCommunicator.MOTOR_C };
+		this.maxSpeed = 100;
+	}
+	
+	static long parseAddress(String address) {
+		if (address == null)
+			return -1;
+		long mac = 0;
+		int digits = 0;
+		for (int i = 0; i < address.length(); i++) {
+			final int d = Character.digit(address.charAt(i), 16);
+			if (d >= 0) {
+				mac = (mac << 4) | (long)d;
+				digits++;
+			} else if (address.charAt(i) != ':') {
+				return -1;
+			}
+		}
+		return ((digits == 12) ? mac : -1);
+	}
+	
+	static String formatAddress(long mac) {
+		final char[] chars = new char[17];
+		for (int i = 5, c = 0; i >= 0; i--) {
+			final int b = (int)(mac >>> (i << 3)) & 0xFF;
+			chars[c++] = Character.toUpperCase(Character.forDigit(b >>> 4, 16));
+			chars[c++] = Character.toUpperCase(Character.forDigit(b & 0x0F, 16));
+			if (i > 0)
+				chars[c++] = ':';
+		}
+		return new String(chars);
+	}
+	
+	private static void open(Context context) {
+		profiles = new HashMap<Long, RobotProfile>();
+		store = SerializableMap.openIndexed(context, FILE_NAME);
+		if (store == null)
+			store = new SerializableMap();
+	}
+	
+	private static int hashKey(long mac) {
+		return (int)(mac ^ (mac >>> 32));
+	}
+	
+	//returns the key holding the profile of the given brick, or the key where it
+	//should be stored if there is no such profile
+	private static int findKey(long mac) {
+		int key = hashKey(mac);
+		byte[] record;
+		while ((record = store.getBuffer(key)) != null && (record.length < RECORD_SIZE || Serializer.deserializeLong(record, 0) != mac))
+			key++;
+		return key;
+	}
+	
+	private static RobotProfile decode(byte[] record) {
+		final RobotProfile profile = new RobotProfile(formatAddress(Serializer.deserializeLong(record, 0)));
+		for (int i = 0; i < 3; i++)
+			profile.setPort(i, record[8 + i]);
+		profile.inverted = record[11] & 0x07;
+		profile.setMaxSpeed(record[12]);
+		profile.setConnectStrategy(record[13]);
+		return profile;
+	}
+	
+	private byte[] encode() {
+		final byte[] record = new byte[RECORD_SIZE];
+		Serializer.serializeLong(record, 0, mac);
+		System.arraycopy(ports, 0, record, 8, 3);
+		record[11] = (byte)inverted;
+		record[12] = (byte)maxSpeed;
+		record[13] = (byte)connectStrategy;
+		return record;
+	}
+	
+	/**
+	 * Maps the profiles file if it has not been mapped yet
+	 * @return The stored profile of the brick, or a new profile with the default settings
+	 */
+	public static RobotProfile get(Context context, String address) {
+		if (store == null)
+			open(context);
+		final long mac = parseAddress(address);
+		if (mac < 0)
+			return new RobotProfile(address);
+		RobotProfile profile = profiles.get(mac);
+		if (profile == null) {
+			final byte[] record = store.getBuffer(findKey(mac));
+			if (record == null)
+				return new RobotProfile(address);
+			profile = decode(record);
+			profiles.put(mac, profile);
+		}
+		return profile;
+	}
+	
+	/**
+	 * Stores the profile and rewrites the profiles file
+	 * @return true if the file was successfully written
+	 */
+	public static boolean save(Context context, RobotProfile profile) {
+		if (profile.mac < 0)
+			return false;
+		if (store == null)
+			open(context);
+		profiles.put(profile.mac, profile);
+		store.put(findKey(profile.mac), profile.encode());
+		return store.serializeIndexed(context, FILE_NAME);
+	}
+	
+	/**
+	 * @param motor, the logical motor (BTCommunicator.MOTOR_A, MOTOR_B or MOTOR_C)
+	 * @return The output port the motor is actually connected to
+	 */
+	public int getPort(int motor) {
+		return ((motor < 0 || motor > 2) ? motor : ports[motor]);
+	}
+	
+	public void setPort(int motor, int port) {
+		if (motor >= 0 && motor <= 2 && port >= 0 && port <= 2)
+			ports[motor] = (byte)port;
+	}
+	
+	public boolean isInverted(int motor) {
+		return (motor >= 0 && motor <= 2 && (inverted & (1 << motor)) != 0);
+	}
+	
+	public void setInverted(int motor, boolean inverted) {
+		if (motor >= 0 && motor <= 2) {
+			if (inverted)
+				this.inverted |= (1 << motor);
+			else
+				this.inverted &= ~(1 << motor);
+		}
+	}
+	
+	public int getMaxSpeed() {
+		return maxSpeed;
+	}
+	
+	public void setMaxSpeed(int maxSpeed) {
+		this.maxSpeed = ((maxSpeed < 1) ? 1 : ((maxSpeed > 100) ? 100 : maxSpeed));
+	}
+	
+	public int getConnectStrategy() {
+		return connectStrategy;
+	}
+	
+	public void setConnectStrategy(int connectStrategy) {
+		this.connectStrategy = ((connectStrategy < CONNECT_AUTO || connectStrategy > CONNECT_CHANNEL_1) ? CONNECT_AUTO : connectStrategy);
+	}
+	
+	/**
+	 * @param motor, the logical motor
+	 * @param speed, the requested speed (-100 to 100)
+	 * @return The speed to be sent to the motor's port, inverted and limited as required
+	 */
+	public int getSpeed(int motor, int speed) {
+		if (speed < -maxSpeed)
+			speed = -maxSpeed;
+		else if (speed > maxSpeed)
+			speed = maxSpeed;
+		return (isInverted(motor) ? -speed : speed);
+	}
+}
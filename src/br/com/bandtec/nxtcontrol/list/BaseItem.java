@@ -41,4 +41,12 @@ public abstract class BaseItem {
 	public BaseItem() {
 		this.id = ids.getAndIncrement();
 	}
+	
+	/**
+	 * @return The key used by BaseList's key index, or null if the item
+	 * must not be indexed (keys must be unique within a list)
+	 */
+	public Object getKey() {
+		return null;
+	}
 }
@@ -34,6 +34,7 @@ package br.com.bandtec.nxtcontrol.list;
 
 import java.lang.reflect.Array;
 import java.util.Arrays;
+import java.util.HashMap;
 
 import android.database.DataSetObserver;
 import android.view.View;
@@ -42,6 +43,7 @@ import android.widget.ListAdapter;
 import br.com.bandtec.nxtcontrol.ui.BaseItemView;
 import br.com.bandtec.nxtcontrol.ui.BgListView;
 import br.com.bandtec.nxtcontrol.ui.UI;
+import br.com.bandtec.nxtcontrol.util.ArraySorter;
 
 //
 //SINCE ALL CALLS MADE BY Player ARE MADE ON THE MAIN THREAD, THERE IS NO
@@ -53,15 +55,35 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 	protected static final int SELECTION_CHANGED = 0;
 	protected static final int CONTENTS_CHANGED = 1;
 	protected static final int LIST_CLEARED = 2;
+	protected static final int ITEMS_INSERTED = 3;
+	protected static final int ITEMS_REMOVED = 4;
+	protected static final int ITEMS_MOVED = 5;
+	protected static final int ITEMS_CHANGED = 6;
 	
 	protected BgListView listObserver;
 	protected DataSetObserver observer;
 	protected final Object sync;
 	protected E[] items;
 	protected int count, current, firstSel, lastSel, originalSel, lastDeleted, modificationVersion;
+	private HashMap<Object, Integer> keyIndex;
+	private int batchDepth, batchWhatHappened, batchPosition, batchEnd, batchGotoPosition;
+	//the free slots of the array are kept in [gapStart, gapEnd), which is
+	//always empty (and therefore ignored) when gapBuffer is false
+	private final boolean gapBuffer;
+	private int gapStart, gapEnd;
 	
-	@SuppressWarnings("unchecked")
 	public BaseList(Class<E> c) {
+		this(c, false);
+	}
+	
+	/**
+	 * @param gapBuffer, when true, the free slots of the array are kept at the
+	 * position of the last edit (instead of at the end of the array), which
+	 * makes adding, removing and moving items near that position O(1) amortized.
+	 * In this mode items[] is not contiguous, and getItemT() must be used.
+	 */
+	@SuppressWarnings("unchecked")
+	public BaseList(Class<E> c, boolean gapBuffer) {
 		this.sync = new Object();
 		this.items = (E[])Array.newInstance(c, LIST_DELTA);
 		this.current = -1;
@@ -69,20 +91,303 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 		this.lastSel = -1;
 		this.originalSel = -1;
 		this.lastDeleted = -1;
+		this.gapBuffer = gapBuffer;
+		if (gapBuffer)
+			this.gapEnd = LIST_DELTA;
+	}
+	
+	public final boolean isGapBuffer() {
+		return gapBuffer;
+	}
+	
+	//converts a position into an index of items[]
+	private int physical(int position) {
+		return ((position < gapStart) ? position : (position + gapEnd - gapStart));
+	}
+	
+	//moves the gap, so it starts at the given position
+	private void moveGap(int position) {
+		if (position < gapStart) {
+			final int n = gapStart - position;
+			System.arraycopy(items, position, items, gapEnd - n, n);
+			Arrays.fill(items, position, Math.min(gapStart, gapEnd - n), null);
+			gapStart = position;
+			gapEnd -= n;
+		} else if (position > gapStart) {
+			final int n = position - gapStart;
+			System.arraycopy(items, gapEnd, items, gapStart, n);
+			Arrays.fill(items, Math.max(gapEnd, gapStart + n), gapEnd + n, null);
+			gapStart += n;
+			gapEnd += n;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void resize(int length) {
+		if (!gapBuffer) {
+			items = Arrays.copyOf(items, length);
+			return;
+		}
+		final E[] newItems = (E[])Array.newInstance(items.getClass().getComponentType(), length);
+		final int tail = items.length - gapEnd;
+		System.arraycopy(items, 0, newItems, 0, gapStart);
+		System.arraycopy(items, gapEnd, newItems, length - tail, tail);
+		items = newItems;
+		gapEnd = length - tail;
 	}
 	
 	private void setCapacity(int capacity) {
 		if (capacity < count)
 			return;
 		
+		if (batchDepth > 0) {
+			//while in a batch the array only grows, doubling its length, and
+			//it is trimmed by commitBatch()
+			if (capacity > items.length)
+				resize(Math.max(capacity + LIST_DELTA, items.length << 1));
+			return;
+		}
+		
+		//the gap must grow along with the list, otherwise edits would keep
+		//reallocating the array
+		final int delta = (gapBuffer ? Math.max(LIST_DELTA, capacity >> 3) : LIST_DELTA);
 		if (capacity > items.length ||
-			capacity <= (items.length - (2 * LIST_DELTA))) {
-			capacity += LIST_DELTA;
+			capacity <= (items.length - (2 * delta))) {
+			capacity += delta;
 		} else {
 			return;
 		}
 		
-		items = Arrays.copyOf(items, capacity);
+		resize(capacity);
+	}
+	
+	/**
+	 * Starts a batch of mutations: until the matching commitBatch() is called,
+	 * the observers are not notified and the array is never shrunk. Batches
+	 * can be nested, and only the outermost commitBatch() has any effect.
+	 * @param expectedAdditions, how many items are about to be added, so the
+	 * array can be grown only once (0 if unknown)
+	 */
+	public final void beginBatch(int expectedAdditions) {
+		if (batchDepth == 0) {
+			batchWhatHappened = -1;
+			batchGotoPosition = -1;
+		}
+		batchDepth++;
+		if (expectedAdditions > 0 && (count + expectedAdditions) > items.length)
+			resize(count + expectedAdditions + LIST_DELTA);
+	}
+	
+	public final void beginBatch() {
+		beginBatch(0);
+	}
+	
+	/**
+	 * Ends a batch started by beginBatch() (preferably from a finally block),
+	 * trimming the array if necessary and sending a single notification that
+	 * covers all the mutations in the batch
+	 */
+	public final void commitBatch() {
+		if (batchDepth <= 0 || --batchDepth > 0)
+			return;
+		setCapacity(count);
+		if (batchWhatHappened < 0)
+			return;
+		if (batchGotoPosition >= count)
+			batchGotoPosition = count - 1;
+		if (batchWhatHappened == CONTENTS_CHANGED) {
+			batchPosition = 0;
+			batchEnd = count;
+		} else if (batchEnd > count && isRebind(batchWhatHappened)) {
+			batchEnd = count;
+		}
+		notifyDataSetChanged(batchGotoPosition, batchWhatHappened, batchPosition, batchEnd - batchPosition);
+	}
+	
+	public final boolean isInBatch() {
+		return (batchDepth > 0);
+	}
+	
+	//these changes do not change the amount of items, so only the rows within
+	//their range have to be bound again
+	private static boolean isRebind(int whatHappened) {
+		return (whatHappened == SELECTION_CHANGED || whatHappened == ITEMS_CHANGED || whatHappened == ITEMS_MOVED);
+	}
+	
+	//merges a notification into the one that will be sent by commitBatch()
+	private void addToBatch(int gotoPosition, int whatHappened, int position, int count) {
+		if (gotoPosition >= 0)
+			batchGotoPosition = gotoPosition;
+		if (batchWhatHappened < 0) {
+			batchWhatHappened = whatHappened;
+			batchPosition = position;
+			batchEnd = position + count;
+			return;
+		}
+		final boolean rebind = (isRebind(whatHappened) && isRebind(batchWhatHappened));
+		if (whatHappened != batchWhatHappened && !rebind) {
+			//the changes are unrelated, so the whole list must be considered changed
+			batchWhatHappened = CONTENTS_CHANGED;
+			return;
+		}
+		if (whatHappened != batchWhatHappened)
+			batchWhatHappened = ITEMS_CHANGED;
+		if (position < batchPosition)
+			batchPosition = position;
+		if ((position + count) > batchEnd)
+			batchEnd = position + count;
+	}
+	
+	/**
+	 * Enables or disables the index that maps the items' keys (see BaseItem.getKey())
+	 * to their positions, making indexOfKey() O(1)
+	 */
+	public final void setKeyIndexEnabled(boolean enabled) {
+		if (!enabled) {
+			keyIndex = null;
+		} else if (keyIndex == null) {
+			keyIndex = new HashMap<Object, Integer>(count << 1);
+			reindex(0, count);
+		}
+	}
+	
+	public final boolean isKeyIndexEnabled() {
+		return (keyIndex != null);
+	}
+	
+	//stores the current positions of the items in [from, to)
+	private void reindex(int from, int to) {
+		if (keyIndex == null)
+			return;
+		for (int i = from; i < to; i++) {
+			final Object key = items[physical(i)].getKey();
+			if (key != null)
+				keyIndex.put(key, i);
+		}
+	}
+	
+	/**
+	 * @return The position of the item with the given key, or -1 if there is no such item
+	 */
+	public final int indexOfKey(Object key) {
+		if (key == null)
+			return -1;
+		if (keyIndex != null) {
+			final Integer position = keyIndex.get(key);
+			return ((position == null) ? -1 : position);
+		}
+		for (int i = count - 1; i >= 0; i--) {
+			if (key.equals(items[physical(i)].getKey()))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Replaces the item at the given position, without moving any other
+	 * item nor changing the selection
+	 */
+	public final void update(int position, E item) {
+		if (position < 0 || position >= count)
+			return;
+		
+		//synchronized (sync) {
+			modificationVersion++;
+			final int p = physical(position);
+			if (keyIndex != null) {
+				final Object key = items[p].getKey();
+				if (key != null)
+					keyIndex.remove(key);
+			}
+			items[p] = item;
+			reindex(position, position + 1);
+		//}
+		
+		notifyDataSetChanged(-1, ITEMS_CHANGED, position, 1);
+	}
+	
+	//returns the position after the last item <= item, ignoring the item at skip
+	private int findSortedPosition(E item, ArraySorter.Comparer<? super E> comparer, int skip) {
+		int l = 0, r = ((skip >= 0) ? (count - 1) : count);
+		while (l < r) {
+			final int m = (l + r) >>> 1;
+			if (comparer.compare(item, items[physical((skip >= 0 && m >= skip) ? (m + 1) : m)]) < 0)
+				r = m;
+			else
+				l = m + 1;
+		}
+		return l;
+	}
+	
+	/**
+	 * Adds the item at the position found with a binary search, so a list sorted
+	 * according to comparer stays sorted (equal items are kept in insertion order)
+	 * @return The position of the new item
+	 */
+	public final int addSorted(E item, ArraySorter.Comparer<? super E> comparer) {
+		final int position = findSortedPosition(item, comparer, -1);
+		add(item, position);
+		return position;
+	}
+	
+	/**
+	 * Replaces the item at the given position and, if necessary, moves it, so
+	 * a list sorted according to comparer stays sorted
+	 * @return The new position of the item
+	 */
+	public final int updateSorted(int position, E item, ArraySorter.Comparer<? super E> comparer) {
+		if (position < 0 || position >= count)
+			return -1;
+		int to = position;
+		if ((position > 0 && comparer.compare(items[physical(position - 1)], item) > 0) ||
+			(position < (count - 1) && comparer.compare(item, items[physical(position + 1)]) > 0))
+			to = findSortedPosition(item, comparer, position);
+		beginBatch();
+		update(position, item);
+		moveItem(position, to);
+		commitBatch();
+		return to;
+	}
+	
+	private static int getMovedPosition(int position, int from, int to) {
+		if (position == from)
+			return to;
+		if (from < to)
+			return ((position > from && position <= to) ? (position - 1) : position);
+		return ((position >= to && position < from) ? (position + 1) : position);
+	}
+	
+	/**
+	 * Moves a single item, without allocating memory, keeping the current and
+	 * the selected items (a multiple selection is reduced if it is split)
+	 */
+	public final void moveItem(int from, int to) {
+		if (from < 0 || from >= count || to < 0 || to >= count || from == to)
+			return;
+		final int lo = ((from < to) ? from : to), hi = ((from < to) ? to : from) + 1;
+		
+		//synchronized (sync) {
+			modificationVersion++;
+			if (gapBuffer)
+				moveGap(hi);
+			final E item = items[from];
+			if (from < to)
+				System.arraycopy(items, from + 1, items, from, to - from);
+			else
+				System.arraycopy(items, to, items, to + 1, from - to);
+			items[to] = item;
+			reindex(lo, hi);
+			current = getMovedPosition(current, from, to);
+			originalSel = getMovedPosition(originalSel, from, to);
+			firstSel = getMovedPosition(firstSel, from, to);
+			lastSel = getMovedPosition(lastSel, from, to);
+			if (firstSel > lastSel) {
+				firstSel = originalSel;
+				lastSel = originalSel;
+			}
+		//}
+		
+		notifyDataSetChanged(-1, ITEMS_MOVED, lo, hi - lo);
 	}
 	
 	public final void add(E item, int position) {
@@ -96,10 +401,16 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 		
 		//synchronized (sync) {
 			modificationVersion++;
-			if (count != position)
-				System.arraycopy(items, position, items, position + 1, count - position);
-			items[position] = item;
+			if (gapBuffer) {
+				moveGap(position);
+				items[gapStart++] = item;
+			} else {
+				if (count != position)
+					System.arraycopy(items, position, items, position + 1, count - position);
+				items[position] = item;
+			}
 			count++;
+			reindex(position, count);
 			if (current >= position)
 				current++;
 			if (current >= count)
@@ -110,7 +421,7 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 				lastSel++;
 		//}
 		
-		notifyDataSetChanged(-1, CONTENTS_CHANGED);
+		notifyDataSetChanged(-1, ITEMS_INSERTED, position, 1);
 	}
 	
 	public final void add(E[] items, int position, int count) {
@@ -126,10 +437,17 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 		
 		//synchronized (sync) {
 			modificationVersion++;
-			if (this.count != position)
-				System.arraycopy(this.items, position, this.items, position + count, this.count - position);
-			System.arraycopy(items, 0, this.items, position, count);
+			if (gapBuffer) {
+				moveGap(position);
+				System.arraycopy(items, 0, this.items, gapStart, count);
+				gapStart += count;
+			} else {
+				if (this.count != position)
+					System.arraycopy(this.items, position, this.items, position + count, this.count - position);
+				System.arraycopy(items, 0, this.items, position, count);
+			}
 			this.count += count;
+			reindex(position, this.count);
 			if (current >= position)
 				current += count;
 			if (firstSel >= position)
@@ -140,7 +458,7 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 				originalSel += count;
 		//}
 		
-		notifyDataSetChanged(-1, CONTENTS_CHANGED);
+		notifyDataSetChanged(-1, ITEMS_INSERTED, position, count);
 	}	
 	
 	public final void clear() {
@@ -148,6 +466,12 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 			modificationVersion++;
 			for (int i = items.length - 1; i >= 0; i--)
 				items[i] = null;
+			if (keyIndex != null)
+				keyIndex.clear();
+			if (gapBuffer) {
+				gapStart = 0;
+				gapEnd = items.length;
+			}
 			count = 0;
 			current = -1;
 			firstSel = -1;
@@ -173,12 +497,25 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 		
 		//synchronized (sync) {
 			modificationVersion++;
+			if (gapBuffer)
+				moveGap(position);
 			final int tot = position + count;
-			for (int i = position; i < tot; i++)
-				items[i] = null;
+			for (int i = position; i < tot; i++) {
+				final int p = physical(i);
+				if (keyIndex != null) {
+					final Object key = items[p].getKey();
+					if (key != null)
+						keyIndex.remove(key);
+				}
+				items[p] = null;
+			}
 			
-			System.arraycopy(items, position + count, items, position, (this.count - position - count));
+			if (gapBuffer)
+				gapEnd += count;
+			else
+				System.arraycopy(items, position + count, items, position, (this.count - position - count));
 			this.count -= count;
+			reindex(position, this.count);
 			lastDeleted = -1;
 			if (current >= position && current < (position + count)) {
 				lastDeleted = position;
@@ -202,7 +539,7 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 		//}
 		setCapacity(this.count);
 		
-		notifyDataSetChanged(originalSel, CONTENTS_CHANGED);
+		notifyDataSetChanged(originalSel, ITEMS_REMOVED, position, count);
 		
 		return true;
 	}
@@ -222,23 +559,38 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 		if (to >= from && to < (from + count)) {
 			if (originalSel != to) {
 				originalSel = to;
-				notifyDataSetChanged(-1, SELECTION_CHANGED);
+				notifyDataSetChanged(-1, SELECTION_CHANGED, from, count);
 			}
 			return;
 		}
-		Object[] tmp = new Object[count];
-		System.arraycopy(items, from, tmp, 0, count);
+		final Object[] tmp;
+		final int tmpOffset;
+		if (gapBuffer) {
+			//the gap is used as the temporary buffer, after being moved
+			//to the end of the range being changed
+			if ((gapEnd - gapStart) < count)
+				setCapacity(this.count + count);
+			moveGap((to < from) ? (from + count) : (to + 1));
+			tmp = items;
+			tmpOffset = gapStart;
+		} else {
+			tmp = new Object[count];
+			tmpOffset = 0;
+		}
+		System.arraycopy(items, from, tmp, tmpOffset, count);
 		//synchronized (sync) {
 			modificationVersion++;
 			final int delta;
 			if (to < from) {
 				delta = to - from;
 				System.arraycopy(items, to, items, to + count, from - to);
-				System.arraycopy(tmp, 0, items, to, count);
+				System.arraycopy(tmp, tmpOffset, items, to, count);
+				reindex(to, from + count);
 			} else {
 				delta = to - (from + count) + 1;
 				System.arraycopy(items, from + count, items, from, delta);
-				System.arraycopy(tmp, 0, items, from + delta, count);
+				System.arraycopy(tmp, tmpOffset, items, from + delta, count);
+				reindex(from, from + delta + count);
 			}
 			if (current < from && current >= to)
 				current += count;
@@ -249,8 +601,13 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 			firstSel += delta;
 			lastSel += delta;
 			originalSel = to;
+			if (gapBuffer)
+				Arrays.fill(items, gapStart, gapStart + count, null);
 		//}
-		notifyDataSetChanged(-1, CONTENTS_CHANGED);
+		if (to < from)
+			notifyDataSetChanged(-1, ITEMS_MOVED, to, from + count - to);
+		else
+			notifyDataSetChanged(-1, ITEMS_MOVED, from, delta + count);
 	}
 	
 	public final int getSelection() {
@@ -282,6 +639,7 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 	}
 	
 	public final void setSelection(int from, int to, int original, boolean notifyChanged, boolean byUserInteraction) {
+		final int oldFirstSel = firstSel, oldLastSel = lastSel, oldOriginalSel = originalSel;
 		int gotoPosition = -1;
 		firstSel = -1;
 		lastSel = -1;
@@ -309,7 +667,41 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 			gotoPosition = original;
 		}
 		if (notifyChanged)
-			notifyDataSetChanged(byUserInteraction ? -1 : gotoPosition, SELECTION_CHANGED);
+			notifySelectionChanged(byUserInteraction ? -1 : gotoPosition, oldFirstSel, oldLastSel, oldOriginalSel);
+	}
+	
+	//only the rows that were or are now selected have to be bound again
+	private void notifySelectionChanged(int gotoPosition, int oldFirstSel, int oldLastSel, int oldOriginalSel) {
+		int a = oldFirstSel, b = oldLastSel;
+		if (oldOriginalSel >= 0 && (a < 0 || oldOriginalSel < a))
+			a = oldOriginalSel;
+		if (oldOriginalSel > b)
+			b = oldOriginalSel;
+		int c = firstSel, d = lastSel;
+		if (originalSel >= 0 && (c < 0 || originalSel < c))
+			c = originalSel;
+		if (originalSel > d)
+			d = originalSel;
+		if (a < 0) {
+			a = c;
+			b = d;
+		} else if (c >= 0) {
+			if (c <= (b + 1) && a <= (d + 1)) {
+				//the ranges overlap (or touch each other)
+				if (c < a)
+					a = c;
+				if (d > b)
+					b = d;
+			} else {
+				notifyDataSetChanged(-1, SELECTION_CHANGED, a, b - a + 1);
+				a = c;
+				b = d;
+			}
+		}
+		if (a < 0)
+			notifyDataSetChanged(gotoPosition, SELECTION_CHANGED, 0, 0);
+		else
+			notifyDataSetChanged(gotoPosition, SELECTION_CHANGED, a, b - a + 1);
 	}
 	
 	@Override
@@ -319,16 +711,16 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 	
 	@Override
 	public final Object getItem(int position) {
-		return items[position];
+		return items[physical(position)];
 	}
 	
 	public final E getItemT(int position) {
-		return items[position];
+		return items[physical(position)];
 	}
 	
 	@Override
 	public final long getItemId(int position) {
-		return items[position].id;
+		return items[physical(position)].id;
 	}
 	
 	@Override
@@ -384,8 +776,25 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 	}
 	
 	protected void notifyDataSetChanged(int gotoPosition, int whatHappened) {
-		if (observer != null)
+		notifyDataSetChanged(gotoPosition, whatHappened, 0, count);
+	}
+	
+	/**
+	 * Notifies the observers that the items in [position, position + count) were
+	 * inserted, removed, moved or changed, as indicated by whatHappened
+	 */
+	protected void notifyDataSetChanged(int gotoPosition, int whatHappened, int position, int count) {
+		if (batchDepth > 0) {
+			addToBatch(gotoPosition, whatHappened, position, count);
+			return;
+		}
+		if (listObserver != null && isRebind(whatHappened)) {
+			//the amount of items did not change, so there is no need for a new layout
+			listObserver.rebindItems(position, count);
+		} else if (observer != null) {
+			//ListView must be notified whenever the amount of items changes
 			observer.onChanged();
+		}
 		if (listObserver != null && gotoPosition >= 0)
 			listObserver.centerItem(gotoPosition, false);
 	}
@@ -398,7 +807,7 @@ public class BaseList<E extends BaseItem> implements ListAdapter {
 	@Override
     public View getView(int position, View convertView, ViewGroup parent) {
 		BaseItemView view = ((convertView == null) ? new BaseItemView(listObserver.getContext()) : (BaseItemView)convertView);
-		view.setItemState(items[position].toString(), getItemState(position));
+		view.setItemState(items[physical(position)].toString(), getItemState(position));
 		return view;
 	}
 }
@@ -19,18 +19,43 @@
 //
 package br.com.bandtec.nxtcontrol.list;
 
+import br.com.bandtec.nxtcontrol.util.ArraySorter;
+
 public class DeviceItem extends BaseItem {
+	public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+	
+	//strongest signal first, devices with an unknown signal last
+	public static final ArraySorter.Comparer<DeviceItem> SIGNAL_COMPARER = new ArraySorter.Comparer<DeviceItem>() {
+		@Override
+		public int compare(DeviceItem a, DeviceItem b) {
+			return ((a.rssi > b.rssi) ? -1 : ((a.rssi < b.rssi) ? 1 : 0));
+		}
+	};
+	
 	public final String description, address;
 	public final boolean paired;
+	public final int rssi;
+	private final String text;
 	
 	public DeviceItem(String description, String address, boolean paired) {
+		this(description, address, paired, RSSI_UNKNOWN);
+	}
+	
+	public DeviceItem(String description, String address, boolean paired, int rssi) {
 		this.description = description;
 		this.address = address;
 		this.paired = paired;
+		this.rssi = rssi;
+		this.text = ((rssi == RSSI_UNKNOWN) ? description : (description + " (" + rssi + " dBm)"));
+	}
+	
+	@Override
+	public Object getKey() {
+		return address;
 	}
 	
 	@Override
 	public String toString() {
-		return description;
+		return text;
 	}
 }
@@ -226,6 +226,7 @@ public final class BgButton extends Button {
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
+		UI.prepareGradients(h);
 		if (stretchable)
 			fixTextSize(w, h);
 	}
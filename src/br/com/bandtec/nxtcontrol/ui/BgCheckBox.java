@@ -154,6 +154,12 @@ public final class BgCheckBox extends CheckBox {
 		state = UI.handleStateChanges(state, isPressed(), isFocused(), this);
 	}
 	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		UI.prepareGradients(h);
+	}
+	
 	@Override
 	protected void onDraw(Canvas canvas) {
 		getDrawingRect(UI.rect);
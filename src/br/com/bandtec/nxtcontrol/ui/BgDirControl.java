@@ -21,6 +21,7 @@ package br.com.bandtec.nxtcontrol.ui;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -28,6 +29,7 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewDebug.ExportedProperty;
+import br.com.bandtec.nxtcontrol.util.Histogram;
 
 public final class BgDirControl extends View {
 	public static interface OnBgDirControlChangeListener {
@@ -40,11 +42,16 @@ public final class BgDirControl extends View {
 		"4", "5", "6",
 		"7", "8", "9"
 	};
+	//path followed by measureDrawTime(), like a finger dragged around the control
+	private static final int[] BENCHMARK_PATH = new int[] { 5, 2, 3, 6, 9, 8, 7, 4, 1, 2, 5, 8, 5, 4, 5, 6 };
 	
 	private int dir, w3, h3, offX, offY;
 	private boolean tracking;
 	private int state;
 	private OnBgDirControlChangeListener listener;
+	//pre-rendered cells, indexed by (focused ? 1 : 0) (pressed cells are flat
+	//fills, which are cheaper to draw directly than to blit)
+	private Bitmap[] cells;
 	
 	public BgDirControl(Context context) {
 		super(context);
@@ -93,13 +100,20 @@ public final class BgDirControl extends View {
 		else if (direction > 9)
 			direction = 9;
 		if (dir != direction) {
+			//only the cells that actually changed need to be drawn again
+			invalidateCell(dir);
+			invalidateCell(direction);
 			dir = direction;
 			if (!fromUser && listener != null)
 				listener.onDirectionChanged(this, DIRECTIONS[dir - 1]);
-			invalidate();
 		}
 	}
 	
+	private void invalidateCell(int direction) {
+		final int x = offX + (((direction - 1) % 3) * w3), y = offY + (((direction - 1) / 3) * h3);
+		invalidate(x, y, x + w3, y + h3);
+	}
+	
 	public String getDirection() {
 		return DIRECTIONS[dir - 1];
 	}
@@ -206,6 +220,52 @@ public final class BgDirControl extends View {
 		final int height = h3 * 3;
 		offX = (w >> 1) - (width >> 1);
 		offY = (h >> 1) - (height >> 1);
+		UI.prepareGradients(h3);
+		prepareCells();
+	}
+	
+	private void releaseCells() {
+		if (cells != null) {
+			for (int i = cells.length - 1; i >= 0; i--) {
+				if (cells[i] != null)
+					cells[i].recycle();
+			}
+			cells = null;
+		}
+	}
+	
+	private void prepareCells() {
+		releaseCells();
+		if (w3 <= 0 || h3 <= 0)
+			return;
+		try {
+			final Canvas canvas = new Canvas();
+			cells = new Bitmap[2];
+			for (int i = 0; i < 2; i++) {
+				cells[i] = Bitmap.createBitmap(w3, h3, Bitmap.Config.ARGB_8888);
+				canvas.setBitmap(cells[i]);
+				UI.rect.set(0, 0, w3, h3);
+				UI.drawBg(canvas, ((i != 0) ? UI.STATE_FOCUSED : UI.STATE_SELECTED), UI.rect, true);
+			}
+		} catch (Throwable ex) {
+			//not enough memory, the cells will be drawn directly
+			releaseCells();
+		}
+	}
+	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		//the cells are released when the view is detached, and onSizeChanged()
+		//is not called again if it is attached with the same size
+		if (cells == null)
+			prepareCells();
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		releaseCells();
+		super.onDetachedFromWindow();
 	}
 	
 	private void trackTouchEvent(float x, float y) {
@@ -288,8 +348,17 @@ public final class BgDirControl extends View {
 		return true;
 	}
 	
-	@Override
-	protected void onDraw(Canvas canvas) {
+	private void drawCells(Canvas canvas, boolean cached) {
+		if (cached && (state & UI.STATE_PRESSED) == 0) {
+			for (int i = 0, y = offY; i < 9; i += 3, y += h3) {
+				for (int j = 0, x = offX; j < 3; j++, x += w3) {
+					//skip the cells outside the area being redrawn
+					if (!canvas.quickReject(x, y, x + w3, y + h3, Canvas.EdgeType.BW))
+						canvas.drawBitmap(cells[(dir == (i + j + 1)) ? 1 : 0], x, y, null);
+				}
+			}
+			return;
+		}
 		canvas.translate(0, offY);
 		UI.rect.top = 0;
 		UI.rect.bottom = h3;
@@ -308,4 +377,56 @@ public final class BgDirControl extends View {
 		}
 		canvas.translate(0, -((h3 << 1) + offY));
 	}
+	
+	/**
+	 * Draws the given number of frames into an offscreen bitmap, changing the
+	 * direction before each one, first the old way (whole view, cells drawn
+	 * with UI.drawBg()) and then clipped to the old and new cells, using the
+	 * pre-rendered cells unless the control is pressed
+	 * @return The frame times of both ways, in microseconds, or null if the view has not been laid out yet
+	 */
+	public String measureDrawTime(int frames) {
+		if (w3 <= 0 || h3 <= 0)
+			return null;
+		if (cells == null)
+			prepareCells();
+		Bitmap target = null;
+		final int originalDir = dir;
+		try {
+			target = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+			final Canvas canvas = new Canvas(target);
+			final Histogram full = new Histogram(), partial = new Histogram();
+			for (int pass = 0; pass < 2; pass++) {
+				final Histogram h = ((pass == 0) ? full : partial);
+				for (int i = 0; i < frames; i++) {
+					final int old = dir;
+					dir = BENCHMARK_PATH[i % BENCHMARK_PATH.length];
+					final long start = System.nanoTime();
+					if (pass == 0 || cells == null) {
+						drawCells(canvas, false);
+					} else {
+						canvas.save();
+						final int ox = offX + (((old - 1) % 3) * w3), oy = offY + (((old - 1) / 3) * h3);
+						final int nx = offX + (((dir - 1) % 3) * w3), ny = offY + (((dir - 1) / 3) * h3);
+						canvas.clipRect(Math.min(ox, nx), Math.min(oy, ny), Math.max(ox, nx) + w3, Math.max(oy, ny) + h3);
+						drawCells(canvas, true);
+						canvas.restore();
+					}
+					h.add((System.nanoTime() - start) / 1000);
+				}
+			}
+			return "full: " + full.toString() + " / cached: " + partial.toString();
+		} catch (Throwable ex) {
+			return null;
+		} finally {
+			dir = originalDir;
+			if (target != null)
+				target.recycle();
+		}
+	}
+	
+	@Override
+	protected void onDraw(Canvas canvas) {
+		drawCells(canvas, cells != null);
+	}
 }
@@ -162,6 +162,12 @@ public final class BgImageButton extends ImageButton {
 		super.setImageDrawable((forceBlack || (state != 0)) ? (checked ? blackChecked : black) : (checked ? whiteChecked : white));
 	}
 	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		UI.prepareGradients(h);
+	}
+	
 	@Override
 	protected void onDraw(Canvas canvas) {
 		getDrawingRect(UI.rect);
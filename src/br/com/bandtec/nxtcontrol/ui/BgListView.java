@@ -48,7 +48,7 @@ import br.com.bandtec.nxtcontrol.list.BaseList;
 import br.com.bandtec.nxtcontrol.ui.drawable.BorderDrawable;
 import br.com.bandtec.nxtcontrol.ui.drawable.NullDrawable;
 
-public final class BgListView extends ListView {
+public final class BgListView extends ListView implements ListRebinder.Host {
 	public static interface OnAttachedObserver {
 		public void onBgListViewAttached(BgListView list);
 	}
@@ -168,6 +168,14 @@ public final class BgListView extends ListView {
 			setSelectionFromTop(position, y);
 	}
 	
+	/**
+	 * Binds the visible rows in [position, position + count) again, reusing
+	 * their views, without going through a new layout pass
+	 */
+	public void rebindItems(int position, int count) {
+		ListRebinder.rebindItems(this, position, count);
+	}
+	
 	public void setOnKeyDownObserver(OnBgListViewKeyDownObserver keyDownObserver) {
 		this.keyDownObserver = keyDownObserver;
 	}
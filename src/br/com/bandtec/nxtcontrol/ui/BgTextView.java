@@ -109,6 +109,12 @@ public class BgTextView extends TextView {
 		state = UI.handleStateChanges(state, isPressed(), isFocused(), this);
 	}
 	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		UI.prepareGradients(h);
+	}
+	
 	@Override
 	protected void onDraw(Canvas canvas) {
 		getDrawingRect(UI.rect);
@@ -0,0 +1,87 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.bandtec.nxtcontrol.ui;
+
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ListAdapter;
+
+/**
+ * Binds visible rows of a list again, without going through a new layout pass.
+ * The list is given as a ViewGroup that also implements Host (BgListView
+ * gets all Host methods from ListView).
+ */
+final class ListRebinder {
+	static interface Host {
+		public ListAdapter getAdapter();
+		public int getFirstVisiblePosition();
+		public void invalidateViews();
+	}
+	
+	private ListRebinder() {
+	}
+	
+	/**
+	 * Binds the visible rows in [position, position + count) again, reusing
+	 * their views, or calls invalidateViews() if the adapter does not reuse them
+	 * @return The amount of getView() calls
+	 */
+	static <T extends ViewGroup & Host> int rebindItems(T list, int position, int count) {
+		final ListAdapter a = list.getAdapter();
+		if (a == null || count <= 0)
+			return 0;
+		//if the amount of items has just changed, the rows bound here might not match
+		//their positions, but the pending layout will bind all of them again anyway
+		final int first = list.getFirstVisiblePosition();
+		int i = position - first;
+		if (i < 0)
+			i = 0;
+		int last = position + count - first;
+		if (last > list.getChildCount())
+			last = list.getChildCount();
+		if (last > (a.getCount() - first))
+			last = a.getCount() - first;
+		int calls = 0;
+		for (; i < last; i++) {
+			final View child = list.getChildAt(i);
+			calls++;
+			if (a.getView(first + i, child, list) != child) {
+				//the adapter did not reuse the view, so all the rows must be bound again
+				list.invalidateViews();
+				break;
+			}
+			child.invalidate();
+		}
+		return calls;
+	}
+}
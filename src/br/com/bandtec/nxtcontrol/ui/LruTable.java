@@ -0,0 +1,144 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.bandtec.nxtcontrol.ui;
+
+/**
+ * Small LRU cache of entries found through a hash table, and kept in a
+ * doubly linked list, from the most to the least recently used. The links
+ * are stored in the entries themselves, so no memory is allocated when
+ * looking entries up, and evicted entries can be reused by the caller.
+ * Entries are compared by the caller: get() just returns the first entry
+ * of the hash's bucket.
+ * All methods must be called on the main thread.
+ */
+final class LruTable<E extends LruTable.Entry<E>> {
+	static class Entry<E> {
+		int hash;
+		E nextInBucket;
+		E newer, older;
+	}
+	
+	private final Entry<E>[] table;
+	private final int capacity, tableMask;
+	private E newest, oldest;
+	private int count;
+	int hits, misses;
+	
+	/**
+	 * @param capacity, the maximum amount of entries
+	 * @param tableSize, the amount of buckets (MUST be a power of 2)
+	 */
+	@SuppressWarnings("unchecked")
+	LruTable(int capacity, int tableSize) {
+		this.table = (Entry<E>[])new Entry<?>[tableSize];
+		this.capacity = capacity;
+		this.tableMask = tableSize - 1;
+	}
+	
+	@SuppressWarnings("unchecked")
+	E first(int hash) {
+		return (E)table[hash & tableMask];
+	}
+	
+	private void unlink(E e) {
+		final E newer = e.newer, older = e.older;
+		if (newer == null)
+			newest = older;
+		else
+			newer.older = older;
+		if (older == null)
+			oldest = newer;
+		else
+			older.newer = newer;
+		e.newer = null;
+		e.older = null;
+	}
+	
+	private void linkAsNewest(E e) {
+		e.older = newest;
+		if (newest != null)
+			newest.newer = e;
+		newest = e;
+		if (oldest == null)
+			oldest = e;
+	}
+	
+	/**
+	 * Marks the entry as the most recently used one
+	 */
+	void hit(E e) {
+		hits++;
+		if (e != newest) {
+			unlink(e);
+			linkAsNewest(e);
+		}
+	}
+	
+	/**
+	 * Must be called before add(), when the entry being looked up was not found
+	 * @return The least recently used entry, already removed, if the table is
+	 * full, or null
+	 */
+	E evict() {
+		misses++;
+		if (count < capacity) {
+			count++;
+			return null;
+		}
+		final E e = oldest;
+		unlink(e);
+		final int bucket = e.hash & tableMask;
+		E b = first(e.hash), previous = null;
+		while (b != e) {
+			previous = b;
+			b = b.nextInBucket;
+		}
+		if (previous == null)
+			table[bucket] = e.nextInBucket;
+		else
+			previous.nextInBucket = e.nextInBucket;
+		e.nextInBucket = null;
+		return e;
+	}
+	
+	/**
+	 * Adds the entry as the most recently used one
+	 */
+	void add(E e, int hash) {
+		final int bucket = hash & tableMask;
+		e.hash = hash;
+		e.nextInBucket = first(hash);
+		table[bucket] = e;
+		linkAsNewest(e);
+	}
+}
@@ -110,36 +110,57 @@ public final class UI {
 	
 	public static Typeface iconsTypeface;
 	
-	private static class Gradient {
-		private static final Gradient[] gradients = new Gradient[16];
-		private static int pos, count;
-		public final boolean current, vertical;
-		public final int size;
-		public final LinearGradient gradient;
+	private static final class Gradient extends LruTable.Entry<Gradient> {
+		//LRU cache of the shaders used by drawBg() and drawBgBorderless(), keyed
+		//by size and flags
+		private static final int FLAG_CURRENT = 1, FLAG_VERTICAL = 2;
+		private static final LruTable<Gradient> cache = new LruTable<Gradient>(32, 64);
+		public LinearGradient gradient;
 		
-		private Gradient(boolean current, boolean vertical, int size) {
-			this.current = current;
-			this.vertical = vertical;
-			this.size = size;
-			this.gradient = (current ? new LinearGradient(0, 0, (vertical ? size : 0), (vertical ? 0 : size), color_current_grad_lt, color_current_grad_dk, Shader.TileMode.CLAMP) :
+		public static LinearGradient getGradient(boolean current, boolean vertical, int size) {
+			final int key = (size << 2) | (current ? FLAG_CURRENT : 0) | (vertical ? FLAG_VERTICAL : 0);
+			for (Gradient g = cache.first(key); g != null; g = g.nextInBucket) {
+				if (g.hash == key) {
+					cache.hit(g);
+					return g.gradient;
+				}
+			}
+			Gradient g = cache.evict();
+			if (g == null)
+				g = new Gradient();
+			g.gradient = (current ? new LinearGradient(0, 0, (vertical ? size : 0), (vertical ? 0 : size), color_current_grad_lt, color_current_grad_dk, Shader.TileMode.CLAMP) :
 				new LinearGradient(0, 0, (vertical ? size : 0), (vertical ? 0 : size), color_selected_grad_lt, color_selected_grad_dk, Shader.TileMode.CLAMP));
+			cache.add(g, key);
+			return g.gradient;
 		}
+	}
+	
+	private static final class EllipsizedText extends LruTable.Entry<EllipsizedText> {
+		//LRU cache shared by all views, so recycled rows do not have to measure
+		//their texts again
+		private static final LruTable<EllipsizedText> cache = new LruTable<EllipsizedText>(64, 128);
+		private String text, ellipsizedText;
+		private int size, width;
 		
-		public static LinearGradient getGradient(boolean current, boolean vertical, int size) {
-			//a LRU algorithm could be implemented here...
-			for (int i = count - 1; i >= 0; i--) {
-				if (gradients[i].size == size && gradients[i].current == current && gradients[i].vertical == vertical)
-					return gradients[i].gradient;
-			}
-			if (count < 16) {
-				pos = count;
-				count++;
-			} else {
-				pos = (pos + 1) & 15;
+		public static String get(String text, int size, int width) {
+			int hash = (((text.hashCode() * 31) + size) * 31) + width;
+			hash ^= (hash >>> 16);
+			for (EllipsizedText e = cache.first(hash); e != null; e = e.nextInBucket) {
+				if (e.hash == hash && e.size == size && e.width == width && (e.text == text || e.text.equals(text))) {
+					cache.hit(e);
+					return e.ellipsizedText;
+				}
 			}
-			final Gradient g = new Gradient(current, vertical, size);
-			gradients[pos] = g;
-			return g.gradient;
+			//reuse the least recently used entry, if the cache is full
+			EllipsizedText e = cache.evict();
+			if (e == null)
+				e = new EllipsizedText();
+			e.text = text;
+			e.ellipsizedText = TextUtils.ellipsize(text, textPaint, width, TruncateAt.END).toString();
+			e.size = size;
+			e.width = width;
+			cache.add(e, hash);
+			return e.ellipsizedText;
 		}
 	}
 	
@@ -250,6 +271,7 @@ public final class UI {
 		_14sp = spToPxI(14);
 		defaultControlContentsSize = dpToPxI(32);
 		defaultControlSize = defaultControlContentsSize + (UI._8sp << 1);
+		prepareGradients(defaultControlSize);
 		strokePaint.setStrokeWidth(_1dpStroke);
 		//Font Metrics in Java OR How, the hell, Should I Position This Font?!
 		//http://blog.evendanan.net/2011/12/Font-Metrics-in-Java-OR-How-the-hell-Should-I-Position-This-Font
@@ -307,7 +329,21 @@ public final class UI {
 	
 	public static String ellipsizeText(String text, int size, int width) {
 		textPaint.setTextSize(size);
-		return TextUtils.ellipsize(text, textPaint, width, TruncateAt.END).toString();
+		return EllipsizedText.get(text, size, width);
+	}
+	
+	public static void prepareGradients(int size) {
+		//views call this when their size changes, so the gradients they use
+		//are already cached when they are drawn
+		Gradient.getGradient(false, false, size);
+		Gradient.getGradient(true, false, size);
+	}
+	
+	/**
+	 * @return The hits and misses of the gradient and ellipsized text caches so far
+	 */
+	public static String getCacheStatistics() {
+		return "gradients: " + Gradient.cache.hits + "/" + Gradient.cache.misses + " / texts: " + EllipsizedText.cache.hits + "/" + EllipsizedText.cache.misses;
 	}
 	
 	public static int measureText(String text, int size) {
@@ -32,33 +32,218 @@
 //
 package br.com.bandtec.nxtcontrol.util;
 
+/**
+ * Stable merge sort, based on TimSort: the array is split into runs that are
+ * already sorted (strictly descending runs are reversed), short runs are
+ * extended with binary insertion sort, and runs are merged while keeping the
+ * run lengths balanced. Before each merge, the elements already in their
+ * final place are skipped with binary searches, and the merge copies only
+ * the shortest of the two runs to the merge buffer.
+ */
 public class ArraySorter {
 	public static interface Comparer<E> {
 		public int compare(E a, E b);
 	}
 	
+	//arrays shorter than this are sorted with binary insertion sort only
+	private static final int MIN_MERGE = 32;
+	//enough for any array, given the invariants kept by mergeCollapse()
+	private static final int MAX_RUNS = 49;
+	
 	private ArraySorter() {
 	}
 	
 	public static <E> void sort(E[] elements, int i, int n, Comparer<E> comparer) {
-		if (n > 1) {
-			final int m = n >> 1, endB = i + n;
-			sort(elements, i, m, comparer);
-			sort(elements, i + m, n - m, comparer);
-			int iB = i + m;
-			E eA = elements[i];
-			E eB = elements[iB];
-			for (;;) {
-				if (comparer.compare(eA, eB) > 0) {
-					System.arraycopy(elements, i, elements, i + 1, iB - i);
-					elements[i] = eB;
-					if ((++iB) >= endB || (++i) >= iB) break; //MUST INCREMENT iB BEFORE COMPARING i AND iB
-					eB = elements[iB];
-				} else {
-					if ((++i) >= iB) break;
-					eA = elements[i];
+		sort(elements, i, n, comparer, null);
+	}
+	
+	/**
+	 * Sorts elements[i .. i + n) without changing the order of equal elements
+	 * @param buffer, a buffer returned by a previous call, or null
+	 * @return The merge buffer, which can be given to later calls so they do not
+	 * have to allocate a new one (null if no buffer was necessary)
+	 */
+	public static <E> Object[] sort(E[] elements, int i, int n, Comparer<E> comparer, Object[] buffer) {
+		if (n < 2)
+			return buffer;
+		final int end = i + n;
+		if (n < MIN_MERGE) {
+			binaryInsertionSort(elements, i, end, i + countRunAndMakeAscending(elements, i, end, comparer), comparer);
+			return buffer;
+		}
+		final int minRun = minRunLength(n);
+		final int[] runBase = new int[MAX_RUNS], runLength = new int[MAX_RUNS];
+		int runs = 0;
+		do {
+			int run = countRunAndMakeAscending(elements, i, end, comparer);
+			if (run < minRun) {
+				final int force = (((end - i) < minRun) ? (end - i) : minRun);
+				binaryInsertionSort(elements, i, i + force, i + run, comparer);
+				run = force;
+			}
+			runBase[runs] = i;
+			runLength[runs] = run;
+			runs++;
+			//mergeCollapse()
+			while (runs > 1) {
+				int k = runs - 2;
+				if ((k > 0 && runLength[k - 1] <= (runLength[k] + runLength[k + 1])) ||
+					(k > 1 && runLength[k - 2] <= (runLength[k - 1] + runLength[k]))) {
+					if (runLength[k - 1] < runLength[k + 1])
+						k--;
+				} else if (runLength[k] > runLength[k + 1]) {
+					break;
 				}
+				buffer = mergeAt(elements, runBase, runLength, runs, k, comparer, buffer);
+				runs--;
+			}
+			i += run;
+		} while (i < end);
+		while (runs > 1) {
+			int k = runs - 2;
+			if (k > 0 && runLength[k - 1] < runLength[k + 1])
+				k--;
+			buffer = mergeAt(elements, runBase, runLength, runs, k, comparer, buffer);
+			runs--;
+		}
+		return buffer;
+	}
+	
+	private static int minRunLength(int n) {
+		int r = 0;
+		while (n >= MIN_MERGE) {
+			r |= (n & 1);
+			n >>= 1;
+		}
+		return n + r;
+	}
+	
+	//returns the length of the run starting at i, reversing it if it is descending
+	private static <E> int countRunAndMakeAscending(E[] elements, int i, int end, Comparer<E> comparer) {
+		int runEnd = i + 1;
+		if (runEnd == end)
+			return 1;
+		if (comparer.compare(elements[runEnd++], elements[i]) < 0) {
+			//only strictly descending runs can be reversed without breaking stability
+			while (runEnd < end && comparer.compare(elements[runEnd], elements[runEnd - 1]) < 0)
+				runEnd++;
+			for (int a = i, b = runEnd - 1; a < b; a++, b--) {
+				final E e = elements[a];
+				elements[a] = elements[b];
+				elements[b] = e;
+			}
+		} else {
+			while (runEnd < end && comparer.compare(elements[runEnd], elements[runEnd - 1]) >= 0)
+				runEnd++;
+		}
+		return runEnd - i;
+	}
+	
+	//sorts elements[i .. end), given that elements[i .. start) are already sorted
+	private static <E> void binaryInsertionSort(E[] elements, int i, int end, int start, Comparer<E> comparer) {
+		for (; start < end; start++) {
+			final E e = elements[start];
+			//find the position after the last element <= e
+			int l = i, r = start;
+			while (l < r) {
+				final int m = (l + r) >>> 1;
+				if (comparer.compare(e, elements[m]) < 0)
+					r = m;
+				else
+					l = m + 1;
 			}
+			System.arraycopy(elements, l, elements, l + 1, start - l);
+			elements[l] = e;
+		}
+	}
+	
+	//returns how many elements of elements[i .. i + n) are <= e (or < e when strict is true)
+	private static <E> int countBefore(E e, E[] elements, int i, int n, boolean strict, Comparer<E> comparer) {
+		int l = i, r = i + n;
+		while (l < r) {
+			final int m = (l + r) >>> 1;
+			final int c = comparer.compare(elements[m], e);
+			if (c < 0 || (c == 0 && !strict))
+				l = m + 1;
+			else
+				r = m;
+		}
+		return l - i;
+	}
+	
+	private static Object[] ensureCapacity(Object[] buffer, int length) {
+		if (buffer != null && buffer.length >= length)
+			return buffer;
+		int newLength = ((buffer == null) ? MIN_MERGE : buffer.length);
+		while (newLength < length)
+			newLength <<= 1;
+		return new Object[newLength];
+	}
+	
+	//merges the runs k and k + 1
+	private static <E> Object[] mergeAt(E[] elements, int[] runBase, int[] runLength, int runs, int k, Comparer<E> comparer, Object[] buffer) {
+		int base1 = runBase[k], length1 = runLength[k];
+		final int base2 = runBase[k + 1];
+		int length2 = runLength[k + 1];
+		runLength[k] = length1 + length2;
+		if (k == (runs - 3)) {
+			runBase[k + 1] = runBase[k + 2];
+			runLength[k + 1] = runLength[k + 2];
+		}
+		//the first elements of run 1 and the last elements of run 2 are already in place
+		final int skip = countBefore(elements[base2], elements, base1, length1, false, comparer);
+		base1 += skip;
+		length1 -= skip;
+		if (length1 == 0)
+			return buffer;
+		length2 = countBefore(elements[base1 + length1 - 1], elements, base2, length2, true, comparer);
+		if (length2 == 0)
+			return buffer;
+		if (length1 <= length2) {
+			buffer = ensureCapacity(buffer, length1);
+			mergeLow(elements, base1, length1, base2, length2, comparer, buffer);
+		} else {
+			buffer = ensureCapacity(buffer, length2);
+			mergeHigh(elements, base1, length1, base2, length2, comparer, buffer);
+		}
+		return buffer;
+	}
+	
+	//copies run 1 to the buffer and merges from the start
+	@SuppressWarnings("unchecked")
+	private static <E> void mergeLow(E[] elements, int base1, int length1, int base2, int length2, Comparer<E> comparer, Object[] buffer) {
+		System.arraycopy(elements, base1, buffer, 0, length1);
+		int dest = base1, i1 = 0, i2 = base2;
+		final int end2 = base2 + length2;
+		while (i1 < length1 && i2 < end2) {
+			//equal elements are taken from run 1 first
+			if (comparer.compare(elements[i2], (E)buffer[i1]) < 0)
+				elements[dest++] = elements[i2++];
+			else
+				elements[dest++] = (E)buffer[i1++];
+		}
+		if (i1 < length1)
+			System.arraycopy(buffer, i1, elements, dest, length1 - i1);
+		//do not keep references to the elements
+		for (int i = 0; i < length1; i++)
+			buffer[i] = null;
+	}
+	
+	//copies run 2 to the buffer and merges from the end
+	@SuppressWarnings("unchecked")
+	private static <E> void mergeHigh(E[] elements, int base1, int length1, int base2, int length2, Comparer<E> comparer, Object[] buffer) {
+		System.arraycopy(elements, base2, buffer, 0, length2);
+		int dest = base2 + length2 - 1, i1 = base1 + length1 - 1, i2 = length2 - 1;
+		while (i1 >= base1 && i2 >= 0) {
+			//equal elements are taken from run 2 first, as this merge goes backwards
+			if (comparer.compare((E)buffer[i2], elements[i1]) < 0)
+				elements[dest--] = elements[i1--];
+			else
+				elements[dest--] = (E)buffer[i2--];
 		}
+		if (i2 >= 0)
+			System.arraycopy(buffer, 0, elements, base1, i2 + 1);
+		for (int i = 0; i < length2; i++)
+			buffer[i] = null;
 	}
 }
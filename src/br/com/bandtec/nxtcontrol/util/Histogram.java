@@ -0,0 +1,122 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.bandtec.nxtcontrol.util;
+
+//
+//Log-linear histogram of non-negative values: values below 8 are counted
+//exactly, and every power-of-two range above that is split into 8 buckets,
+//so the relative error of a percentile never exceeds 12.5%.
+//
+//This class is not thread-safe.
+//
+public final class Histogram {
+	private static final int SUB_BITS = 3;
+	private final int[] counts;
+	private long count, total, max;
+	
+	public Histogram() {
+		counts = new int[64 << SUB_BITS];
+	}
+	
+	public Histogram(Histogram h) {
+		counts = h.counts.clone();
+		count = h.count;
+		total = h.total;
+		max = h.max;
+	}
+	
+	private static int indexOf(long value) {
+		if (value < (1 << SUB_BITS))
+			return (int)value;
+		final int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return ((exp + 1) << SUB_BITS) + (int)((value >>> exp) & ((1 << SUB_BITS) - 1));
+	}
+	
+	private static long valueOf(int index) {
+		if (index < (1 << SUB_BITS))
+			return index;
+		final int exp = (index >>> SUB_BITS) - 1;
+		return ((long)((1 << SUB_BITS) | (index & ((1 << SUB_BITS) - 1)))) << exp;
+	}
+	
+	public void add(long value) {
+		if (value < 0)
+			value = 0;
+		counts[indexOf(value)]++;
+		count++;
+		total += value;
+		if (value > max)
+			max = value;
+	}
+	
+	public void reset() {
+		for (int i = counts.length - 1; i >= 0; i--)
+			counts[i] = 0;
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public long getMean() {
+		return ((count == 0) ? 0 : (total / count));
+	}
+	
+	public long getMax() {
+		return max;
+	}
+	
+	public long getPercentile(double p) {
+		if (count == 0)
+			return 0;
+		final long target = (long)Math.ceil(p * (double)count);
+		long acc = 0;
+		for (int i = 0; i < counts.length; i++) {
+			acc += counts[i];
+			if (acc >= target && counts[i] != 0)
+				return ((valueOf(i) > max) ? max : valueOf(i));
+		}
+		return max;
+	}
+	
+	@Override
+	public String toString() {
+		if (count == 0)
+			return "(no samples)";
+		return "n=" + count + " mean=" + getMean() + " p50=" + getPercentile(0.5) + " p90=" + getPercentile(0.9) +
+			" p99=" + getPercentile(0.99) + " max=" + max;
+	}
+}
@@ -0,0 +1,480 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.bandtec.nxtcontrol.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+//
+//Append-only journal behind a journaled SerializableMap.
+//
+//File layout: int MAGIC, int VERSION, followed by records
+//int length, int crc32, int key, byte type, payload
+//where length and crc32 cover key, type and payload. A put/remove just
+//updates the map and marks its key as dirty. The journal's own thread waits
+//DEBOUNCE_NANOS after the first change (unless a flush is requested or the
+//journal is being closed), so that a burst of changes is written at once,
+//with a single record per key, holding its latest value. Replaying a record
+//twice is harmless, so a crash can at most lose the changes still pending,
+//and a torn record at the end of the file fails its checksum and is
+//discarded (along with anything after it) on the next open.
+//
+//When the file grows past COMPACT_MIN_LENGTH and twice its size after the
+//last compaction, a copy of the map's arrays is taken (which is the only
+//moment the callers have to wait for the journal's thread), written to a
+//temporary file, which is synced and then atomically renamed over the
+//journal.
+//
+//If a write fails, the changes are not considered written: the journal is
+//rewritten from the map (which holds every pending change) by a compaction,
+//retried with a backoff until it succeeds.
+//
+final class Journal implements Runnable {
+	public static final int MAGIC = 0x4A54584E; //NXTJ
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 8;
+	public static final int RECORD_HEADER_SIZE = 8;
+	private static final byte TYPE_REMOVED = 0x7F;
+	private static final long COMPACT_MIN_LENGTH = 16384;
+	private static final long DEBOUNCE_NANOS = 1000000000L;
+	//after a failed write, the journal is rewritten from the map after a delay that
+	//starts at RETRY_MIN_NANOS and doubles up to RETRY_MAX_NANOS (while being closed,
+	//it is only retried CLOSE_RETRIES times)
+	private static final long RETRY_MIN_NANOS = 250000000L, RETRY_MAX_NANOS = 8000000000L;
+	private static final int CLOSE_RETRIES = 2;
+	//values returned by replay()
+	public static final long NOT_A_JOURNAL = -1;
+	public static final long UNUSABLE = -2;
+	
+	private static final class Buffer {
+		public byte[] data = new byte[256];
+		public int length;
+		
+		public void ensure(int extra) {
+			if (length + extra > data.length) {
+				int newLength = data.length << 1;
+				while (newLength < length + extra)
+					newLength <<= 1;
+				final byte[] tmp = new byte[newLength];
+				System.arraycopy(data, 0, tmp, 0, length);
+				data = tmp;
+			}
+		}
+	}
+	
+	private final File file, tmpFile;
+	private final SerializableMap map;
+	private final CRC32 crc;
+	private final Thread thread;
+	//dirty is just a set of keys (protected by this object's lock)
+	private final SerializableMap dirty;
+	private long appendedCount, writtenCount, fileLength, compactedLength, callerNanos;
+	private boolean alive, needsCompaction, flushRequested;
+	private int failures;
+	private long attempts;
+	
+	public Journal(File file, SerializableMap map, long validLength) {
+		this.file = file;
+		this.tmpFile = new File(file.getPath() + ".tmp");
+		this.map = map;
+		this.crc = new CRC32();
+		this.dirty = new SerializableMap();
+		//anything other than a valid journal is rewritten from scratch, as a compaction
+		this.needsCompaction = (validLength < HEADER_SIZE);
+		this.fileLength = validLength;
+		this.compactedLength = validLength;
+		this.alive = true;
+		this.thread = new Thread(this, "Journal Thread");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	public static long replay(File file, SerializableMap map) {
+		if (!file.exists() || file.length() == 0)
+			return 0;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+				return UNUSABLE;
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt(0) != MAGIC)
+				return NOT_A_JOURNAL;
+			if (buffer.getInt(4) != VERSION)
+				return UNUSABLE;
+			final CRC32 crc = new CRC32();
+			byte[] record = new byte[64];
+			int position = HEADER_SIZE;
+			while (position + RECORD_HEADER_SIZE <= size) {
+				final int length = buffer.getInt(position);
+				if (length < 5 || length > size - position - RECORD_HEADER_SIZE)
+					break;
+				if (length > record.length)
+					record = new byte[length];
+				buffer.position(position + RECORD_HEADER_SIZE);
+				buffer.get(record, 0, length);
+				crc.reset();
+				crc.update(record, 0, length);
+				if ((int)crc.getValue() != buffer.getInt(position + 4) || !decode(record, length, map))
+					break;
+				position += RECORD_HEADER_SIZE + length;
+			}
+			return position;
+		} catch (Throwable ex) {
+			return UNUSABLE;
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (Throwable ex) {
+			}
+		}
+	}
+	
+	private static boolean decode(byte[] record, int length, SerializableMap map) {
+		final int key = Serializer.deserializeInt(record, 0);
+		final byte type = record[4];
+		switch (type) {
+		case SerializableMap.TYPE_INT:
+		case SerializableMap.TYPE_FLOAT:
+			if (length != 9) return false;
+			map.setRaw(key, type, Serializer.deserializeInt(record, 5), null);
+			break;
+		case SerializableMap.TYPE_LONG:
+		case SerializableMap.TYPE_DOUBLE:
+			if (length != 13) return false;
+			map.setRaw(key, type, Serializer.deserializeLong(record, 5), null);
+			break;
+		case SerializableMap.TYPE_STRING:
+			map.setRaw(key, type, 0, new String(record, 5, length - 5, Serializer.UTF8));
+			break;
+		case SerializableMap.TYPE_BUFFER:
+			final byte[] tmp = new byte[length - 5];
+			System.arraycopy(record, 5, tmp, 0, length - 5);
+			map.setRaw(key, type, 0, tmp);
+			break;
+		case TYPE_REMOVED:
+			if (length != 5) return false;
+			map.removeRaw(key);
+			break;
+		default:
+			return false;
+		}
+		return true;
+	}
+	
+	private void encode(Buffer buffer, int key, byte type, long value, Object object) {
+		//only called by the journal's thread (crc is shared)
+		byte[] tmpB = null;
+		final int payload;
+		switch (type) {
+		case SerializableMap.TYPE_INT:
+		case SerializableMap.TYPE_FLOAT:
+			payload = 4;
+			break;
+		case SerializableMap.TYPE_LONG:
+		case SerializableMap.TYPE_DOUBLE:
+			payload = 8;
+			break;
+		case SerializableMap.TYPE_STRING:
+			payload = (tmpB = object.toString().getBytes(Serializer.UTF8)).length;
+			break;
+		case SerializableMap.TYPE_BUFFER:
+			payload = (tmpB = (byte[])object).length;
+			break;
+		default:
+			payload = 0;
+			break;
+		}
+		buffer.ensure(RECORD_HEADER_SIZE + 5 + payload);
+		final byte[] data = buffer.data;
+		final int start = buffer.length, offset = start + RECORD_HEADER_SIZE;
+		Serializer.serializeInt(data, offset, key);
+		data[offset + 4] = type;
+		if (tmpB != null)
+			System.arraycopy(tmpB, 0, data, offset + 5, payload);
+		else if (payload == 4)
+			Serializer.serializeInt(data, offset + 5, (int)value);
+		else if (payload == 8)
+			Serializer.serializeLong(data, offset + 5, value);
+		Serializer.serializeInt(data, start, 5 + payload);
+		crc.reset();
+		crc.update(data, offset, 5 + payload);
+		Serializer.serializeInt(data, start + 4, (int)crc.getValue());
+		buffer.length = offset + 5 + payload;
+	}
+	
+	private void markDirty(int key) {
+		//must be called while holding this object's lock
+		if (!alive)
+			return;
+		if (dirty.size() == 0)
+			notifyAll();
+		dirty.setRaw(key, SerializableMap.TYPE_INT, 0, null);
+		appendedCount++;
+	}
+	
+	public synchronized void put(int key, byte type, long value, Object object) {
+		final long time = System.nanoTime();
+		map.setRaw(key, type, value, object);
+		markDirty(key);
+		callerNanos += System.nanoTime() - time;
+	}
+	
+	public synchronized void remove(int key) {
+		final long time = System.nanoTime();
+		map.removeRaw(key);
+		markDirty(key);
+		callerNanos += System.nanoTime() - time;
+	}
+	
+	public synchronized void requestFlush() {
+		//makes the journal's thread write all pending changes now, without waiting for it
+		if (dirty.size() != 0) {
+			flushRequested = true;
+			notifyAll();
+		}
+	}
+	
+	public void flush() {
+		final long time = System.nanoTime();
+		synchronized (this) {
+			final long target = appendedCount, startAttempts = attempts;
+			flushRequested = true;
+			notifyAll();
+			//if the disk is failing, give up after the first attempt made for this flush
+			while (writtenCount < target && thread.isAlive() && (failures == 0 || attempts == startAttempts)) {
+				try {
+					wait(100);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			callerNanos += System.nanoTime() - time;
+		}
+	}
+	
+	public void close() {
+		final long time = System.nanoTime();
+		synchronized (this) {
+			if (!alive)
+				return;
+			alive = false;
+			notifyAll();
+			//if everything has already been written (e.g., flushed in onPause()),
+			//there is no need to wait for the thread to finish
+			if (writtenCount == appendedCount) {
+				callerNanos += System.nanoTime() - time;
+				return;
+			}
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+		}
+		synchronized (this) {
+			callerNanos += System.nanoTime() - time;
+		}
+	}
+	
+	public synchronized long getCallerTime() {
+		//the time (in nanoseconds) the callers spent inside put(), remove(), flush() and close()
+		return callerNanos;
+	}
+	
+	private FileOutputStream compact(FileOutputStream output) throws Throwable {
+		final SerializableMap copy;
+		synchronized (this) {
+			copy = map.copyRaw();
+		}
+		final Buffer snapshot = new Buffer();
+		snapshot.ensure(HEADER_SIZE);
+		Serializer.serializeInt(snapshot.data, 0, MAGIC);
+		Serializer.serializeInt(snapshot.data, 4, VERSION);
+		snapshot.length = HEADER_SIZE;
+		for (int i = 0; i < copy.size(); i++)
+			encode(snapshot, copy.keyAt(i), copy.typeAt(i), copy.valueAt(i), copy.objectAt(i));
+		if (output != null)
+			output.close();
+		final FileOutputStream tmp = new FileOutputStream(tmpFile);
+		try {
+			tmp.write(snapshot.data, 0, snapshot.length);
+			//the data must be on disk before the rename, or a power loss could
+			//leave us with an empty journal
+			tmp.getFD().sync();
+		} finally {
+			tmp.close();
+		}
+		if (!tmpFile.renameTo(file))
+			throw new IllegalStateException("Could not rename the journal");
+		fileLength = snapshot.length;
+		compactedLength = snapshot.length;
+		needsCompaction = false;
+		return new FileOutputStream(file, true);
+	}
+	
+	private FileOutputStream openForAppending() throws Throwable {
+		if (needsCompaction)
+			return compact(null);
+		if (file.length() != fileLength) {
+			//discard the torn record (and anything after it) found by replay()
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(fileLength);
+			} finally {
+				raf.close();
+			}
+		}
+		return new FileOutputStream(file, true);
+	}
+	
+	@Override
+	public void run() {
+		FileOutputStream output = null;
+		Buffer buffer = new Buffer();
+		int closingAttempts = 0;
+		try {
+			output = openForAppending();
+		} catch (Throwable ex) {
+			needsCompaction = true;
+		}
+		for (;;) {
+			final long count;
+			synchronized (this) {
+				if (failures > 0) {
+					//wait before trying again (while being closed, only CLOSE_RETRIES more
+					//attempts are made, with short delays, so close() does not block for long)
+					final boolean closing = !alive;
+					if (closing && closingAttempts >= CLOSE_RETRIES)
+						break;
+					final long deadline = System.nanoTime() + (closing ? (RETRY_MIN_NANOS << closingAttempts) : Math.min(RETRY_MIN_NANOS << Math.min(failures - 1, 5), RETRY_MAX_NANOS));
+					if (closing)
+						closingAttempts++;
+					long remaining;
+					while (alive != closing && !flushRequested && (remaining = deadline - System.nanoTime()) > 0) {
+						try {
+							wait((remaining / 1000000L) + 1);
+						} catch (InterruptedException e) {
+						}
+					}
+				} else {
+					while (alive && dirty.size() == 0) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+						}
+					}
+					//give the callers some time to change more values
+					final long deadline = System.nanoTime() + DEBOUNCE_NANOS;
+					long remaining;
+					while (alive && !flushRequested && (remaining = deadline - System.nanoTime()) > 0) {
+						try {
+							wait((remaining / 1000000L) + 1);
+						} catch (InterruptedException e) {
+						}
+					}
+					if (dirty.size() == 0)
+						break;
+				}
+				flushRequested = false;
+				//encode the latest value of every dirty key (after a failure, the
+				//compaction below writes the whole map, including these keys)
+				for (int i = 0; i < dirty.size(); i++) {
+					final int key = dirty.keyAt(i), index = map.indexOfRaw(key);
+					if (index < 0)
+						encode(buffer, key, TYPE_REMOVED, 0, null);
+					else
+						encode(buffer, key, map.typeAt(index), map.valueAt(index), map.objectAt(index));
+				}
+				dirty.clearRaw();
+				count = appendedCount;
+			}
+			boolean failed = false;
+			try {
+				if (output == null) {
+					//a previous failure left us without a file, so rewrite it
+					//from the map, which already contains the pending changes
+					needsCompaction = true;
+					output = openForAppending();
+				} else {
+					output.write(buffer.data, 0, buffer.length);
+					fileLength += buffer.length;
+					if (fileLength >= COMPACT_MIN_LENGTH && fileLength >= (compactedLength << 1)) {
+						final FileOutputStream o = output;
+						output = null;
+						output = compact(o);
+					}
+				}
+			} catch (Throwable ex) {
+				if (output != null) {
+					try {
+						output.close();
+					} catch (Throwable ex2) {
+					}
+					output = null;
+				}
+				//the records just encoded may not be in the file, so the next
+				//attempt must rewrite it from the map
+				needsCompaction = true;
+				failed = true;
+			}
+			buffer.length = 0;
+			synchronized (this) {
+				attempts++;
+				failures = (failed ? (failures + 1) : 0);
+				if (failures == 0)
+					writtenCount = count;
+				notifyAll();
+			}
+		}
+		try {
+			if (output != null)
+				output.close();
+		} catch (Throwable ex) {
+		}
+		synchronized (this) {
+			//changes that could not be written are not reported as written
+			if (failures == 0)
+				writtenCount = appendedCount;
+			notifyAll();
+		}
+	}
+}
@@ -32,76 +32,172 @@
 //
 package br.com.bandtec.nxtcontrol.util;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import android.content.Context;
-import android.util.SparseArray;
 
+//
+//Keys are kept sorted in keys[], and every value is stored in the parallel
+//arrays types[] and values[] (int, long, float and double values are stored
+//as their raw bits) or objects[] (strings and buffers), so primitive values
+//are never boxed.
+//
+//Files written by serializeIndexed() start with a header (INDEX_MAGIC,
+//INDEX_VERSION, entry count, reserved) followed by an index with one 16-byte
+//entry per key, sorted by key: int key, int type, long value, where the value
+//of strings and buffers is (offset << 32) | length of their bytes, which are
+//stored after the index. openIndexed() just maps such a file, keys are looked
+//up directly in the mapped index, and a value is decoded into the arrays
+//(where it stays) the first time it is accessed. Keys removed from such a map
+//are kept as TYPE_REMOVED entries until loadAll() is called.
+//
 public final class SerializableMap {
-	private static final int TYPE_INT = 0;
-	private static final int TYPE_LONG = 1;
-	private static final int TYPE_FLOAT = 2;
-	private static final int TYPE_DOUBLE = 3;
-	private static final int TYPE_STRING = 4;
-	private static final int TYPE_BUFFER = 5;
+	static final byte TYPE_INT = 0;
+	static final byte TYPE_LONG = 1;
+	static final byte TYPE_FLOAT = 2;
+	static final byte TYPE_DOUBLE = 3;
+	static final byte TYPE_STRING = 4;
+	static final byte TYPE_BUFFER = 5;
+	private static final byte TYPE_REMOVED = -1;
+	public static final int INDEX_MAGIC = 0x49545846; //FXTI
+	public static final int INDEX_VERSION = 1;
+	private static final int INDEX_HEADER_SIZE = 16;
+	private static final int INDEX_ENTRY_SIZE = 16;
 	
-	private final SparseArray<Object> dict;
+	private int[] keys;
+	private byte[] types;
+	private long[] values;
+	private Object[] objects;
+	private int size;
+	private Journal journal;
+	private long persistenceNanos;
+	private ByteBuffer mapped;
+	private int mappedCount;
 	
 	public SerializableMap() {
-		dict = new SparseArray<Object>();
+		this(16);
 	}
 	
 	public SerializableMap(int initialCapacity) {
-		dict = new SparseArray<Object>(initialCapacity);
+		if (initialCapacity < 4)
+			initialCapacity = 4;
+		keys = new int[initialCapacity];
+		types = new byte[initialCapacity];
+		values = new long[initialCapacity];
+		objects = new Object[initialCapacity];
+	}
+	
+	public static SerializableMap openJournaled(Context context, String fileName) {
+		//opens (or creates) a map whose changes are appended to a crash-safe journal
+		//as soon as they are made, instead of being saved all at once by serialize()
+		final File file = context.getFileStreamPath(fileName);
+		SerializableMap map = new SerializableMap(32);
+		long validLength = Journal.replay(file, map);
+		if (validLength == Journal.NOT_A_JOURNAL) {
+			//a file written by serialize(), which is converted into a journal
+			map = deserialize(context, fileName);
+			if (map == null)
+				map = new SerializableMap(32);
+		} else if (validLength == Journal.UNUSABLE) {
+			map.size = 0;
+		}
+		map.journal = new Journal(file, map, validLength);
+		return map;
+	}
+	
+	public void requestFlush() {
+		//asks the journal to write all pending changes now, without waiting for it
+		//(should be called when the activity is paused)
+		if (journal != null)
+			journal.requestFlush();
+	}
+	
+	public void flush() {
+		//blocks until all the changes made so far have been written to the journal
+		if (journal != null)
+			journal.flush();
+	}
+	
+	public void close() {
+		//writes all pending changes, and stops journaling them from now on
+		if (journal != null) {
+			journal.close();
+			persistenceNanos += journal.getCallerTime();
+			journal = null;
+		}
+	}
+	
+	public long getPersistenceTime() {
+		//the time (in nanoseconds) the callers of this map have spent persisting
+		//it: inside serialize()/serializeIndexed(), or inside put(), remove(),
+		//flush() and close() for a journaled map
+		return persistenceNanos + ((journal == null) ? 0 : journal.getCallerTime());
 	}
 	
 	public boolean serialize(Context context, String fileName) {
+		final long time = System.nanoTime();
+		try {
+			return serializeInternal(context, fileName);
+		} finally {
+			persistenceNanos += System.nanoTime() - time;
+		}
+	}
+	
+	private boolean serializeInternal(Context context, String fileName) {
+		loadAll();
+		//the entire file is built in memory and written at once, with the keys in
+		//ascending order, so that deserialize() only needs to append them
+		final byte[][] buffers = new byte[size][];
+		int length = 0;
+		for (int i = 0; i < size; i++) {
+			switch (types[i]) {
+			case TYPE_LONG:
+			case TYPE_DOUBLE:
+				length += 13;
+				break;
+			case TYPE_STRING:
+				buffers[i] = objects[i].toString().getBytes(Serializer.UTF8);
+				length += 5 + Serializer.getStringLength(buffers[i]);
+				break;
+			case TYPE_BUFFER:
+				buffers[i] = (byte[])objects[i];
+				length += 5 + Serializer.getStringLength(buffers[i]);
+				break;
+			default:
+				length += 9;
+				break;
+			}
+		}
+		final ByteBuffer buf = Serializer.allocate(length);
+		for (int i = 0; i < size; i++) {
+			buf.putInt(keys[i]);
+			buf.put(types[i]);
+			switch (types[i]) {
+			case TYPE_LONG:
+			case TYPE_DOUBLE:
+				buf.putLong(values[i]);
+				break;
+			case TYPE_STRING:
+			case TYPE_BUFFER:
+				Serializer.serializeString(buf, buffers[i]);
+				break;
+			default:
+				buf.putInt((int)values[i]);
+				break;
+			}
+		}
+		buf.flip();
 		FileOutputStream fs = null;
 		try {
 			fs = context.openFileOutput(fileName, 0);
-			final byte[] buf = new byte[16];
-			for (int i = dict.size() - 1; i >= 0; i--) {
-				final int k = dict.keyAt(i);
-				final Object v = dict.get(k);
-				Serializer.serializeInt(buf, 0, k);
-				if (v instanceof Integer) {
-					buf[4] = TYPE_INT;
-					Serializer.serializeInt(buf, 5, (Integer)v);
-					fs.write(buf, 0, 9);
-				} else if (v instanceof Long) {
-					buf[4] = TYPE_LONG;
-					Serializer.serializeLong(buf, 5, (Long)v);
-					fs.write(buf, 0, 13);
-				} else if (v instanceof Float) {
-					buf[4] = TYPE_FLOAT;
-					Serializer.serializeFloat(buf, 5, (Float)v);
-					fs.write(buf, 0, 9);
-				} else if (v instanceof Double) {
-					buf[4] = TYPE_DOUBLE;
-					Serializer.serializeDouble(buf, 5, (Double)v);
-					fs.write(buf, 0, 13);
-				} else if (v instanceof String) {
-					final String tmpS = v.toString();
-					byte[] tmpB = null;
-					int tmp = 0;
-					if (tmpS != null && tmpS.length() > 0) {
-						tmpB = tmpS.getBytes();
-						tmp = tmpB.length;
-					}
-					buf[4] = TYPE_STRING;
-					Serializer.serializeInt(buf, 5, tmp);
-					fs.write(buf, 0, 9);
-					if (tmp != 0) fs.write(tmpB, 0, tmp);
-				} else {
-					final byte[] tmpB = (byte[])v;
-					final int tmp = (tmpB != null ? tmpB.length : 0);
-					buf[4] = TYPE_BUFFER;
-					Serializer.serializeInt(buf, 5, tmp);
-					fs.write(buf, 0, 9);
-					if (tmp != 0) fs.write(tmpB, 0, tmp);
-				}
-			}
+			Serializer.writeFully(fs.getChannel(), buf);
 			return true;
 		} catch (Throwable ex) {
 		} finally {
@@ -113,54 +209,51 @@ public final class SerializableMap {
 		}
 		return false;
 	}
-
-	public static SerializableMap deserialize(Context context, String fileName) {
-		FileInputStream fs = null;
+	
+	private static void decode(ByteBuffer buf, SerializableMap dict) {
+		//stops at the first incomplete or unknown entry, keeping everything read so far
 		try {
-			fs = context.openFileInput(fileName);
-			byte[] buf = new byte[16];
-			int tmp;
-			SerializableMap dict = new SerializableMap(32);
-			while (fs.read(buf, 0, 9) == 9) {
-				switch ((int)buf[4]) {
+			while (buf.remaining() >= 9) {
+				final int key = buf.getInt();
+				final byte type = buf.get();
+				switch (type) {
 				case TYPE_INT:
-					dict.put(Serializer.deserializeInt(buf, 0), Serializer.deserializeInt(buf, 5));
-					break;
-				case TYPE_LONG:
-					if (fs.read(buf, 9, 4) != 4) return dict;
-					dict.put(Serializer.deserializeInt(buf, 0), Serializer.deserializeLong(buf, 5));
-					break;
 				case TYPE_FLOAT:
-					dict.put(Serializer.deserializeInt(buf, 0), Serializer.deserializeFloat(buf, 5));
+					dict.setRaw(key, type, buf.getInt(), null);
 					break;
+				case TYPE_LONG:
 				case TYPE_DOUBLE:
-					if (fs.read(buf, 9, 4) != 4) return dict;
-					dict.put(Serializer.deserializeInt(buf, 0), Serializer.deserializeDouble(buf, 5));
+					dict.setRaw(key, type, buf.getLong(), null);
 					break;
 				case TYPE_STRING:
-					tmp = Serializer.deserializeInt(buf, 5);
-					if (tmp <= 0) {
-						dict.put(Serializer.deserializeInt(buf, 0), "");
-					} else {
-						byte[] tmpB = new byte[tmp];
-						if (fs.read(tmpB, 0, tmp) != tmp) return dict;
-						dict.put(Serializer.deserializeInt(buf, 0), new String(tmpB, 0, tmp));
-					}
+					final String str = Serializer.deserializeString(buf);
+					dict.setRaw(key, type, 0, (str == null) ? "" : str);
 					break;
 				case TYPE_BUFFER:
-					tmp = Serializer.deserializeInt(buf, 5);
-					if (tmp <= 0) {
-						dict.put(Serializer.deserializeInt(buf, 0), new byte[0]);
-					} else {
-						byte[] tmpB = new byte[tmp];
-						if (fs.read(tmpB, 0, tmp) != tmp) return dict;
-						dict.put(Serializer.deserializeInt(buf, 0), tmpB);
-					}
+					final int len = buf.getInt();
+					final byte[] tmpB = new byte[(len <= 0) ? 0 : len];
+					buf.get(tmpB, 0, tmpB.length);
+					dict.setRaw(key, type, 0, tmpB);
 					break;
 				default:
-					return dict;
+					return;
 				}
 			}
+		} catch (BufferUnderflowException ex) {
+		}
+	}
+
+	public static SerializableMap deserialize(Context context, String fileName) {
+		FileInputStream fs = null;
+		try {
+			fs = context.openFileInput(fileName);
+			//read the entire file at once
+			final FileChannel channel = fs.getChannel();
+			final ByteBuffer buf = Serializer.allocate((int)channel.size());
+			Serializer.readFully(channel, buf);
+			buf.flip();
+			final SerializableMap dict = new SerializableMap(32);
+			decode(buf, dict);
 			return dict;
 		} catch (Throwable ex) {
 		} finally {
@@ -173,147 +266,455 @@ public final class SerializableMap {
 		}
 		return null;
 	}
-
+	
+	private int indexOf(int key) {
+		//returns the index of key, or ~(the index where it should be inserted)
+		if (size == 0 || key > keys[size - 1])
+			return ~size;
+		int lo = 0, hi = size - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int k = keys[mid];
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return ~lo;
+	}
+	
+	//the methods below are used by Journal
+	int size() {
+		return size;
+	}
+	
+	int keyAt(int index) {
+		return keys[index];
+	}
+	
+	byte typeAt(int index) {
+		return types[index];
+	}
+	
+	long valueAt(int index) {
+		return values[index];
+	}
+	
+	Object objectAt(int index) {
+		return objects[index];
+	}
+	
+	int indexOfRaw(int key) {
+		return indexOf(key);
+	}
+	
+	SerializableMap copyRaw() {
+		//strings are immutable, and buffers are not expected to be changed after
+		//being stored, so a shallow copy of the arrays is enough
+		final SerializableMap copy = new SerializableMap(size);
+		System.arraycopy(keys, 0, copy.keys, 0, size);
+		System.arraycopy(types, 0, copy.types, 0, size);
+		System.arraycopy(values, 0, copy.values, 0, size);
+		System.arraycopy(objects, 0, copy.objects, 0, size);
+		copy.size = size;
+		return copy;
+	}
+	
+	void clearRaw() {
+		for (int i = size - 1; i >= 0; i--)
+			objects[i] = null;
+		size = 0;
+	}
+	
+	void setRaw(int key, byte type, long value, Object object) {
+		int i = indexOf(key);
+		if (i < 0) {
+			i = ~i;
+			if (size == keys.length) {
+				final int newLength = size << 1;
+				final int[] k = new int[newLength];
+				final byte[] t = new byte[newLength];
+				final long[] v = new long[newLength];
+				final Object[] o = new Object[newLength];
+				System.arraycopy(keys, 0, k, 0, i);
+				System.arraycopy(types, 0, t, 0, i);
+				System.arraycopy(values, 0, v, 0, i);
+				System.arraycopy(objects, 0, o, 0, i);
+				System.arraycopy(keys, i, k, i + 1, size - i);
+				System.arraycopy(types, i, t, i + 1, size - i);
+				System.arraycopy(values, i, v, i + 1, size - i);
+				System.arraycopy(objects, i, o, i + 1, size - i);
+				keys = k;
+				types = t;
+				values = v;
+				objects = o;
+			} else if (i < size) {
+				System.arraycopy(keys, i, keys, i + 1, size - i);
+				System.arraycopy(types, i, types, i + 1, size - i);
+				System.arraycopy(values, i, values, i + 1, size - i);
+				System.arraycopy(objects, i, objects, i + 1, size - i);
+			}
+			keys[i] = key;
+			size++;
+		}
+		types[i] = type;
+		values[i] = value;
+		objects[i] = object;
+	}
+	
+	void removeRaw(int key) {
+		final int i = indexOf(key);
+		if (i >= 0) {
+			size--;
+			System.arraycopy(keys, i + 1, keys, i, size - i);
+			System.arraycopy(types, i + 1, types, i, size - i);
+			System.arraycopy(values, i + 1, values, i, size - i);
+			System.arraycopy(objects, i + 1, objects, i, size - i);
+			objects[size] = null;
+		}
+	}
+	
+	private void set(int key, byte type, long value, Object object) {
+		if (journal != null)
+			journal.put(key, type, value, object);
+		else
+			setRaw(key, type, value, object);
+	}
+	
+	private int findMapped(int key) {
+		//returns the index of key in the mapped index, or -1
+		int lo = 0, hi = mappedCount - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int k = mapped.getInt(INDEX_HEADER_SIZE + (mid * INDEX_ENTRY_SIZE));
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+	
+	private void decodeMapped(int entry) {
+		final int position = INDEX_HEADER_SIZE + (entry * INDEX_ENTRY_SIZE);
+		final int key = mapped.getInt(position);
+		final int type = mapped.getInt(position + 4);
+		final long value = mapped.getLong(position + 8);
+		switch (type) {
+		case TYPE_INT:
+		case TYPE_FLOAT:
+		case TYPE_LONG:
+		case TYPE_DOUBLE:
+			setRaw(key, (byte)type, value, null);
+			break;
+		case TYPE_STRING:
+		case TYPE_BUFFER:
+			final int offset = (int)(value >>> 32), length = (int)value;
+			if (offset < 0 || length < 0 || offset > mapped.limit() - length) {
+				//a damaged entry is treated as a removed one
+				setRaw(key, TYPE_REMOVED, 0, null);
+				break;
+			}
+			final byte[] tmpB = new byte[length];
+			mapped.position(offset);
+			mapped.get(tmpB, 0, length);
+			setRaw(key, (byte)type, 0, (type == TYPE_STRING) ? new String(tmpB, 0, length, Serializer.UTF8) : tmpB);
+			break;
+		default:
+			setRaw(key, TYPE_REMOVED, 0, null);
+			break;
+		}
+	}
+	
+	private int find(int key) {
+		//returns the index of key in the arrays (decoding it from the mapped file
+		//if this is the first time it is accessed), or -1
+		int i = indexOf(key);
+		if (i < 0) {
+			if (mapped == null)
+				return -1;
+			final int entry = findMapped(key);
+			if (entry < 0)
+				return -1;
+			decodeMapped(entry);
+			i = indexOf(key);
+		}
+		return ((types[i] == TYPE_REMOVED) ? -1 : i);
+	}
+	
+	public static SerializableMap openIndexed(Context context, String fileName) {
+		//opens a file written by serializeIndexed() without decoding any of its
+		//values (other files are just deserialized)
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(context.getFileStreamPath(fileName), "r");
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			if (size >= INDEX_HEADER_SIZE && size <= Integer.MAX_VALUE) {
+				final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				final int count = buf.getInt(8);
+				if (buf.getInt(0) == INDEX_MAGIC && buf.getInt(4) == INDEX_VERSION && count >= 0 && count <= (size - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE) {
+					final SerializableMap map = new SerializableMap(32);
+					map.mapped = buf;
+					map.mappedCount = count;
+					return map;
+				}
+			}
+		} catch (Throwable ex) {
+			return null;
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (Throwable ex) {
+			}
+		}
+		return deserialize(context, fileName);
+	}
+	
+	public void loadAll() {
+		//decodes every value still in the mapped file, releases it, and discards removed keys
+		if (mapped == null)
+			return;
+		for (int entry = 0; entry < mappedCount; entry++) {
+			if (indexOf(mapped.getInt(INDEX_HEADER_SIZE + (entry * INDEX_ENTRY_SIZE))) < 0)
+				decodeMapped(entry);
+		}
+		mapped = null;
+		mappedCount = 0;
+		int j = 0;
+		for (int i = 0; i < size; i++) {
+			if (types[i] != TYPE_REMOVED) {
+				keys[j] = keys[i];
+				types[j] = types[i];
+				values[j] = values[i];
+				objects[j] = objects[i];
+				j++;
+			}
+		}
+		for (int i = j; i < size; i++)
+			objects[i] = null;
+		size = j;
+	}
+	
+	public boolean serializeIndexed(Context context, String fileName) {
+		final long time = System.nanoTime();
+		try {
+			return serializeIndexedInternal(context, fileName);
+		} finally {
+			persistenceNanos += System.nanoTime() - time;
+		}
+	}
+	
+	private boolean serializeIndexedInternal(Context context, String fileName) {
+		//the data is written to a temporary file first, which then replaces the
+		//original one, so the file is never left half-written (this also allows
+		//the original file to be mapped by this map)
+		loadAll();
+		final byte[][] buffers = new byte[size][];
+		int length = INDEX_HEADER_SIZE + (size * INDEX_ENTRY_SIZE);
+		for (int i = 0; i < size; i++) {
+			if (types[i] == TYPE_STRING)
+				buffers[i] = objects[i].toString().getBytes(Serializer.UTF8);
+			else if (types[i] == TYPE_BUFFER)
+				buffers[i] = (byte[])objects[i];
+			if (buffers[i] != null)
+				length += buffers[i].length;
+		}
+		final ByteBuffer buf = Serializer.allocate(length);
+		buf.putInt(INDEX_MAGIC);
+		buf.putInt(INDEX_VERSION);
+		buf.putInt(size);
+		buf.putInt(0);
+		int offset = INDEX_HEADER_SIZE + (size * INDEX_ENTRY_SIZE);
+		for (int i = 0; i < size; i++) {
+			buf.putInt(keys[i]);
+			buf.putInt(types[i]);
+			if (buffers[i] != null) {
+				buf.putLong(((long)offset << 32) | (long)buffers[i].length);
+				offset += buffers[i].length;
+			} else {
+				buf.putLong(values[i]);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			if (buffers[i] != null)
+				buf.put(buffers[i]);
+		}
+		buf.flip();
+		final String tmpName = fileName + ".tmp";
+		FileOutputStream fs = null;
+		try {
+			fs = context.openFileOutput(tmpName, 0);
+			Serializer.writeFully(fs.getChannel(), buf);
+			fs.getFD().sync();
+			fs.close();
+			fs = null;
+			return context.getFileStreamPath(tmpName).renameTo(context.getFileStreamPath(fileName));
+		} catch (Throwable ex) {
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+			}
+		}
+		return false;
+	}
+	
 	public boolean containsKey(int key) {
-		return (dict.indexOfKey(key) >= 0);
+		//does not decode the value
+		final int i = indexOf(key);
+		if (i >= 0)
+			return (types[i] != TYPE_REMOVED);
+		return (mapped != null && findMapped(key) >= 0);
 	}
 
 	public void remove(int key) {
-		dict.remove(key);
+		if (journal != null)
+			journal.remove(key);
+		else if (mapped != null)
+			setRaw(key, TYPE_REMOVED, 0, null);
+		else
+			removeRaw(key);
 	}
 
 	public void put(int key, boolean value) {
-		dict.put(key, (value ? (int)1 : (int)0));
+		set(key, TYPE_INT, (value ? 1 : 0), null);
 	}
 
 	public void put(int key, int value) {
-		dict.put(key, value);
+		set(key, TYPE_INT, value, null);
 	}
 
 	public void put(int key, long value) {
-		dict.put(key, value);
+		set(key, TYPE_LONG, value, null);
 	}
 
 	public void put(int key, float value) {
-		dict.put(key, value);
+		set(key, TYPE_FLOAT, Float.floatToRawIntBits(value), null);
 	}
 
 	public void put(int key, double value) {
-		dict.put(key, value);
+		set(key, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
 	}
 
 	public void put(int key, String value) {
-		dict.put(key, value);
+		if (value == null)
+			remove(key);
+		else
+			set(key, TYPE_STRING, 0, value);
 	}
 
 	public void put(int key, byte[] value) {
-		dict.put(key, value);
+		if (value == null)
+			remove(key);
+		else
+			set(key, TYPE_BUFFER, 0, value);
 	}
 
 	public Object get(int key) {
-		return dict.get(key);
+		final int i = find(key);
+		if (i < 0)
+			return null;
+		switch (types[i]) {
+		case TYPE_INT:
+			return (int)values[i];
+		case TYPE_LONG:
+			return values[i];
+		case TYPE_FLOAT:
+			return Float.intBitsToFloat((int)values[i]);
+		case TYPE_DOUBLE:
+			return Double.longBitsToDouble(values[i]);
+		default:
+			return objects[i];
+		}
 	}
 
 	public Object get(int key, Object defaultValue) {
-		final Object o = dict.get(key);
+		final Object o = get(key);
 		return ((o == null) ? defaultValue : o);
 	}
 
 	public boolean getBoolean(int key) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Integer))
-			return false;
-		return ((Integer)o != 0);
+		return getBoolean(key, false);
 	}
 
 	public boolean getBoolean(int key, boolean defaultValue) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Integer))
+		final int i = find(key);
+		if (i < 0 || types[i] != TYPE_INT)
 			return defaultValue;
-		return ((Integer)o != 0);
+		return (values[i] != 0);
 	}
 
 	public int getInt(int key) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Integer))
-			return 0;
-		return (Integer)o;
+		return getInt(key, 0);
 	}
 
 	public int getInt(int key, int defaultValue) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Integer))
+		final int i = find(key);
+		if (i < 0 || types[i] != TYPE_INT)
 			return defaultValue;
-		return (Integer)o;
+		return (int)values[i];
 	}
 
 	public long getLong(int key) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Long))
-			return 0;
-		return (Long)o;
+		return getLong(key, 0);
 	}
 
 	public long getLong(int key, long defaultValue) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Long))
+		final int i = find(key);
+		if (i < 0 || types[i] != TYPE_LONG)
 			return defaultValue;
-		return (Long)o;
+		return values[i];
 	}
 
 	public float getFloat(int key) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Float))
-			return 0;
-		return (Float)o;
+		return getFloat(key, 0);
 	}
 
 	public float getFloat(int key, float defaultValue) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Float))
+		final int i = find(key);
+		if (i < 0 || types[i] != TYPE_FLOAT)
 			return defaultValue;
-		return (Float)o;
+		return Float.intBitsToFloat((int)values[i]);
 	}
 
 	public double getDouble(int key) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Double))
-			return 0;
-		return (Double)o;
+		return getDouble(key, 0);
 	}
 
 	public double getDouble(int key, double defaultValue) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof Double))
+		final int i = find(key);
+		if (i < 0 || types[i] != TYPE_DOUBLE)
 			return defaultValue;
-		return (Double)o;
+		return Double.longBitsToDouble(values[i]);
 	}
 
 	public String getString(int key) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof String))
-			return null;
-		return o.toString();
+		return getString(key, null);
 	}
 
 	public String getString(int key, String defaultValue) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof String))
+		final int i = find(key);
+		if (i < 0 || types[i] != TYPE_STRING)
 			return defaultValue;
-		return o.toString();
+		return objects[i].toString();
 	}
 
 	public byte[] getBuffer(int key) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof byte[]))
-			return null;
-		return (byte[])o;
+		return getBuffer(key, null);
 	}
 
 	public byte[] getBuffer(int key, byte[] defaultValue) {
-		final Object o = dict.get(key);
-		if (o == null || !(o instanceof byte[]))
+		final int i = find(key);
+		if (i < 0 || types[i] != TYPE_BUFFER)
 			return defaultValue;
-		return (byte[])o;
+		return (byte[])objects[i];
 	}
 }
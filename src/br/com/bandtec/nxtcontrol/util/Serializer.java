@@ -32,19 +32,70 @@
 //
 package br.com.bandtec.nxtcontrol.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
+//
+//All values are stored in little-endian order. Strings are stored as an int
+//length (-1 for null) followed by their UTF-8 bytes (which is what Android
+//uses by default, but not necessarily other JVMs).
+//
+//The stream methods write/read each value with a single call, and the
+//ByteBuffer methods are meant for bulk encoding: fill a buffer created by
+//allocate() and write it with writeFully(), or read a whole file with
+//readFully() and decode it.
+//
 public final class Serializer {
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	private Serializer() {
 	}
 	
+	public static ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	public static void readFully(InputStream is, byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			final int len = is.read(buffer, offset, length);
+			if (len < 0)
+				throw new EOFException();
+			offset += len;
+			length -= len;
+		}
+	}
+	
+	public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		//fills the buffer up to its limit
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException();
+		}
+	}
+	
+	public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		//writes the buffer up to its limit
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+	
+	public static int getStringLength(byte[] bytes) {
+		//the number of bytes serializeString() uses to store a string with the given bytes
+		return 4 + ((bytes == null) ? 0 : bytes.length);
+	}
+	
 	public static void serializeInt(OutputStream os, int value) throws IOException {
-		os.write(value);
-		os.write(value >>> 8);
-		os.write(value >>> 16);
-		os.write(value >>> 24);
+		final byte[] tmp = new byte[4];
+		serializeInt(tmp, 0, value);
+		os.write(tmp, 0, 4);
 	}
 	
 	public static void serializeInt(byte[] output, int offset, int value) {
@@ -55,14 +106,9 @@ public final class Serializer {
 	}
 	
 	public static void serializeLong(OutputStream os, long value) throws IOException {
-		os.write((int)value);
-		os.write((int)(value >>> 8));
-		os.write((int)(value >>> 16));
-		os.write((int)(value >>> 24));
-		os.write((int)(value >>> 32));
-		os.write((int)(value >>> 40));
-		os.write((int)(value >>> 48));
-		os.write((int)(value >>> 56));
+		final byte[] tmp = new byte[8];
+		serializeLong(tmp, 0, value);
+		os.write(tmp, 0, 8);
 	}
 	
 	public static void serializeLong(byte[] output, int offset, long value) {
@@ -93,19 +139,29 @@ public final class Serializer {
 	}
 	
 	public static void serializeString(OutputStream os, String value) throws IOException {
-		if (value == null) {
-			serializeInt(os, -1);
-		} else if (value.length() == 0) {
-			serializeInt(os, 0);
+		final byte[] bytes = ((value == null) ? null : value.getBytes(UTF8));
+		final byte[] tmp = new byte[getStringLength(bytes)];
+		serializeInt(tmp, 0, (bytes == null) ? -1 : bytes.length);
+		if (bytes != null)
+			System.arraycopy(bytes, 0, tmp, 4, bytes.length);
+		os.write(tmp, 0, tmp.length);
+	}
+	
+	public static void serializeString(ByteBuffer output, byte[] bytes) {
+		//bytes should be obtained from String.getBytes(UTF8) (or be null), and the
+		//buffer must be little-endian and have getStringLength(bytes) bytes left
+		if (bytes == null) {
+			output.putInt(-1);
 		} else {
-			final byte[] tmp = value.getBytes();
-			serializeInt(os, tmp.length);
-			os.write(tmp);
+			output.putInt(bytes.length);
+			output.put(bytes);
 		}
 	}
 	
 	public static int deserializeInt(InputStream is) throws IOException {
-		return ((is.read() & 0xFF) | ((is.read() & 0xFF) << 8) | ((is.read() & 0xFF) << 16) | ((is.read() & 0xFF) << 24));
+		final byte[] tmp = new byte[4];
+		readFully(is, tmp, 0, 4);
+		return deserializeInt(tmp, 0);
 	}
 	
 	public static int deserializeInt(byte[] input, int offset) {
@@ -113,8 +169,9 @@ public final class Serializer {
 	}
 	
 	public static long deserializeLong(InputStream is) throws IOException {
-		return ((long)(is.read() & 0xFF) | (long)((is.read() & 0xFF) << 8) | (long)((is.read() & 0xFF) << 16) | (long)((is.read() & 0xFF) << 24) |
-				(long)((is.read() & 0xFF) << 32) | (long)((is.read() & 0xFF) << 40) | (long)((is.read() & 0xFF) << 48) | (long)((is.read() & 0xFF) << 56));
+		final byte[] tmp = new byte[8];
+		readFully(is, tmp, 0, 8);
+		return deserializeLong(tmp, 0);
 	}
 	
 	public static long deserializeLong(byte[] input, int offset) {
@@ -139,13 +196,33 @@ public final class Serializer {
 	}
 	
 	public static String deserializeString(InputStream is) throws IOException {
-		int len = deserializeInt(is);
+		final int len = deserializeInt(is);
+		if (len < 0)
+			return null;
+		if (len == 0)
+			return "";
+		final byte[] tmp = new byte[len];
+		readFully(is, tmp, 0, len);
+		return new String(tmp, 0, len, UTF8);
+	}
+	
+	public static String deserializeString(ByteBuffer input) {
+		//the buffer must be little-endian, and a BufferUnderflowException is thrown
+		//if it does not contain the whole string
+		final int len = input.getInt();
 		if (len < 0)
 			return null;
 		if (len == 0)
 			return "";
+		if (input.hasArray()) {
+			final int position = input.position();
+			if (len > input.remaining())
+				throw new BufferUnderflowException();
+			input.position(position + len);
+			return new String(input.array(), input.arrayOffset() + position, len, UTF8);
+		}
 		final byte[] tmp = new byte[len];
-		len = is.read(tmp, 0, len);
-		return new String(tmp, 0, len);
+		input.get(tmp, 0, len);
+		return new String(tmp, 0, len, UTF8);
 	}
 }
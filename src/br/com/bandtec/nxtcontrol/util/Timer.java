@@ -32,181 +32,422 @@
 //
 package br.com.bandtec.nxtcontrol.util;
 
-import android.os.SystemClock;
+import java.util.concurrent.locks.LockSupport;
+
 import br.com.bandtec.nxtcontrol.activity.MainHandler;
 
+//
+//All timers share a single scheduler thread, which keeps the started timers
+//in a binary min-heap ordered by their deadlines. Starting, stopping and
+//firing a timer cost O(log n), and a timer costs no more than its own fields
+//(there is no thread per timer).
+//
+//Since the callbacks of timers that are not handled on the main thread are
+//called on the scheduler thread, they should be short.
+//
+//Deadlines are absolute System.nanoTime() values. A precise timer (see
+//setPrecise()) schedules its n-th tick at exactly start + n * interval, so
+//delays never accumulate; ticks that could not be delivered in time are
+//coalesced into a single late tick and counted as missed, and the lateness
+//of every tick is recorded in a histogram (in microseconds). The scheduler
+//waits for a precise deadline with LockSupport.parkNanos(), outside lock,
+//instead of relying on the coarse granularity of wait() (which rounds the
+//timeout up to the next millisecond on some VMs). It never spins, as a
+//spinning scheduler would hold back every other timer, and yielding the CPU
+//while spinning costs a whole time slice when other threads are busy.
+//
+//A timer handled on the main thread never has more than one callback
+//pending in the main thread's queue: ticks that happen while the previous
+//callback has not run yet are dropped (see getDroppedTickCount()), and the
+//callback can use getLastTickTime() to find out when the latest tick
+//actually happened, in order to catch up.
+//
 public class Timer {
 	public static interface TimerHandler {
 		public void handleTimer(Timer timer, Object param);
 	}
 	
-	private final Object sync;
+	private static final Object lock = new Object();
+	private static Timer[] heap = new Timer[16];
+	private static int heapSize;
+	private static Thread schedulerThread;
+	private static Timer running;
+	
 	private final Runnable runnable;
 	private final TimerHandler timerHandler;
 	private final String name;
 	private volatile int interval, version;
-	private volatile boolean handledOnMain, compensatingForDelays;
-	private volatile TimerThread thread;
+	private volatile boolean handledOnMain, compensatingForDelays, precise, alive;
+	//the fields below are protected by lock
+	private int heapIndex;
+	private long deadline, intervalNanos, tickCount, missedTickCount, droppedTickCount, lastTickTime;
+	private boolean oneShot, preciseRun, mainPending;
+	private Histogram jitter;
+	private Object param;
+	private MainRunnable mainRunnable;
 	
-	private class TimerThread extends Thread {
+	private final class MainRunnable implements Runnable {
 		private final int myVersion;
-		private final boolean oneShot;
 		private final Object param;
 		
-		public TimerThread(int myVersion, boolean oneShot, String name, Object param) {
-			super((name == null) ? "Timer Thread" : name);
+		public MainRunnable(int myVersion, Object param) {
 			this.myVersion = myVersion;
-			this.oneShot = oneShot;
 			this.param = param;
 		}
 		
 		@Override
 		public void run() {
-			if (MainHandler.isOnMainThread()) {
-				if (version == myVersion) {
-					if (runnable != null)
-						runnable.run();
-					else
-						timerHandler.handleTimer(Timer.this, param);
-				}
-				return;
+			synchronized (lock) {
+				if (version != myVersion)
+					return;
+				//from now on, the next tick may be posted again
+				mainPending = false;
 			}
-			long lastTime = SystemClock.elapsedRealtime();
-			while (version == myVersion) {
-				if (compensatingForDelays) {
-					final long now = SystemClock.elapsedRealtime();
-					final int actualInterval = interval - ((int)now - (int)lastTime);
-					lastTime = now;
-					if (actualInterval > 0) {
-						synchronized (sync) {
+			fire(param);
+		}
+	}
+	
+	private static final class Scheduler extends Thread {
+		public Scheduler() {
+			super("Timer Thread");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			for (;;) {
+				Timer t = null;
+				long parkUntil = 0;
+				int myVersion = 0;
+				Object param = null;
+				synchronized (lock) {
+					running = null;
+					lock.notifyAll();
+					for (;;) {
+						if (heapSize == 0) {
 							try {
-								sync.wait(actualInterval);
+								lock.wait();
 							} catch (InterruptedException e) { }
+							continue;
 						}
-					} else {
-						synchronized (sync) {
-							try {
-								sync.wait(1); //just not to hog the CPU!
-							} catch (InterruptedException e) { }
+						final long delay = heap[0].deadline - System.nanoTime();
+						if (delay <= 0)
+							break;
+						if (heap[0].preciseRun) {
+							parkUntil = heap[0].deadline;
+							break;
 						}
-					}
-				} else {
-					synchronized (sync) {
 						try {
-							sync.wait(interval);
+							lock.wait(delay / 1000000L, (int)(delay % 1000000L));
 						} catch (InterruptedException e) { }
 					}
-				}
-				try {
-					if (version == myVersion) {
-						if (handledOnMain) {
-							MainHandler.post(this);
-						} else {
-							if (runnable != null)
-								runnable.run();
-							else
-								timerHandler.handleTimer(Timer.this, param);
+					if (parkUntil == 0) {
+						t = heap[0];
+						remove(0);
+						t.lastTickTime = System.nanoTime();
+						t.tickCount++;
+						if (t.preciseRun)
+							t.tick(t.lastTickTime);
+						myVersion = t.version;
+						param = t.param;
+						if (t.oneShot)
+							t.alive = false;
+						if (t.handledOnMain) {
+							if (t.mainPending) {
+								t.droppedTickCount++;
+							} else {
+								t.mainPending = true;
+								MainHandler.post(t.mainRunnable);
+							}
+							if (!t.oneShot)
+								t.reschedule();
+							continue;
 						}
+						running = t;
 					}
+				}
+				if (t == null) {
+					//park without holding lock (insert() unparks this thread when the
+					//earliest deadline changes), then go back and check the heap again,
+					//since the precise timer could have been stopped in the meantime
+					final long delay = parkUntil - System.nanoTime();
+					if (delay > 0)
+						LockSupport.parkNanos(delay);
+					continue;
+				}
+				boolean ok = true;
+				try {
+					t.fire(param);
 				} catch (Throwable ex) {
 					System.err.println(ex);
-					break;
+					ok = false;
 				}
-				if (oneShot)
-					break;
-			}
-			if (version == myVersion) {
-				synchronized (sync) {
-					if (version == myVersion)
-						thread = null;
+				synchronized (lock) {
+					//do not reschedule a timer that has been stopped or restarted by the callback
+					if (t.version == myVersion && t.heapIndex < 0) {
+						if (ok && !t.oneShot)
+							t.reschedule();
+						else
+							t.alive = false;
+					}
 				}
 			}
 		}
 	}
 	
+	//all the heap methods below must be called while holding lock
+	private static void swap(int a, int b) {
+		final Timer t = heap[a];
+		heap[a] = heap[b];
+		heap[b] = t;
+		heap[a].heapIndex = a;
+		heap[b].heapIndex = b;
+	}
+	
+	private static void siftUp(int i) {
+		while (i > 0) {
+			final int parent = (i - 1) >> 1;
+			if (heap[parent].deadline <= heap[i].deadline)
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+	
+	private static void siftDown(int i) {
+		for (;;) {
+			final int l = (i << 1) + 1, r = l + 1;
+			int smallest = i;
+			if (l < heapSize && heap[l].deadline < heap[smallest].deadline)
+				smallest = l;
+			if (r < heapSize && heap[r].deadline < heap[smallest].deadline)
+				smallest = r;
+			if (smallest == i)
+				break;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+	
+	private static void insert(Timer t) {
+		if (heapSize == heap.length) {
+			final Timer[] tmp = new Timer[heapSize << 1];
+			System.arraycopy(heap, 0, tmp, 0, heapSize);
+			heap = tmp;
+		}
+		t.heapIndex = heapSize;
+		heap[heapSize++] = t;
+		siftUp(t.heapIndex);
+		//wake up the scheduler only if its next deadline has changed
+		if (heap[0] == t) {
+			lock.notifyAll();
+			if (schedulerThread != null)
+				LockSupport.unpark(schedulerThread);
+		}
+		if (schedulerThread == null) {
+			schedulerThread = new Scheduler();
+			schedulerThread.start();
+		}
+	}
+	
+	private static void remove(int i) {
+		final Timer t = heap[i];
+		heapSize--;
+		if (i != heapSize) {
+			heap[i] = heap[heapSize];
+			heap[i].heapIndex = i;
+			heap[heapSize] = null;
+			siftDown(i);
+			siftUp(i);
+		} else {
+			heap[i] = null;
+		}
+		t.heapIndex = -1;
+	}
+	
+	private void tick(long now) {
+		//must be called while holding lock
+		jitter.add((now - deadline) / 1000L);
+	}
+	
+	private void reschedule() {
+		//must be called while holding lock
+		final long now = System.nanoTime();
+		if (preciseRun) {
+			deadline += intervalNanos;
+			if (deadline - now <= 0) {
+				//coalesce all the ticks whose deadlines have already passed into a
+				//single tick, without changing the phase
+				final long missed = (now - deadline) / intervalNanos;
+				missedTickCount += missed;
+				deadline += missed * intervalNanos;
+			}
+		} else if (compensatingForDelays) {
+			deadline += intervalNanos;
+			if (deadline - now <= 0)
+				deadline = now + 1000000L; //just not to hog the CPU!
+		} else {
+			deadline = now + intervalNanos;
+		}
+		alive = true;
+		insert(this);
+	}
+	
+	private void fire(Object param) {
+		if (runnable != null)
+			runnable.run();
+		else
+			timerHandler.handleTimer(this, param);
+	}
+	
 	public Timer(Runnable runnable) {
-		this.sync = new Object();
 		this.runnable = runnable;
 		this.timerHandler = null;
 		this.name = null;
+		this.heapIndex = -1;
 	}
 	
 	public Timer(Runnable runnable, String name) {
-		this.sync = new Object();
 		this.runnable = runnable;
 		this.timerHandler = null;
 		this.name = name;
+		this.heapIndex = -1;
 	}
 	
 	public Timer(TimerHandler timerHandler) {
-		this.sync = new Object();
 		this.runnable = null;
 		this.timerHandler = timerHandler;
 		this.name = null;
+		this.heapIndex = -1;
 	}
 	
 	public Timer(TimerHandler timerHandler, String name) {
-		this.sync = new Object();
 		this.runnable = null;
 		this.timerHandler = timerHandler;
 		this.name = name;
+		this.heapIndex = -1;
 	}
 	
 	public void start(int interval, boolean oneShot) {
-		synchronized (sync) {
-			this.version++;
-			this.interval = interval;
-			this.thread = new TimerThread(version, oneShot, name, null);
-			this.thread.start();
-		}
+		start(interval, oneShot, null);
 	}
 	
 	public void start(int interval, boolean oneShot, Object param) {
-		synchronized (sync) {
+		startNanos((long)interval * 1000000L, oneShot, param);
+	}
+	
+	public void startNanos(long intervalNanos, boolean oneShot, Object param) {
+		if (intervalNanos < 1)
+			intervalNanos = 1;
+		synchronized (lock) {
+			if (heapIndex >= 0)
+				remove(heapIndex);
 			this.version++;
-			this.interval = interval;
-			this.thread = new TimerThread(version, oneShot, name, param);
-			this.thread.start();
+			this.interval = (int)(intervalNanos / 1000000L);
+			this.intervalNanos = intervalNanos;
+			this.oneShot = oneShot;
+			this.param = param;
+			this.mainRunnable = new MainRunnable(version, param);
+			this.preciseRun = precise;
+			this.tickCount = 0;
+			this.missedTickCount = 0;
+			this.droppedTickCount = 0;
+			this.lastTickTime = 0;
+			this.mainPending = false;
+			if (preciseRun) {
+				if (jitter == null)
+					jitter = new Histogram();
+				else
+					jitter.reset();
+			}
+			this.deadline = System.nanoTime() + intervalNanos;
+			this.alive = true;
+			insert(this);
 		}
 	}
 	
 	public void stop() {
-		if (thread != null) {
-			synchronized (sync) {
-				if (thread != null) {
+		if (alive) {
+			synchronized (lock) {
+				if (alive) {
 					version++;
-					sync.notifyAll();
-					thread = null;
+					if (heapIndex >= 0)
+						remove(heapIndex);
+					alive = false;
 				}
 			}
 		}
 	}
 	
 	public void stopAndWait() {
-		if (thread != null) {
-			Thread t;
-			synchronized (sync) {
-				t = thread;
-				if (thread != null) {
-					version++;
-					sync.notifyAll();
-					thread = null;
-				}
+		synchronized (lock) {
+			if (alive) {
+				version++;
+				if (heapIndex >= 0)
+					remove(heapIndex);
+				alive = false;
 			}
-			if (t != null) {
+			//wait for the callback to return, unless we are being called by the callback itself
+			while (running == this && Thread.currentThread() != schedulerThread) {
 				try {
-					t.join();
+					lock.wait();
 				} catch (InterruptedException e) { }
 			}
 		}
 	}
 	
+	public String getName() {
+		return name;
+	}
+	
 	public int getInterval() {
 		return interval;
 	}
 	
+	public long getIntervalNanos() {
+		synchronized (lock) {
+			return intervalNanos;
+		}
+	}
+	
+	public long getTickCount() {
+		synchronized (lock) {
+			return tickCount;
+		}
+	}
+	
+	public long getMissedTickCount() {
+		synchronized (lock) {
+			return missedTickCount;
+		}
+	}
+	
+	public long getDroppedTickCount() {
+		//ticks that were not delivered to the main thread because the previous
+		//callback was still pending there
+		synchronized (lock) {
+			return droppedTickCount;
+		}
+	}
+	
+	public long getLastTickTime() {
+		//System.nanoTime() of the latest tick, which can be more recent than the
+		//tick being handled when this timer is handled on the main thread
+		synchronized (lock) {
+			return lastTickTime;
+		}
+	}
+	
+	public Histogram getJitterHistogram() {
+		//returns a snapshot of the lateness of the ticks since the last start, in microseconds
+		//(only recorded for precise timers)
+		synchronized (lock) {
+			return ((jitter == null) ? new Histogram() : new Histogram(jitter));
+		}
+	}
+	
 	public boolean isAlive() {
-		return (thread != null);
+		return alive;
 	}
 	
 	public boolean isCompensatingForDelays() {
@@ -217,6 +458,15 @@ public class Timer {
 		this.compensatingForDelays = compensatingForDelays;
 	}
 	
+	public boolean isPrecise() {
+		return precise;
+	}
+	
+	public void setPrecise(boolean precise) {
+		//takes effect on the next call to start()
+		this.precise = precise;
+	}
+	
 	public boolean isHandledOnMain() {
 		return handledOnMain;
 	}
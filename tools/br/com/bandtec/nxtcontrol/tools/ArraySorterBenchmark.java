@@ -0,0 +1,211 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import br.com.bandtec.nxtcontrol.util.ArraySorter;
+
+/**
+ * Command-line microbenchmark for util.ArraySorter, which measures the time
+ * per element taken to sort random, sorted, reversed and many-duplicates
+ * inputs with 10 to 1M elements, compared to the previous in-place merge sort
+ * (only up to PREVIOUS_MAX_ELEMENTS, as it is O(n^2) on unsorted inputs) and
+ * to java.util.Arrays.sort(). Every result is checked for order and stability.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later). From the project's root folder:
+ * 
+ * javac -d bin/sortbench src/br/com/bandtec/nxtcontrol/util/ArraySorter.java tools/br/com/bandtec/nxtcontrol/tools/ArraySorterBenchmark.java
+ * java -cp bin/sortbench br.com.bandtec.nxtcontrol.tools.ArraySorterBenchmark
+ * 
+ * The exit code is 1 if any result is not sorted or not stable.
+ */
+public final class ArraySorterBenchmark {
+	private static final int[] SIZES = { 10, 100, 1000, 10000, 100000, 1000000 };
+	private static final String[] INPUTS = { "random", "sorted", "reversed", "duplicates" };
+	private static final int PREVIOUS_MAX_ELEMENTS = 10000;
+	private static final long MIN_RUN_NANOS = 200000000L;
+	
+	private static int failures;
+	
+	private ArraySorterBenchmark() {
+	}
+	
+	private static final class Element {
+		public final int key, index;
+		
+		public Element(int key, int index) {
+			this.key = key;
+			this.index = index;
+		}
+	}
+	
+	private static final ArraySorter.Comparer<Element> comparer = new ArraySorter.Comparer<Element>() {
+		@Override
+		public int compare(Element a, Element b) {
+			return ((a.key < b.key) ? -1 : ((a.key > b.key) ? 1 : 0));
+		}
+	};
+	
+	private static final Comparator<Element> comparator = new Comparator<Element>() {
+		@Override
+		public int compare(Element a, Element b) {
+			return ((a.key < b.key) ? -1 : ((a.key > b.key) ? 1 : 0));
+		}
+	};
+	
+	private static abstract class Sorter {
+		public final String name;
+		
+		public Sorter(String name) {
+			this.name = name;
+		}
+		
+		public abstract void sort(Element[] elements);
+	}
+	
+	//the algorithm ArraySorter used before, kept here for comparison
+	private static <E> void previousSort(E[] elements, int i, int n, ArraySorter.Comparer<E> comparer) {
+		if (n > 1) {
+			final int m = n >> 1, endB = i + n;
+			previousSort(elements, i, m, comparer);
+			previousSort(elements, i + m, n - m, comparer);
+			int iB = i + m;
+			E eA = elements[i];
+			E eB = elements[iB];
+			for (;;) {
+				if (comparer.compare(eA, eB) > 0) {
+					System.arraycopy(elements, i, elements, i + 1, iB - i);
+					elements[i] = eB;
+					if ((++iB) >= endB || (++i) >= iB) break;
+					eB = elements[iB];
+				} else {
+					if ((++i) >= iB) break;
+					eA = elements[i];
+				}
+			}
+		}
+	}
+	
+	private static Element[] createInput(String input, int size, Random random) {
+		final Element[] elements = new Element[size];
+		for (int i = 0; i < size; i++) {
+			final int key;
+			if (input.equals("random"))
+				key = random.nextInt();
+			else if (input.equals("sorted"))
+				key = i;
+			else if (input.equals("reversed"))
+				key = size - i;
+			else
+				key = random.nextInt(10);
+			elements[i] = new Element(key, i);
+		}
+		return elements;
+	}
+	
+	private static void check(String name, Element[] elements) {
+		for (int i = 1; i < elements.length; i++) {
+			final Element a = elements[i - 1], b = elements[i];
+			if (a.key > b.key || (a.key == b.key && a.index > b.index)) {
+				if (failures < 20)
+					System.out.println("FAILED: " + name + " at " + i);
+				failures++;
+				return;
+			}
+		}
+	}
+	
+	private static void measure(Sorter sorter, String input, Element[] source) {
+		final Element[] elements = new Element[source.length];
+		long runs = 0, time = 0;
+		for (int i = -3; i < 0 || time < MIN_RUN_NANOS; i++) {
+			System.arraycopy(source, 0, elements, 0, source.length);
+			final long time0 = System.nanoTime();
+			sorter.sort(elements);
+			final long t = System.nanoTime() - time0;
+			if (i >= 0) {
+				runs++;
+				time += t;
+			} else {
+				check(sorter.name + " " + input + " " + source.length, elements);
+			}
+		}
+		System.out.print(String.format("%12.1f", (double)time / (double)(runs * source.length)));
+	}
+	
+	public static void main(String[] args) {
+		final Sorter previous = new Sorter("previous") {
+			@Override
+			public void sort(Element[] elements) {
+				previousSort(elements, 0, elements.length, comparer);
+			}
+		};
+		final Sorter current = new Sorter("ArraySorter") {
+			private Object[] buffer;
+			
+			@Override
+			public void sort(Element[] elements) {
+				buffer = ArraySorter.sort(elements, 0, elements.length, comparer, buffer);
+			}
+		};
+		final Sorter reference = new Sorter("Arrays.sort") {
+			@Override
+			public void sort(Element[] elements) {
+				Arrays.sort(elements, comparator);
+			}
+		};
+		final Random random = new Random(1);
+		//let the JIT compile all the sorters before measuring anything
+		final Sorter[] sorters = { previous, current, reference };
+		for (int i = 0; i < INPUTS.length; i++) {
+			final Element[] source = createInput(INPUTS[i], 2000, random), elements = new Element[source.length];
+			for (int r = 0; r < 200; r++) {
+				for (int s = 0; s < sorters.length; s++) {
+					System.arraycopy(source, 0, elements, 0, source.length);
+					sorters[s].sort(elements);
+				}
+			}
+		}
+		System.out.println("ns per element");
+		System.out.println(String.format("%-12s %8s %12s %12s %12s", "input", "size", previous.name, current.name, reference.name));
+		for (int i = 0; i < INPUTS.length; i++) {
+			for (int s = 0; s < SIZES.length; s++) {
+				final Element[] source = createInput(INPUTS[i], SIZES[s], random);
+				System.out.print(String.format("%-12s %8d", INPUTS[i], SIZES[s]));
+				if (SIZES[s] <= PREVIOUS_MAX_ELEMENTS || INPUTS[i].equals("sorted"))
+					measure(previous, INPUTS[i], source);
+				else
+					System.out.print(String.format("%12s", "-"));
+				measure(current, INPUTS[i], source);
+				measure(reference, INPUTS[i], source);
+				System.out.println();
+			}
+		}
+		
+		if (failures != 0) {
+			System.out.println(failures + " FAILURES");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import br.com.bandtec.nxtcontrol.list.BaseItem;
+import br.com.bandtec.nxtcontrol.list.BaseList;
+import br.com.bandtec.nxtcontrol.ui.BgListView;
+import br.com.bandtec.nxtcontrol.util.ArraySorter;
+
+/**
+ * Command-line microbenchmark for list.BaseList, which measures the time,
+ * the memory allocated and the amount of notifications sent to the list view
+ * when inserting 10k items (at the end and at the beginning of the list)
+ * one by one, inside a batch, and inside a batch that knows how many items
+ * are about to be added. It then compares the regular storage with the gap
+ * buffer storage for typical edit patterns on lists with 1k and 100k items.
+ * 
+ * With -v, it verifies the gap buffer storage instead: the same random
+ * sequence of operations (single and multiple additions, removals, moveItem(),
+ * moveSelection(), addSorted(), update(), updateSorted(), clear() and
+ * nested batches) is applied to a list in each mode, and the contents, the
+ * selection, the current item and the key index of both lists are compared
+ * after every operation. The key index is only enabled in the gap buffer
+ * list, and is turned off and on from time to time, so it is also checked
+ * against the linear search done by the other list.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later), with the views replaced by the doubles found in
+ * tools/doubles. From the project's root folder:
+ * 
+ * javac -d bin/listbench -sourcepath tools/doubles src/br/com/bandtec/nxtcontrol/list/BaseItem.java src/br/com/bandtec/nxtcontrol/list/BaseList.java src/br/com/bandtec/nxtcontrol/util/ArraySorter.java src/br/com/bandtec/nxtcontrol/ui/ListRebinder.java tools/br/com/bandtec/nxtcontrol/tools/BaseListBenchmark.java
+ * java -cp bin/listbench br.com.bandtec.nxtcontrol.tools.BaseListBenchmark [items]
+ * java -cp bin/listbench br.com.bandtec.nxtcontrol.tools.BaseListBenchmark -v [operations] [seed]
+ * 
+ * Allocations are only reported on JVMs that support
+ * com.sun.management.ThreadMXBean.
+ */
+public final class BaseListBenchmark {
+	private static final long MIN_RUN_NANOS = 500000000L;
+	private static final int VISIBLE_ROWS = 12;
+	private static final int[] EDIT_SIZES = { 1000, 100000 };
+	private static final int EDITS_PER_ROUND = 64;
+	//the verification removes more than it adds above this amount of items
+	private static final int VERIFY_MAX_ITEMS = 2000;
+	private static final String[] VERIFY_OPERATIONS = {
+		"add()", "add(items[])", "removeSelection()", "moveItem()", "moveSelection()",
+		"addSorted()", "update()", "updateSorted()", "batch", "clear()", "key index off and on"
+	};
+	
+	private static volatile long sink;
+	
+	private BaseListBenchmark() {
+	}
+	
+	private static final class Item extends BaseItem {
+		private final String text;
+		private final Integer key;
+		
+		public Item(String text) {
+			this.text = text;
+			this.key = null;
+		}
+		
+		public Item(int key) {
+			this.text = "Item " + key;
+			this.key = key;
+		}
+		
+		@Override
+		public Object getKey() {
+			return key;
+		}
+		
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+	
+	//orders the verification items by text, which is enough for addSorted()
+	//and updateSorted() to pick positions that depend on the contents
+	private static final ArraySorter.Comparer<Item> TEXT_COMPARER = new ArraySorter.Comparer<Item>() {
+		@Override
+		public int compare(Item a, Item b) {
+			return a.text.compareTo(b.text);
+		}
+	};
+	
+	private static abstract class Operation {
+		public final String name;
+		
+		public Operation(String name) {
+			this.name = name;
+		}
+		
+		public abstract void run(BaseList<Item> list, Item[] items);
+	}
+	
+	private static abstract class EditPattern {
+		public final String name;
+		protected int cursor;
+		
+		public EditPattern(String name) {
+			this.name = name;
+		}
+		
+		//returns how many operations were performed, leaving the list with the same amount of items
+		public abstract int run(BaseList<Item> list, Item[] items, Random random);
+	}
+	
+	private static long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+	
+	private static void measure(Operation operation, Item[] items) {
+		long runs = 0, notifications = 0, rows = 0, time = 0, bytes = 0;
+		final boolean hasBytes = (getAllocatedBytes() >= 0);
+		//warm up, then repeat the operation until at least MIN_RUN_NANOS have passed
+		for (int i = -5; i < 0 || time < MIN_RUN_NANOS; i++) {
+			final BaseList<Item> list = new BaseList<Item>(Item.class);
+			final BgListView view = new BgListView(null, VISIBLE_ROWS);
+			list.setObserver(view);
+			final long bytes0 = getAllocatedBytes(), time0 = System.nanoTime();
+			operation.run(list, items);
+			final long t = System.nanoTime() - time0, b = getAllocatedBytes() - bytes0;
+			view.performLayout();
+			if (i >= 0) {
+				runs++;
+				time += t;
+				bytes += b;
+				notifications += view.getNotifications();
+				rows += view.getViewCalls();
+			}
+			sink += list.getCount();
+		}
+		System.out.println("  " + operation.name + ": " + String.format("%.1f", (double)time / (double)(runs * 1000L)) + " us, " +
+			(hasBytes ? (String.format("%.1f", (double)bytes / (double)(runs * 1024L)) + " KiB, ") : "") +
+			(notifications / runs) + " notifications, " + (rows / runs) + " rows bound");
+	}
+	
+	private static void measureEdits(EditPattern pattern, int size, Item[] items, boolean gapBuffer) {
+		final BaseList<Item> list = new BaseList<Item>(Item.class, gapBuffer);
+		list.beginBatch(size);
+		for (int i = 0; i < size; i++)
+			list.add(items[i % items.length], -1);
+		list.commitBatch();
+		final Random random = new Random(1);
+		pattern.cursor = size >> 1;
+		//warm up, then repeat the pattern until at least MIN_RUN_NANOS have passed
+		for (int i = 0; i < 1000; i++)
+			pattern.run(list, items, random);
+		long ops = 0;
+		final long bytes0 = getAllocatedBytes(), time0 = System.nanoTime();
+		long time;
+		do {
+			ops += pattern.run(list, items, random);
+		} while ((time = System.nanoTime() - time0) < MIN_RUN_NANOS);
+		final long bytes = getAllocatedBytes() - bytes0;
+		System.out.print(String.format("%12.1f ns/op", (double)time / (double)ops) +
+			((bytes0 < 0) ? "" : String.format(" %6.1f B/op", (double)bytes / (double)ops)));
+		sink += list.getCount();
+	}
+	
+	private static String compare(BaseList<Item> regular, BaseList<Item> gap, int removedKey) {
+		final int count = regular.getCount();
+		if (gap.getCount() != count)
+			return "count " + gap.getCount() + " instead of " + count;
+		for (int i = 0; i < count; i++) {
+			final Item item = regular.getItemT(i);
+			if (gap.getItemT(i) != item)
+				return "item " + gap.getItemT(i) + " at " + i + " instead of " + item;
+			if (gap.indexOfKey(item.getKey()) != i)
+				return "indexOfKey(" + item.getKey() + ") returned " + gap.indexOfKey(item.getKey()) + " instead of " + i;
+		}
+		if (removedKey >= 0 && gap.indexOfKey(removedKey) != regular.indexOfKey(removedKey))
+			return "indexOfKey(" + removedKey + ") returned " + gap.indexOfKey(removedKey) + " instead of " + regular.indexOfKey(removedKey);
+		if (gap.getCurrentPosition() != regular.getCurrentPosition())
+			return "current " + gap.getCurrentPosition() + " instead of " + regular.getCurrentPosition();
+		if (gap.getSelection() != regular.getSelection() ||
+			gap.getFirstSelectedPosition() != regular.getFirstSelectedPosition() ||
+			gap.getLastSelectedPosition() != regular.getLastSelectedPosition())
+			return "selection " + gap.getFirstSelectedPosition() + "-" + gap.getLastSelectedPosition() + " (" + gap.getSelection() + ") instead of " +
+				regular.getFirstSelectedPosition() + "-" + regular.getLastSelectedPosition() + " (" + regular.getSelection() + ")";
+		return null;
+	}
+	
+	private static void select(BaseList<Item> regular, BaseList<Item> gap, Random random) {
+		final int count = regular.getCount();
+		if (count == 0)
+			return;
+		final int from = random.nextInt(count), to = Math.min(count - 1, from + random.nextInt(8));
+		final int original = from + random.nextInt(to - from + 1);
+		regular.setSelection(from, to, original, false, false);
+		gap.setSelection(from, to, original, false, false);
+	}
+	
+	//applies the same random operation to both lists, and returns its index in VERIFY_OPERATIONS
+	private static int applyRandomOperation(BaseList<Item> regular, BaseList<Item> gap, Random random, int[] nextKey, boolean inBatch) {
+		final int count = regular.getCount();
+		final int r = random.nextInt(20000);
+		if (r < 1) {
+			regular.clear();
+			gap.clear();
+			return 9;
+		}
+		if (r < 40) {
+			gap.setKeyIndexEnabled(false);
+			gap.setKeyIndexEnabled(true);
+			return 10;
+		}
+		if (r < 800 && !inBatch) {
+			final int expected = random.nextInt(3) * random.nextInt(32);
+			regular.beginBatch(expected);
+			gap.beginBatch(expected);
+			for (int i = random.nextInt(16); i >= 0; i--)
+				applyRandomOperation(regular, gap, random, nextKey, true);
+			regular.commitBatch();
+			gap.commitBatch();
+			return 8;
+		}
+		//keep the lists around VERIFY_MAX_ITEMS items
+		final boolean grow = (count < VERIFY_MAX_ITEMS || random.nextBoolean());
+		final int position = ((count == 0) ? 0 : (random.nextInt(count + 1) - (random.nextInt(8) == 0 ? 1 : 0)));
+		switch (grow ? random.nextInt(8) : (2 + random.nextInt(6))) {
+		case 0: {
+			final Item item = new Item(nextKey[0]++);
+			regular.add(item, position);
+			gap.add(item, position);
+			return 0;
+		}
+		case 1: {
+			final Item[] items = new Item[1 + random.nextInt(8)];
+			for (int i = 0; i < items.length; i++)
+				items[i] = new Item(nextKey[0]++);
+			final int n = 1 + random.nextInt(items.length);
+			regular.add(items, position, n);
+			gap.add(items, position, n);
+			return 1;
+		}
+		case 2:
+			select(regular, gap, random);
+			regular.removeSelection();
+			gap.removeSelection();
+			return 2;
+		case 3:
+			if (count > 0) {
+				final int from = random.nextInt(count), to = random.nextInt(count);
+				regular.moveItem(from, to);
+				gap.moveItem(from, to);
+			}
+			return 3;
+		case 4:
+			if (count > 0) {
+				select(regular, gap, random);
+				final int to = random.nextInt(count + 1);
+				regular.moveSelection(to);
+				gap.moveSelection(to);
+			}
+			return 4;
+		case 5: {
+			final Item item = new Item(nextKey[0]++);
+			regular.addSorted(item, TEXT_COMPARER);
+			gap.addSorted(item, TEXT_COMPARER);
+			return 5;
+		}
+		case 6:
+			if (count > 0) {
+				final Item item = new Item(nextKey[0]++);
+				final int p = random.nextInt(count);
+				regular.update(p, item);
+				gap.update(p, item);
+			}
+			return 6;
+		default:
+			if (count > 0) {
+				final Item item = new Item(nextKey[0]++);
+				final int p = random.nextInt(count);
+				regular.updateSorted(p, item, TEXT_COMPARER);
+				gap.updateSorted(p, item, TEXT_COMPARER);
+			}
+			return 7;
+		}
+	}
+	
+	private static boolean verify(int operations, long seed) {
+		final Random random = new Random(seed);
+		final BaseList<Item> regular = new BaseList<Item>(Item.class, false), gap = new BaseList<Item>(Item.class, true);
+		regular.setObserver(new BgListView(null, VISIBLE_ROWS));
+		gap.setObserver(new BgListView(null, VISIBLE_ROWS));
+		gap.setKeyIndexEnabled(true);
+		final int[] nextKey = new int[1];
+		final long[] applied = new long[VERIFY_OPERATIONS.length];
+		int maxCount = 0;
+		for (int i = 0; i < operations; i++) {
+			final int operation = applyRandomOperation(regular, gap, random, nextKey, false);
+			applied[operation]++;
+			if (regular.getCount() > maxCount)
+				maxCount = regular.getCount();
+			//also look for a key that is no longer in the lists, or never was
+			final String error = compare(regular, gap, random.nextInt(nextKey[0] + 1));
+			if (error != null) {
+				System.out.println("FAILED after operation " + (i + 1) + " (" + VERIFY_OPERATIONS[operation] + ", seed " + seed + "): " + error);
+				return false;
+			}
+		}
+		System.out.println("verified " + operations + " operations (seed " + seed + "), up to " + maxCount + " items:");
+		for (int i = 0; i < VERIFY_OPERATIONS.length; i++)
+			System.out.println(String.format("  %-24s %8d", VERIFY_OPERATIONS[i], applied[i]));
+		return true;
+	}
+	
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("-v")) {
+			final int operations = ((args.length > 1) ? Integer.parseInt(args[1]) : 200000);
+			final long seed = ((args.length > 2) ? Long.parseLong(args[2]) : 1);
+			if (!verify(operations, seed))
+				System.exit(1);
+			return;
+		}
+		final int count = ((args.length > 0) ? Integer.parseInt(args[0]) : 10000);
+		final Item[] items = new Item[count];
+		for (int i = 0; i < count; i++)
+			items[i] = new Item("Item " + i);
+		final Operation[] operations = {
+			new Operation("add() at the end") {
+				@Override
+				public void run(BaseList<Item> list, Item[] items) {
+					for (int i = 0; i < items.length; i++)
+						list.add(items[i], -1);
+				}
+			},
+			new Operation("add() at the end, batched") {
+				@Override
+				public void run(BaseList<Item> list, Item[] items) {
+					list.beginBatch();
+					for (int i = 0; i < items.length; i++)
+						list.add(items[i], -1);
+					list.commitBatch();
+				}
+			},
+			new Operation("add() at the end, batched with the count") {
+				@Override
+				public void run(BaseList<Item> list, Item[] items) {
+					list.beginBatch(items.length);
+					for (int i = 0; i < items.length; i++)
+						list.add(items[i], -1);
+					list.commitBatch();
+				}
+			},
+			new Operation("add() at the beginning") {
+				@Override
+				public void run(BaseList<Item> list, Item[] items) {
+					for (int i = 0; i < items.length; i++)
+						list.add(items[i], 0);
+				}
+			},
+			new Operation("add() at the beginning, batched with the count") {
+				@Override
+				public void run(BaseList<Item> list, Item[] items) {
+					list.beginBatch(items.length);
+					for (int i = 0; i < items.length; i++)
+						list.add(items[i], 0);
+					list.commitBatch();
+				}
+			}
+		};
+		System.out.println("inserting " + count + " items:");
+		for (int i = 0; i < operations.length; i++)
+			measure(operations[i], items);
+		
+		final EditPattern[] patterns = {
+			new EditPattern("insert then remove near the cursor") {
+				@Override
+				public int run(BaseList<Item> list, Item[] items, Random random) {
+					final int c = list.getCount();
+					cursor = (cursor + 7) % c;
+					for (int i = 0; i < EDITS_PER_ROUND; i++)
+						list.add(items[i], cursor + i);
+					for (int i = EDITS_PER_ROUND - 1; i >= 0; i--) {
+						list.setSelection(cursor + i, cursor + i, false, false);
+						list.removeSelection();
+					}
+					return (EDITS_PER_ROUND << 1);
+				}
+			},
+			new EditPattern("move the selected item down and back") {
+				@Override
+				public int run(BaseList<Item> list, Item[] items, Random random) {
+					final int c = list.getCount() - EDITS_PER_ROUND - 1;
+					cursor = (cursor + 7) % c;
+					list.setSelection(cursor, cursor, false, false);
+					for (int i = 1; i <= EDITS_PER_ROUND; i++)
+						list.moveSelection(cursor + i);
+					for (int i = EDITS_PER_ROUND - 1; i >= 0; i--)
+						list.moveSelection(cursor + i);
+					return (EDITS_PER_ROUND << 1);
+				}
+			},
+			new EditPattern("insert and remove at random positions") {
+				@Override
+				public int run(BaseList<Item> list, Item[] items, Random random) {
+					list.add(items[0], random.nextInt(list.getCount()));
+					final int p = random.nextInt(list.getCount());
+					list.setSelection(p, p, false, false);
+					list.removeSelection();
+					return 2;
+				}
+			},
+			new EditPattern("read all the items") {
+				@Override
+				public int run(BaseList<Item> list, Item[] items, Random random) {
+					final int c = list.getCount();
+					long s = 0;
+					for (int i = 0; i < c; i++)
+						s += list.getItemT(i).id;
+					sink += s;
+					return c;
+				}
+			}
+		};
+		for (int s = 0; s < EDIT_SIZES.length; s++) {
+			System.out.println("editing " + EDIT_SIZES[s] + " items (regular storage vs gap buffer):");
+			for (int i = 0; i < patterns.length; i++) {
+				System.out.print(String.format("  %-40s", patterns[i].name));
+				measureEdits(patterns[i], EDIT_SIZES[s], items, false);
+				measureEdits(patterns[i], EDIT_SIZES[s], items, true);
+				System.out.println();
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.io.File;
+
+import android.content.Context;
+import br.com.bandtec.nxtcontrol.ui.BgDirControl;
+
+/**
+ * Command-line runner for BgDirControl.measureDrawTime(), which reports the
+ * frame times of the old drawing (whole view, cells drawn with UI.drawBg())
+ * and of the cached drawing (only the changed cells, blitted from the
+ * pre-rendered bitmaps), with the control released and pressed.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later), with the android.graphics classes replaced by the
+ * doubles found in tools/doubles, which draw through java.awt.Graphics2D.
+ * The absolute times are those of Java2D, not of Android's Skia, but both
+ * ways issue the same calls they issue on the device. From the project's
+ * root folder:
+ * 
+ * javac -d bin/dirbench -sourcepath tools/doubles src/br/com/bandtec/nxtcontrol/util/Histogram.java src/br/com/bandtec/nxtcontrol/ui/BgDirControl.java tools/br/com/bandtec/nxtcontrol/tools/DirControlBenchmark.java
+ * java -cp bin/dirbench br.com.bandtec.nxtcontrol.tools.DirControlBenchmark [-w size] [-f frames] [-r rounds]
+ * 
+ * The control is laid out as a size x size square (480 by default, about
+ * the width it takes on a 2.0 density phone in portrait). Only the last
+ * round is reported, the others warm up the JIT.
+ */
+public final class DirControlBenchmark {
+	private DirControlBenchmark() {
+	}
+	
+	public static void main(String[] args) {
+		int size = 480, frames = 500, rounds = 20;
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (i == args.length - 1 || arg.length() != 2 || arg.charAt(0) != '-') {
+				System.err.println("Usage: DirControlBenchmark [-w size] [-f frames] [-r rounds]");
+				System.exit(1);
+				return;
+			}
+			i++;
+			switch (arg.charAt(1)) {
+			case 'w':
+				size = Integer.parseInt(args[i]);
+				break;
+			case 'f':
+				frames = Integer.parseInt(args[i]);
+				break;
+			case 'r':
+				rounds = Integer.parseInt(args[i]);
+				break;
+			}
+		}
+		
+		final BgDirControl control = new BgDirControl(new Context(new File(System.getProperty("java.io.tmpdir"))));
+		control.layout(0, 0, size, size);
+		System.out.println("== " + size + "x" + size + ", " + frames + " frames, frame times in us ==");
+		for (int pressed = 0; pressed < 2; pressed++) {
+			control.setPressed(pressed != 0);
+			String result = null;
+			for (int r = 0; r < rounds; r++)
+				result = control.measureDrawTime(frames);
+			System.out.println(((pressed != 0) ? "pressed: " : "released: ") + result);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import br.com.bandtec.nxtcontrol.FlightRecorder;
+
+/**
+ * Command-line microbenchmark for FlightRecorder.record(), which measures
+ * the time and the memory allocated per recorded frame, for several frame
+ * sizes, with the spill thread running and writing to a temporary folder.
+ * Each size is measured with one producer (as when only commands are sent)
+ * and with two concurrent producers (outbound and inbound frames), as fast
+ * as possible, and then at a fixed rate, to show whether the spill thread
+ * keeps up (frames lost) when the producers are not just hammering it.
+ * The size of the largest traffic file is also reported, which must never
+ * be much larger than FlightRecorder.MAX_FILE_SIZE.
+ * 
+ * Before that, it checks that a frame recorded with invalid arguments does
+ * not prevent the following frames from being spilled.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later). From the project's root folder:
+ * 
+ * javac -d bin/recorderbench src/br/com/bandtec/nxtcontrol/FlightRecorder.java tools/br/com/bandtec/nxtcontrol/tools/FlightRecorderBenchmark.java
+ * java -cp bin/recorderbench br.com.bandtec.nxtcontrol.tools.FlightRecorderBenchmark [tempDir]
+ * 
+ * Allocations are only reported on JVMs that support
+ * com.sun.management.ThreadMXBean.
+ */
+public final class FlightRecorderBenchmark {
+	private static final int[] FRAME_SIZES = { 5, 32, 64, 256 };
+	private static final long RUN_NANOS = 1000000000L;
+	//frames per second per producer, in the paced runs (far more than the
+	//bluetooth link carries, but the ring must not overflow between spills)
+	private static final int PACED_RATE = 1000;
+	
+	private FlightRecorderBenchmark() {
+	}
+	
+	private static final class Producer extends Thread {
+		private final FlightRecorder recorder;
+		private final int direction;
+		private final byte[] frame;
+		private final long periodNanos;
+		public long frames, nanos, bytes;
+		
+		public Producer(FlightRecorder recorder, int direction, int frameSize, long periodNanos) {
+			super("Producer " + direction);
+			this.recorder = recorder;
+			this.direction = direction;
+			this.frame = new byte[frameSize];
+			for (int i = 0; i < frameSize; i++)
+				frame[i] = (byte)i;
+			this.periodNanos = periodNanos;
+		}
+		
+		@Override
+		public void run() {
+			final byte[] frame = this.frame;
+			final long bytes0 = getAllocatedBytes(), start = System.nanoTime(), end = start + RUN_NANOS;
+			long next = start, frames = 0, spent = 0, now;
+			do {
+				if (periodNanos != 0) {
+					//wait for the next frame, without counting the wait
+					while ((now = System.nanoTime()) < next)
+						;
+					next += periodNanos;
+					recorder.record(direction, frame, 0, frame.length);
+					spent += System.nanoTime() - now;
+				} else {
+					//measure in blocks, so the clock is not read for every frame
+					now = System.nanoTime();
+					for (int i = 0; i < 1000; i++)
+						recorder.record(direction, frame, 0, frame.length);
+					frames += 999;
+					spent += System.nanoTime() - now;
+				}
+				frames++;
+			} while (System.nanoTime() < end);
+			this.frames = frames;
+			this.nanos = spent;
+			this.bytes = getAllocatedBytes() - bytes0;
+		}
+	}
+	
+	private static long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+	
+	private static void measure(File dir, String name, int frameSize, int producers, long periodNanos, boolean print) throws InterruptedException {
+		final File file = new File(dir, "_NXTTrafficBenchmark"), dumpFile = new File(dir, "_NXTTrafficBenchmarkDump");
+		final FlightRecorder recorder = new FlightRecorder(file, dumpFile);
+		recorder.start();
+		final Producer[] threads = new Producer[producers];
+		for (int i = 0; i < producers; i++)
+			threads[i] = new Producer(recorder, (i == 0) ? FlightRecorder.OUTBOUND : FlightRecorder.INBOUND, frameSize, periodNanos);
+		for (int i = 0; i < producers; i++)
+			threads[i].start();
+		long frames = 0, nanos = 0, bytes = 0;
+		for (int i = 0; i < producers; i++) {
+			threads[i].join();
+			frames += threads[i].frames;
+			nanos += threads[i].nanos;
+			bytes += threads[i].bytes;
+		}
+		recorder.stop();
+		final File previousFile = new File(file.getPath() + FlightRecorder.PREVIOUS_SUFFIX);
+		if (print) {
+			//stop() spills everything that was not lost (even if the file was rotated)
+			final long written = frames - recorder.getLostFrameCount();
+			System.out.println("  " + name + ": " + String.format("%.1f", (double)nanos / (double)frames) + " ns/frame" +
+				((bytes < 0) ? "" : (" " + String.format("%.2f", (double)bytes / (double)frames) + " B/frame")) +
+				" frames: " + frames + " spilled: " + written + " lost: " + recorder.getLostFrameCount() +
+				" largest file: " + Math.max(file.length(), previousFile.length()) + " B");
+		}
+		file.delete();
+		previousFile.delete();
+		dumpFile.delete();
+	}
+	
+	private static void checkInvalidArguments(File dir) {
+		final File file = new File(dir, "_NXTTrafficBenchmark"), dumpFile = new File(dir, "_NXTTrafficBenchmarkDump");
+		final FlightRecorder recorder = new FlightRecorder(file, dumpFile);
+		recorder.start();
+		final byte[] frame = new byte[8];
+		recorder.record(FlightRecorder.OUTBOUND, frame, 0, frame.length);
+		recorder.record(FlightRecorder.OUTBOUND, frame, 4, frame.length);
+		recorder.record(FlightRecorder.OUTBOUND, null, 0, 1);
+		recorder.record(FlightRecorder.OUTBOUND, frame, -1, 1);
+		recorder.record(FlightRecorder.INBOUND, frame, 0, frame.length);
+		recorder.stop();
+		final long length = file.length();
+		file.delete();
+		new File(file.getPath() + FlightRecorder.PREVIOUS_SUFFIX).delete();
+		if (length != 8 + 2 * (FlightRecorder.RECORD_HEADER_SIZE + frame.length))
+			throw new IllegalStateException("invalid frames blocked the spill thread (" + length + " bytes written)");
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		final File dir = new File((args.length > 0) ? args[0] : System.getProperty("java.io.tmpdir"));
+		checkInvalidArguments(dir);
+		//warm up
+		measure(dir, "", 64, 1, 0, false);
+		for (int s = 0; s < FRAME_SIZES.length; s++) {
+			final int size = FRAME_SIZES[s];
+			System.out.println("== " + size + "-byte frames ==");
+			measure(dir, "1 producer, as fast as possible", size, 1, 0, true);
+			measure(dir, "2 producers, as fast as possible", size, 2, 0, true);
+			measure(dir, "2 producers, " + PACED_RATE + " frames/s each", size, 2, 1000000000L / PACED_RATE, true);
+		}
+	}
+}
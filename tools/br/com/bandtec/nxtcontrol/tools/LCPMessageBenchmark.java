@@ -0,0 +1,217 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import br.com.bandtec.nxtcontrol.LCPMessage;
+
+/**
+ * Command-line microbenchmark for the cached frames of LCPMessage, which
+ * measures the time and the memory allocated per command by getMotorFrame(),
+ * getActionFrame(), getBeepFrame() and getStopProgramFrame(), and by the
+ * builders they replaced in the hot paths: the bare message (getMotorMessage()
+ * and friends, which BTCommunicator used to send with a separate length
+ * prefix), and the message framed by getFrame() (which the macros used).
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later). From the project's root folder:
+ * 
+ * javac -d bin/lcpbench src/br/com/bandtec/nxtcontrol/LCPMessage.java tools/br/com/bandtec/nxtcontrol/tools/LCPMessageBenchmark.java
+ * java -cp bin/lcpbench br.com.bandtec.nxtcontrol.tools.LCPMessageBenchmark
+ * 
+ * Allocations are only reported on JVMs that support
+ * com.sun.management.ThreadMXBean.
+ */
+public final class LCPMessageBenchmark {
+	private static final long MIN_RUN_NANOS = 500000000L;
+	//commands built per run() call
+	private static final int BATCH = 1000;
+	//a C major scale, like a tune played by a macro
+	private static final int[] BEEP_FREQUENCIES = { 262, 294, 330, 349, 392, 440, 494, 523 };
+	
+	private static int sink;
+	//the frames are stored here, so the JIT cannot optimize their allocation away
+	private static final byte[][] frames = new byte[64][];
+	
+	private LCPMessageBenchmark() {
+	}
+	
+	private static abstract class Operation {
+		public final String name;
+		
+		public Operation(String name) {
+			this.name = name;
+		}
+		
+		public abstract void run();
+	}
+	
+	private static long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+	
+	private static void measure(Operation operation) {
+		//warm up, then repeat the operation until at least MIN_RUN_NANOS have passed
+		for (int i = 0; i < 200; i++)
+			operation.run();
+		long runs = 0;
+		final long bytes0 = getAllocatedBytes(), time0 = System.nanoTime();
+		long time;
+		do {
+			operation.run();
+			runs++;
+		} while ((time = System.nanoTime() - time0) < MIN_RUN_NANOS);
+		final long bytes = getAllocatedBytes() - bytes0;
+		final double ops = (double)runs * (double)BATCH;
+		System.out.println("  " + operation.name + ": " + String.format("%.1f", (double)time / ops) + " ns/op" +
+			((bytes0 < 0) ? "" : (" " + String.format("%.1f", (double)bytes / ops) + " B/op")));
+	}
+	
+	private static int consume(int i, byte[] frame) {
+		frames[i & 63] = frame;
+		return frame.length;
+	}
+	
+	public static void main(String[] args) {
+		//the motor commands sweep all ports and speeds, like a drag on the direction control
+		System.out.println("== motor ==");
+		measure(new Operation("getMotorMessage()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getMotorMessage(i % 3, (i % 201) - 100));
+				sink += s;
+			}
+		});
+		measure(new Operation("getFrame(getMotorMessage())") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getFrame(LCPMessage.getMotorMessage(i % 3, (i % 201) - 100)));
+				sink += s;
+			}
+		});
+		measure(new Operation("getMotorFrame()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getMotorFrame(i % 3, (i % 201) - 100));
+				sink += s;
+			}
+		});
+		
+		System.out.println("== action ==");
+		measure(new Operation("getActionMessage()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getActionMessage(i & 0xFF));
+				sink += s;
+			}
+		});
+		measure(new Operation("getFrame(getActionMessage())") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getFrame(LCPMessage.getActionMessage(i & 0xFF)));
+				sink += s;
+			}
+		});
+		measure(new Operation("getActionFrame()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getActionFrame(i & 0xFF));
+				sink += s;
+			}
+		});
+		
+		System.out.println("== beep (" + BEEP_FREQUENCIES.length + " different tones) ==");
+		measure(new Operation("getBeepMessage()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getBeepMessage(BEEP_FREQUENCIES[i & 7], 100));
+				sink += s;
+			}
+		});
+		measure(new Operation("getFrame(getBeepMessage())") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getFrame(LCPMessage.getBeepMessage(BEEP_FREQUENCIES[i & 7], 100)));
+				sink += s;
+			}
+		});
+		measure(new Operation("getBeepFrame()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getBeepFrame(BEEP_FREQUENCIES[i & 7], 100));
+				sink += s;
+			}
+		});
+		
+		System.out.println("== stop program ==");
+		measure(new Operation("getStopProgramMessage()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getStopProgramMessage());
+				sink += s;
+			}
+		});
+		measure(new Operation("getFrame(getStopProgramMessage())") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getFrame(LCPMessage.getStopProgramMessage()));
+				sink += s;
+			}
+		});
+		measure(new Operation("getStopProgramFrame()") {
+			@Override
+			public void run() {
+				int s = 0;
+				for (int i = 0; i < BATCH; i++)
+					s += consume(i, LCPMessage.getStopProgramFrame());
+				sink += s;
+			}
+		});
+		if (sink == 42)
+			System.out.println();
+	}
+}
@@ -0,0 +1,195 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import br.com.bandtec.nxtcontrol.list.BaseItem;
+import br.com.bandtec.nxtcontrol.list.BaseList;
+import br.com.bandtec.nxtcontrol.ui.BaseItemView;
+import br.com.bandtec.nxtcontrol.ui.BgListView;
+
+/**
+ * Command-line tool that counts how many rows are bound (getView() calls)
+ * per BaseList mutation, when every notification binds all the visible rows
+ * again (before) and when only the affected rows are bound again (after).
+ * After every mutation, it also checks that each visible row shows the same
+ * text and state a freshly bound row would.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later), with the views replaced by the doubles found in
+ * tools/doubles (the BgListView double simulates a window of visible rows,
+ * and binds them again through the real ui/ListRebinder).
+ * From the project's root folder:
+ * 
+ * javac -d bin/listbench -sourcepath tools/doubles src/br/com/bandtec/nxtcontrol/list/BaseItem.java src/br/com/bandtec/nxtcontrol/list/BaseList.java src/br/com/bandtec/nxtcontrol/util/ArraySorter.java src/br/com/bandtec/nxtcontrol/ui/ListRebinder.java tools/br/com/bandtec/nxtcontrol/tools/ListNotificationBenchmark.java
+ * java -cp bin/listbench br.com.bandtec.nxtcontrol.tools.ListNotificationBenchmark [items] [visibleRows]
+ * 
+ * The exit code is 1 if any visible row is found out of date.
+ */
+public final class ListNotificationBenchmark {
+	private static final int MUTATIONS = 1000;
+	
+	private static int failures;
+	
+	private ListNotificationBenchmark() {
+	}
+	
+	private static final class Item extends BaseItem {
+		private final String text;
+		
+		public Item(String text) {
+			this.text = text;
+		}
+		
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+	
+	private static abstract class Mutation {
+		public final String name;
+		
+		public Mutation(String name) {
+			this.name = name;
+		}
+		
+		//called before each mutation, without counting the rows bound
+		public void prepare(BaseList<Item> list, BgListView view, int i) {
+		}
+		
+		public abstract void run(BaseList<Item> list, BgListView view, int i);
+	}
+	
+	private static void check(String name, BaseList<Item> list, BgListView view) {
+		final int first = view.getFirstVisiblePosition();
+		for (int i = view.getChildCount() - 1; i >= 0; i--) {
+			final BaseItemView row = (BaseItemView)view.getChildAt(i);
+			final BaseItemView fresh = (BaseItemView)list.getView(first + i, null, null);
+			if (row == null || row.getText() != fresh.getText() || row.getState() != fresh.getState()) {
+				if (failures < 20)
+					System.out.println("FAILED: " + name + ", row " + (first + i) + " is out of date");
+				failures++;
+				return;
+			}
+		}
+	}
+	
+	private static double measure(Mutation mutation, int items, int visibleRows, boolean fullRebind) {
+		final BaseList<Item> list = new BaseList<Item>(Item.class);
+		for (int i = 0; i < items; i++)
+			list.add(new Item("Item " + i), -1);
+		final BgListView view = new BgListView(null, visibleRows);
+		list.setObserver(view);
+		view.centerItem(items >> 1, false);
+		view.performLayout();
+		view.setFullRebind(fullRebind);
+		long calls = 0;
+		for (int i = 0; i < MUTATIONS; i++) {
+			mutation.prepare(list, view, i);
+			view.performLayout();
+			final long before = view.getViewCalls();
+			mutation.run(list, view, i);
+			view.performLayout();
+			calls += view.getViewCalls() - before;
+			check(mutation.name, list, view);
+		}
+		return (double)calls / (double)MUTATIONS;
+	}
+	
+	public static void main(String[] args) {
+		final int items = ((args.length > 0) ? Integer.parseInt(args[0]) : 200);
+		final int visibleRows = ((args.length > 1) ? Integer.parseInt(args[1]) : 12);
+		final Mutation[] mutations = {
+			new Mutation("select a visible row") {
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					list.setSelection(view.getFirstVisiblePosition() + (i % view.getChildCount()), true);
+				}
+			},
+			new Mutation("select 3 visible rows") {
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					final int p = view.getFirstVisiblePosition() + (i % (view.getChildCount() - 2));
+					list.setSelection(p, p + 2, true, true);
+				}
+			},
+			new Mutation("select a hidden row") {
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					list.setSelection(i % view.getFirstVisiblePosition(), true);
+				}
+			},
+			new Mutation("update a visible row") {
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					list.update(view.getFirstVisiblePosition() + (i % view.getChildCount()), new Item("Updated " + i));
+				}
+			},
+			new Mutation("update a hidden row") {
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					list.update(i % view.getFirstVisiblePosition(), new Item("Updated " + i));
+				}
+			},
+			new Mutation("move the selected row down") {
+				@Override
+				public void prepare(BaseList<Item> list, BgListView view, int i) {
+					list.setSelection(view.getFirstVisiblePosition() + 1, true);
+				}
+				
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					list.moveSelection(view.getFirstVisiblePosition() + 2);
+				}
+			},
+			new Mutation("insert a row at the end") {
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					list.add(new Item("Added " + i), -1);
+				}
+			},
+			new Mutation("remove a hidden row") {
+				@Override
+				public void prepare(BaseList<Item> list, BgListView view, int i) {
+					list.add(new Item("Added " + i), 0);
+					list.setSelection(0, 0, false, false);
+				}
+				
+				@Override
+				public void run(BaseList<Item> list, BgListView view, int i) {
+					list.removeSelection();
+				}
+			}
+		};
+		
+		System.out.println("getView() calls per mutation (" + items + " items, " + visibleRows + " visible rows)");
+		System.out.println(String.format("%-30s %8s %8s", "mutation", "before", "after"));
+		for (int i = 0; i < mutations.length; i++) {
+			final double before = measure(mutations[i], items, visibleRows, true);
+			final double after = measure(mutations[i], items, visibleRows, false);
+			System.out.println(String.format("%-30s %8.2f %8.2f", mutations[i].name, before, after));
+		}
+		
+		if (failures != 0) {
+			System.out.println(failures + " FAILURES");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,400 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import android.content.Context;
+import br.com.bandtec.nxtcontrol.util.SerializableMap;
+
+/**
+ * Command-line microbenchmark for util.SerializableMap, which measures the
+ * time and the memory allocated per key by put, get, serialize and
+ * deserialize, with 10, 1k and 100k keys holding int, long, float and double
+ * values. It also measures the time the "main thread" spends persisting a
+ * small settings map during a session, when it is saved with serialize()
+ * when the activity is destroyed, and when it is journaled.
+ * 
+ * Before that, it checks the indexed format (serializeIndexed() and
+ * openIndexed(), used by RobotProfile): every value of a map holding all
+ * types must survive a round trip, openIndexed() followed by a single get
+ * must allocate far less than the file's size, and removing, replacing and
+ * adding keys to a mapped map, then writing it over its own file, must keep
+ * everything else. An IllegalStateException is thrown if any check fails.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later), with Context replaced by the double found in
+ * tools/doubles. From the project's root folder:
+ * 
+ * javac -d bin/mapbench tools/doubles/android/content/Context.java src/br/com/bandtec/nxtcontrol/util/Serializer.java src/br/com/bandtec/nxtcontrol/util/Journal.java src/br/com/bandtec/nxtcontrol/util/SerializableMap.java tools/br/com/bandtec/nxtcontrol/tools/SerializableMapBenchmark.java
+ * java -cp bin/mapbench br.com.bandtec.nxtcontrol.tools.SerializableMapBenchmark [tempDir]
+ * 
+ * Allocations are only reported on JVMs that support
+ * com.sun.management.ThreadMXBean.
+ */
+public final class SerializableMapBenchmark {
+	private static final int[] SIZES = { 10, 1000, 100000 };
+	//inserting keys in random order costs O(n) per key, as it did with SparseArray
+	private static final int MAX_RANDOM_FILL_SIZE = 10000;
+	private static final long MIN_RUN_NANOS = 300000000L;
+	private static final String FILE_NAME = "_NXTMapBenchmark";
+	private static final int SESSIONS = 100, SETTINGS = 32, CHANGES_PER_SESSION = 20;
+	private static final int INDEXED_KEYS = 3000;
+	
+	private static volatile long sink;
+	
+	private SerializableMapBenchmark() {
+	}
+	
+	private static abstract class Operation {
+		public final String name;
+		
+		public Operation(String name) {
+			this.name = name;
+		}
+		
+		public abstract void run();
+	}
+	
+	private static long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+	
+	private static void measure(Operation operation, int keys) {
+		//warm up, then repeat the operation until at least MIN_RUN_NANOS have passed
+		for (int i = 0; i < 5; i++)
+			operation.run();
+		long runs = 0;
+		final long bytes0 = getAllocatedBytes(), time0 = System.nanoTime();
+		long time;
+		do {
+			operation.run();
+			runs++;
+		} while ((time = System.nanoTime() - time0) < MIN_RUN_NANOS);
+		final long bytes = getAllocatedBytes() - bytes0;
+		final double ops = (double)runs * (double)keys;
+		System.out.println("  " + operation.name + ": " + String.format("%.1f", (double)time / ops) + " ns/key" +
+			((bytes0 < 0) ? "" : (" " + String.format("%.1f", (double)bytes / ops) + " B/key")));
+	}
+	
+	private static void fill(SerializableMap map, int[] keys) {
+		for (int i = 0; i < keys.length; i++) {
+			final int k = keys[i];
+			switch (i & 3) {
+			case 0:
+				map.put(k, i);
+				break;
+			case 1:
+				map.put(k, (long)i << 20);
+				break;
+			case 2:
+				map.put(k, (float)i * 0.5f);
+				break;
+			default:
+				map.put(k, (double)i * 0.25);
+				break;
+			}
+		}
+	}
+	
+	private static void measureSessions(Context context) throws InterruptedException {
+		final Random random = new Random(2);
+		long serialized = 0, journaled = 0;
+		for (int session = 0; session < SESSIONS; session++) {
+			//before: every change is only kept in memory, and the whole map is
+			//written by onDestroy()
+			SerializableMap map = SerializableMap.deserialize(context, FILE_NAME);
+			if (map == null)
+				map = new SerializableMap(SETTINGS);
+			for (int i = 0; i < CHANGES_PER_SESSION; i++)
+				map.put(random.nextInt(SETTINGS), random.nextInt());
+			map.serialize(context, FILE_NAME);
+			serialized += map.getPersistenceTime();
+			
+			//after: every change is journaled, onPause() requests a flush, and
+			//onDestroy() closes the map
+			map = SerializableMap.openJournaled(context, FILE_NAME + "Journal");
+			for (int i = 0; i < CHANGES_PER_SESSION; i++)
+				map.put(random.nextInt(SETTINGS), random.nextInt());
+			map.requestFlush();
+			Thread.sleep(20);
+			map.close();
+			journaled += map.getPersistenceTime();
+		}
+		System.out.println("main thread time persisting " + SETTINGS + " settings (" + CHANGES_PER_SESSION + " changes per session, " + SESSIONS + " sessions):");
+		System.out.println("  serialize() in onDestroy(): " + (serialized / (SESSIONS * 1000L)) + " us/session");
+		System.out.println("  journaled, flushed in onPause(): " + (journaled / (SESSIONS * 1000L)) + " us/session");
+		context.deleteFile(FILE_NAME + "Journal");
+	}
+	
+	private static Object randomValue(Random random, int i) {
+		switch (i % 6) {
+		case 0:
+			return random.nextInt();
+		case 1:
+			return random.nextLong();
+		case 2:
+			return random.nextFloat();
+		case 3:
+			return random.nextDouble();
+		case 4:
+			final char[] chars = new char[random.nextInt(40)];
+			for (int c = 0; c < chars.length; c++)
+				chars[c] = (char)(0x20 + random.nextInt(0x3000));
+			return new String(chars);
+		default:
+			final byte[] buffer = new byte[random.nextInt(64)];
+			random.nextBytes(buffer);
+			return buffer;
+		}
+	}
+	
+	private static void put(SerializableMap map, int key, Object value) {
+		if (value instanceof Integer)
+			map.put(key, ((Integer)value).intValue());
+		else if (value instanceof Long)
+			map.put(key, ((Long)value).longValue());
+		else if (value instanceof Float)
+			map.put(key, ((Float)value).floatValue());
+		else if (value instanceof Double)
+			map.put(key, ((Double)value).doubleValue());
+		else if (value instanceof String)
+			map.put(key, (String)value);
+		else
+			map.put(key, (byte[])value);
+	}
+	
+	private static boolean matches(SerializableMap map, int key, Object expected) {
+		//uses the typed getters, as the application does
+		if (expected instanceof Integer)
+			return (map.getInt(key, ~((Integer)expected).intValue()) == ((Integer)expected).intValue());
+		if (expected instanceof Long)
+			return (map.getLong(key, ~((Long)expected).longValue()) == ((Long)expected).longValue());
+		if (expected instanceof Float)
+			return (Float.floatToRawIntBits(map.getFloat(key, Float.NaN)) == Float.floatToRawIntBits(((Float)expected).floatValue()));
+		if (expected instanceof Double)
+			return (Double.doubleToRawLongBits(map.getDouble(key, Double.NaN)) == Double.doubleToRawLongBits(((Double)expected).doubleValue()));
+		if (expected instanceof String)
+			return expected.equals(map.getString(key));
+		return Arrays.equals((byte[])expected, map.getBuffer(key));
+	}
+	
+	private static void verify(SerializableMap map, HashMap<Integer, Object> reference, String step) {
+		for (Map.Entry<Integer, Object> e : reference.entrySet()) {
+			final int key = e.getKey();
+			if (!map.containsKey(key) || !matches(map, key, e.getValue()))
+				throw new IllegalStateException(step + ": wrong value for key " + key);
+		}
+		//keys are multiples of 3, so these are never present
+		for (int i = 0; i < 100; i++) {
+			if (map.containsKey(i * 3 + 1) || map.get(i * 3 + 1) != null)
+				throw new IllegalStateException(step + ": absent key " + (i * 3 + 1) + " found");
+		}
+	}
+	
+	private static void verifyIndexed(Context context) {
+		final Random random = new Random(3);
+		final HashMap<Integer, Object> reference = new HashMap<Integer, Object>(INDEXED_KEYS * 2);
+		final SerializableMap map = new SerializableMap();
+		for (int i = 0; i < INDEXED_KEYS; i++) {
+			final int key = (random.nextInt(0x3FFFFFFF) / 3) * 3;
+			final Object value = randomValue(random, i);
+			reference.put(key, value);
+			put(map, key, value);
+		}
+		if (!map.serializeIndexed(context, FILE_NAME))
+			throw new IllegalStateException("serializeIndexed() failed");
+		final long fileSize = context.getFileStreamPath(FILE_NAME).length();
+		
+		//lazy access: only the requested value is decoded
+		final int firstKey = reference.keySet().iterator().next();
+		SerializableMap mapped = SerializableMap.openIndexed(context, FILE_NAME);
+		if (mapped == null || !matches(mapped, firstKey, reference.get(firstKey)))
+			throw new IllegalStateException("openIndexed() failed");
+		long lazyBytes = Long.MAX_VALUE;
+		for (int i = 0; i < 20; i++) {
+			final long bytes0 = getAllocatedBytes();
+			mapped = SerializableMap.openIndexed(context, FILE_NAME);
+			sink = mapped.get(firstKey).hashCode();
+			final long bytes = getAllocatedBytes() - bytes0;
+			if (bytes < lazyBytes)
+				lazyBytes = bytes;
+		}
+		if (getAllocatedBytes() >= 0 && lazyBytes * 4 > fileSize)
+			throw new IllegalStateException("openIndexed() + get allocated " + lazyBytes + " bytes for a " + fileSize + " byte file");
+		
+		//round trip
+		mapped = SerializableMap.openIndexed(context, FILE_NAME);
+		verify(mapped, reference, "round trip");
+		
+		//changes to a mapped map, written over its own file
+		mapped = SerializableMap.openIndexed(context, FILE_NAME);
+		int changes = 0;
+		for (Integer key : reference.keySet().toArray(new Integer[reference.size()])) {
+			switch (changes++ % 10) {
+			case 0:
+				mapped.remove(key);
+				reference.remove(key);
+				if (mapped.containsKey(key))
+					throw new IllegalStateException("removed key " + key + " still found");
+				break;
+			case 1:
+				final Object value = randomValue(random, changes);
+				put(mapped, key, value);
+				reference.put(key, value);
+				break;
+			}
+		}
+		for (int i = 0; i < 100; i++) {
+			final int key = 0x40000000 + (i * 3);
+			final Object value = randomValue(random, i);
+			put(mapped, key, value);
+			reference.put(key, value);
+		}
+		verify(mapped, reference, "mapped changes");
+		if (!mapped.serializeIndexed(context, FILE_NAME))
+			throw new IllegalStateException("serializeIndexed() over the mapped file failed");
+		verify(SerializableMap.openIndexed(context, FILE_NAME), reference, "rewritten file");
+		
+		//files written by serialize() are still read
+		final SerializableMap legacy = new SerializableMap();
+		fill(legacy, new int[] { 3, 6, 9, 12 });
+		legacy.serialize(context, FILE_NAME);
+		mapped = SerializableMap.openIndexed(context, FILE_NAME);
+		if (mapped == null || mapped.getInt(3) != 0 || mapped.getLong(6) != (1L << 20) || mapped.getFloat(9) != 1.0f || mapped.getDouble(12) != 0.75)
+			throw new IllegalStateException("openIndexed() failed to read a serialize() file");
+		context.deleteFile(FILE_NAME);
+		
+		System.out.println("indexed format: " + reference.size() + " keys verified, " + fileSize + " byte file, openIndexed() + 1 get: " +
+			((lazyBytes == Long.MAX_VALUE || getAllocatedBytes() < 0) ? "?" : Long.toString(lazyBytes)) + " B");
+		System.out.println();
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		final File dir = new File((args.length > 0) ? args[0] : System.getProperty("java.io.tmpdir"), "mapbench");
+		final Context context = new Context(dir);
+		final Random random = new Random(1);
+		
+		verifyIndexed(context);
+		
+		for (int s = 0; s < SIZES.length; s++) {
+			final int size = SIZES[s];
+			final int[] ascending = new int[size], shuffled = new int[size];
+			for (int i = 0; i < size; i++)
+				ascending[i] = i * 7 + 3;
+			System.arraycopy(ascending, 0, shuffled, 0, size);
+			for (int i = size - 1; i > 0; i--) {
+				final int j = random.nextInt(i + 1), t = shuffled[i];
+				shuffled[i] = shuffled[j];
+				shuffled[j] = t;
+			}
+			final SerializableMap map = new SerializableMap(size);
+			fill(map, ascending);
+			
+			System.out.println(size + " keys");
+			measure(new Operation("put (new keys, ascending)") {
+				@Override
+				public void run() {
+					fill(new SerializableMap(), ascending);
+				}
+			}, size);
+			if (size <= MAX_RANDOM_FILL_SIZE) {
+				measure(new Operation("put (new keys, random order)") {
+					@Override
+					public void run() {
+						fill(new SerializableMap(), shuffled);
+					}
+				}, size);
+			}
+			measure(new Operation("put (existing keys)") {
+				@Override
+				public void run() {
+					fill(map, shuffled);
+				}
+			}, size);
+			measure(new Operation("get") {
+				@Override
+				public void run() {
+					long acc = 0;
+					for (int i = 0; i < size; i++) {
+						//fill() stored type (i & 3) at ascending[i]
+						final int k = ascending[i];
+						switch (i & 3) {
+						case 0:
+							acc += map.getInt(k);
+							break;
+						case 1:
+							acc += map.getLong(k);
+							break;
+						case 2:
+							acc += (long)map.getFloat(k);
+							break;
+						default:
+							acc += (long)map.getDouble(k);
+							break;
+						}
+					}
+					sink = acc;
+				}
+			}, size);
+			measure(new Operation("serialize") {
+				@Override
+				public void run() {
+					if (!map.serialize(context, FILE_NAME))
+						throw new IllegalStateException("serialize() failed");
+				}
+			}, size);
+			measure(new Operation("deserialize") {
+				@Override
+				public void run() {
+					final SerializableMap m = SerializableMap.deserialize(context, FILE_NAME);
+					if (m == null)
+						throw new IllegalStateException("deserialize() failed");
+					sink = m.getInt(ascending[0]);
+				}
+			}, size);
+			if (!map.serializeIndexed(context, FILE_NAME))
+				throw new IllegalStateException("serializeIndexed() failed");
+			measure(new Operation("openIndexed + 1 get") {
+				@Override
+				public void run() {
+					final SerializableMap m = SerializableMap.openIndexed(context, FILE_NAME);
+					if (m == null)
+						throw new IllegalStateException("openIndexed() failed");
+					sink = m.getInt(ascending[0]);
+				}
+			}, size);
+			System.out.println();
+		}
+		context.deleteFile(FILE_NAME);
+		measureSessions(context);
+		context.deleteFile(FILE_NAME);
+		dir.delete();
+	}
+}
@@ -0,0 +1,279 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import br.com.bandtec.nxtcontrol.util.Serializer;
+
+/**
+ * Command-line tool that first checks that every util.Serializer codec
+ * (streams, byte arrays and ByteBuffers) round-trips random and edge-case
+ * ints, longs, floats, doubles and strings, also through a stream that
+ * returns a single byte per read() call, and then measures how long it takes
+ * to write and read a file of longs with each codec.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later). From the project's root folder:
+ * 
+ * javac -d bin/serializerbench src/br/com/bandtec/nxtcontrol/util/Serializer.java tools/br/com/bandtec/nxtcontrol/tools/SerializerBenchmark.java
+ * java -cp bin/serializerbench br.com.bandtec.nxtcontrol.tools.SerializerBenchmark [iterations] [tempDir]
+ * 
+ * The exit code is 1 if any round trip fails.
+ */
+public final class SerializerBenchmark {
+	private static final int VALUES_PER_FILE = 1 << 18;
+	private static final long[] EDGE_LONGS = { 0, 1, -1, 0x7F, 0x80, 0xFF, 0x100, Integer.MAX_VALUE, Integer.MIN_VALUE, 0xFFFFFFFFL,
+		0x100000000L, 0x8000000000L, 0x0123456789ABCDEFL, 0x8080808080808080L, Long.MAX_VALUE, Long.MIN_VALUE };
+	
+	private static int failures;
+	
+	private SerializerBenchmark() {
+	}
+	
+	//returns at most one byte per read() call, like a slow socket would
+	private static final class TrickleInputStream extends InputStream {
+		private final InputStream is;
+		
+		public TrickleInputStream(InputStream is) {
+			this.is = is;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return is.read();
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			return is.read(buffer, offset, (length > 0) ? 1 : 0);
+		}
+	}
+	
+	private static void fail(String what, Object expected, Object actual) {
+		if (failures < 20)
+			System.out.println("FAIL " + what + ": expected " + expected + " got " + actual);
+		failures++;
+	}
+	
+	private static String randomString(Random random) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return null;
+		case 1:
+			return "";
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (int i = random.nextInt(40); i >= 0; i--) {
+			//mostly ASCII, but also accents and characters outside the BMP
+			final int r = random.nextInt(10);
+			if (r < 7)
+				sb.append((char)(32 + random.nextInt(95)));
+			else if (r < 9)
+				sb.append((char)(0xA0 + random.nextInt(0x700)));
+			else
+				sb.appendCodePoint(0x1F600 + random.nextInt(64));
+		}
+		return sb.toString();
+	}
+	
+	private static void check(long value, Random random) throws IOException {
+		final int i = (int)value;
+		final float f = Float.intBitsToFloat(i);
+		final double d = Double.longBitsToDouble(value);
+		final String s = randomString(random);
+		
+		//streams (also through a stream that forces the full-read loops to loop)
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		Serializer.serializeInt(bos, i);
+		Serializer.serializeLong(bos, value);
+		Serializer.serializeFloat(bos, f);
+		Serializer.serializeDouble(bos, d);
+		Serializer.serializeString(bos, s);
+		final byte[] bytes = bos.toByteArray();
+		for (int pass = 0; pass < 2; pass++) {
+			final InputStream is = ((pass == 0) ? new ByteArrayInputStream(bytes) : new TrickleInputStream(new ByteArrayInputStream(bytes)));
+			final String p = ((pass == 0) ? "stream " : "trickle stream ");
+			final int i2 = Serializer.deserializeInt(is);
+			if (i2 != i) fail(p + "int", i, i2);
+			final long l2 = Serializer.deserializeLong(is);
+			if (l2 != value) fail(p + "long", value, l2);
+			final int f2 = Float.floatToRawIntBits(Serializer.deserializeFloat(is));
+			if (f2 != i) fail(p + "float bits", i, f2);
+			final long d2 = Double.doubleToRawLongBits(Serializer.deserializeDouble(is));
+			if (d2 != value) fail(p + "double bits", value, d2);
+			final String s2 = Serializer.deserializeString(is);
+			if ((s == null) ? (s2 != null) : !s.equals(s2)) fail(p + "string", s, s2);
+			if (is.read() != -1) fail(p + "length", bytes.length, "more");
+		}
+		
+		//byte arrays and ByteBuffers must produce the same bytes as the streams
+		final byte[] strBytes = ((s == null) ? null : s.getBytes(Serializer.UTF8));
+		final ByteBuffer bb = Serializer.allocate(24 + Serializer.getStringLength(strBytes));
+		bb.putInt(i).putLong(value).putFloat(f).putDouble(d);
+		Serializer.serializeString(bb, strBytes);
+		final byte[] arr = new byte[24];
+		Serializer.serializeInt(arr, 0, i);
+		Serializer.serializeLong(arr, 4, value);
+		Serializer.serializeFloat(arr, 12, f);
+		Serializer.serializeDouble(arr, 16, d);
+		for (int j = 0; j < bytes.length; j++) {
+			if (bb.get(j) != bytes[j] || (j < 24 && arr[j] != bytes[j])) {
+				fail("buffer/array bytes at " + j + " for " + value, bytes[j], bb.get(j));
+				break;
+			}
+		}
+		if (Serializer.deserializeInt(arr, 0) != i) fail("array int", i, Serializer.deserializeInt(arr, 0));
+		if (Serializer.deserializeLong(arr, 4) != value) fail("array long", value, Serializer.deserializeLong(arr, 4));
+		bb.flip();
+		bb.position(24);
+		final String s3 = Serializer.deserializeString(bb);
+		if ((s == null) ? (s3 != null) : !s.equals(s3)) fail("buffer string", s, s3);
+		if (bb.hasRemaining()) fail("buffer length", 0, bb.remaining());
+	}
+	
+	private static long writeLegacy(File file, long[] values) throws IOException {
+		//what serializeLong(OutputStream) used to do: one write() call per byte
+		final long time0 = System.nanoTime();
+		final OutputStream os = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < values.length; i++) {
+				final long v = values[i];
+				for (int b = 0; b < 64; b += 8)
+					os.write((int)(v >>> b));
+			}
+		} finally {
+			os.close();
+		}
+		return System.nanoTime() - time0;
+	}
+	
+	private static long writeStream(File file, long[] values) throws IOException {
+		final long time0 = System.nanoTime();
+		final OutputStream os = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < values.length; i++)
+				Serializer.serializeLong(os, values[i]);
+		} finally {
+			os.close();
+		}
+		return System.nanoTime() - time0;
+	}
+	
+	private static long writeBulk(File file, long[] values) throws IOException {
+		final long time0 = System.nanoTime();
+		final ByteBuffer bb = Serializer.allocate(values.length << 3);
+		for (int i = 0; i < values.length; i++)
+			bb.putLong(values[i]);
+		bb.flip();
+		final FileOutputStream os = new FileOutputStream(file);
+		try {
+			Serializer.writeFully(os.getChannel(), bb);
+		} finally {
+			os.close();
+		}
+		return System.nanoTime() - time0;
+	}
+	
+	private static long readStream(File file, long[] values) throws IOException {
+		final long time0 = System.nanoTime();
+		final InputStream is = new FileInputStream(file);
+		try {
+			for (int i = 0; i < values.length; i++) {
+				if (Serializer.deserializeLong(is) != values[i])
+					fail("file stream long", values[i], "other");
+			}
+		} finally {
+			is.close();
+		}
+		return System.nanoTime() - time0;
+	}
+	
+	private static long readBulk(File file, long[] values) throws IOException {
+		final long time0 = System.nanoTime();
+		final FileInputStream is = new FileInputStream(file);
+		try {
+			final ByteBuffer bb = Serializer.allocate((int)is.getChannel().size());
+			Serializer.readFully(is.getChannel(), bb);
+			bb.flip();
+			for (int i = 0; i < values.length; i++) {
+				if (bb.getLong() != values[i])
+					fail("file bulk long", values[i], "other");
+			}
+		} finally {
+			is.close();
+		}
+		return System.nanoTime() - time0;
+	}
+	
+	private static void report(String name, long[] times) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < times.length; i++) {
+			if (times[i] < best)
+				best = times[i];
+		}
+		System.out.println("  " + name + ": " + String.format("%.1f", (double)best / (double)VALUES_PER_FILE) + " ns/long (best of " + times.length + ")");
+	}
+	
+	public static void main(String[] args) throws IOException {
+		final int iterations = ((args.length > 0) ? Integer.parseInt(args[0]) : 200000);
+		final File file = new File((args.length > 1) ? args[1] : System.getProperty("java.io.tmpdir"), "_NXTSerializerBenchmark");
+		final Random random = new Random(1);
+		
+		for (int i = 0; i < EDGE_LONGS.length; i++) {
+			check(EDGE_LONGS[i], random);
+			check(Long.reverseBytes(EDGE_LONGS[i]), random);
+		}
+		for (int i = 0; i < iterations; i++)
+			check(random.nextLong(), random);
+		System.out.println("round trips: " + (iterations + (EDGE_LONGS.length << 1)) + " failures: " + failures);
+		
+		final long[] values = new long[VALUES_PER_FILE];
+		for (int i = 0; i < values.length; i++)
+			values[i] = random.nextLong();
+		final int runs = 5;
+		final long[] legacy = new long[runs], stream = new long[runs], bulk = new long[runs], streamRead = new long[runs], bulkRead = new long[runs];
+		for (int r = 0; r < runs; r++) {
+			legacy[r] = writeLegacy(file, values);
+			stream[r] = writeStream(file, values);
+			streamRead[r] = readStream(file, values);
+			bulk[r] = writeBulk(file, values);
+			bulkRead[r] = readBulk(file, values);
+		}
+		file.delete();
+		System.out.println(VALUES_PER_FILE + " longs, unbuffered file streams vs. ByteBuffer + channel:");
+		report("write, one call per byte (old)", legacy);
+		report("write, serializeLong(OutputStream)", stream);
+		report("write, ByteBuffer + writeFully()", bulk);
+		report("read, deserializeLong(InputStream)", streamRead);
+		report("read, readFully() + ByteBuffer", bulkRead);
+		if (failures != 0)
+			System.exit(1);
+	}
+}
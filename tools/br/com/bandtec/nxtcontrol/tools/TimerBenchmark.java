@@ -0,0 +1,453 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import br.com.bandtec.nxtcontrol.activity.MainHandler;
+import br.com.bandtec.nxtcontrol.util.Histogram;
+import br.com.bandtec.nxtcontrol.util.Timer;
+
+/**
+ * Command-line benchmark for util.Timer, with three tests (-t):
+ * 
+ * jitter: runs many concurrent periodic timers (1 to 100 ms) under background
+ * CPU load, and reports period errors, missed deadlines and the CPU time
+ * spent by the scheduler and main threads, for each of the three periodic
+ * modes (fixed delay, fixed rate and precise).
+ * 
+ * churn: starts and stops randomly chosen periodic timers as fast as
+ * possible, and reports the time and the memory allocated per operation,
+ * and the threads created, for util.Timer and for ThreadPerTimer (the
+ * previous implementation, which created a thread per start()).
+ * 
+ * memory: starts the given number of periodic timers, and reports the heap
+ * retained and the threads added per running timer, for both implementations.
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 6 or later), with MainHandler and SystemClock replaced by the
+ * doubles found in tools/doubles. From the project's root folder:
+ * 
+ * javac -d bin/timerbench tools/doubles/br/com/bandtec/nxtcontrol/activity/MainHandler.java tools/doubles/android/os/SystemClock.java src/br/com/bandtec/nxtcontrol/util/Timer.java src/br/com/bandtec/nxtcontrol/util/Histogram.java tools/br/com/bandtec/nxtcontrol/tools/ThreadPerTimer.java tools/br/com/bandtec/nxtcontrol/tools/TimerBenchmark.java
+ * java -cp bin/timerbench br.com.bandtec.nxtcontrol.tools.TimerBenchmark [-t jitter|churn|memory|all] [-n timers] [-d seconds] [-l loadThreads] [-m mainPercent] [-s seed]
+ * 
+ * The intervals are drawn log-uniformly from [1, 100] ms using the given
+ * seed, so two runs with the same arguments use the same set of timers.
+ * Allocations are only reported on JVMs that support
+ * com.sun.management.ThreadMXBean.
+ */
+public final class TimerBenchmark {
+	private static final String[] MODE_NAMES = { "fixed delay", "fixed rate", "precise" };
+	private static final int[] GROUP_LIMITS = { 3, 10, 30, 100 };
+	private static final long CHURN_NANOS = 2000000000L;
+	//long enough for the timers not to tick during the churn and memory tests
+	private static final int IDLE_INTERVAL = 60000;
+	
+	private static volatile boolean loadRunning;
+	
+	private TimerBenchmark() {
+	}
+	
+	private static final class Probe implements Timer.TimerHandler {
+		public final int interval;
+		public final long intervalNanos;
+		public final Histogram periodError = new Histogram();
+		public long lastTick, ticks, missed;
+		
+		public Probe(int interval) {
+			this.interval = interval;
+			this.intervalNanos = (long)interval * 1000000L;
+		}
+		
+		@Override
+		public void handleTimer(Timer timer, Object param) {
+			final long now = System.nanoTime();
+			if (lastTick != 0) {
+				final long gap = now - lastTick;
+				//how far this tick was from where it should have been, in microseconds
+				periodError.add(Math.abs(gap - intervalNanos) / 1000L);
+				if (gap >= (intervalNanos << 1))
+					missed += (gap / intervalNanos) - 1;
+			}
+			lastTick = now;
+			ticks++;
+		}
+	}
+	
+	//the two implementations compared by the churn and memory tests
+	private static abstract class Subject {
+		public final String name;
+		
+		public Subject(String name) {
+			this.name = name;
+		}
+		
+		public abstract void create(int count);
+		public abstract void start(int index, int interval);
+		public abstract void stop(int index);
+		public abstract boolean isAlive(int index);
+		public abstract void release();
+	}
+	
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+	
+	private static final class SharedThreadSubject extends Subject {
+		private Timer[] timers;
+		
+		public SharedThreadSubject() {
+			super("util.Timer (shared thread)");
+		}
+		
+		@Override
+		public void create(int count) {
+			timers = new Timer[count];
+			for (int i = 0; i < count; i++)
+				timers[i] = new Timer(NOTHING, "Churn " + i);
+		}
+		
+		@Override
+		public void start(int index, int interval) {
+			timers[index].start(interval, false);
+		}
+		
+		@Override
+		public void stop(int index) {
+			timers[index].stop();
+		}
+		
+		@Override
+		public boolean isAlive(int index) {
+			return timers[index].isAlive();
+		}
+		
+		@Override
+		public void release() {
+			for (int i = 0; i < timers.length; i++)
+				timers[i].stopAndWait();
+			timers = null;
+		}
+	}
+	
+	private static final class ThreadPerTimerSubject extends Subject {
+		private ThreadPerTimer[] timers;
+		
+		public ThreadPerTimerSubject() {
+			super("ThreadPerTimer (previous)");
+		}
+		
+		@Override
+		public void create(int count) {
+			timers = new ThreadPerTimer[count];
+			for (int i = 0; i < count; i++)
+				timers[i] = new ThreadPerTimer(NOTHING, "Churn " + i);
+		}
+		
+		@Override
+		public void start(int index, int interval) {
+			timers[index].start(interval, false);
+		}
+		
+		@Override
+		public void stop(int index) {
+			timers[index].stop();
+		}
+		
+		@Override
+		public boolean isAlive(int index) {
+			return timers[index].isAlive();
+		}
+		
+		@Override
+		public void release() {
+			for (int i = 0; i < timers.length; i++)
+				timers[i].stopAndWait();
+			timers = null;
+		}
+	}
+	
+	private static long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+	
+	private static long getUsedHeap() throws InterruptedException {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	private static void waitForThreads(int expected) throws InterruptedException {
+		//the threads of stopped ThreadPerTimers finish on their own, shortly after stop()
+		for (int i = 0; i < 200 && Thread.activeCount() > expected; i++)
+			Thread.sleep(10);
+	}
+	
+	private static void runChurn(Subject subject, int count, long seed) throws InterruptedException {
+		final Random random = new Random(seed);
+		subject.create(count);
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		final int threads0 = Thread.activeCount();
+		//warm up, then measure
+		for (int pass = 0; pass < 2; pass++) {
+			final long started0 = bean.getTotalStartedThreadCount();
+			final long bytes0 = getAllocatedBytes(), time0 = System.nanoTime();
+			final long deadline = time0 + ((pass == 0) ? (CHURN_NANOS >> 2) : CHURN_NANOS);
+			long ops = 0, time;
+			int peakThreads = 0;
+			do {
+				for (int i = 0; i < 1000; i++) {
+					final int index = random.nextInt(count);
+					if (subject.isAlive(index))
+						subject.stop(index);
+					else
+						subject.start(index, IDLE_INTERVAL);
+				}
+				ops += 1000;
+				final int threads = Thread.activeCount();
+				if (threads > peakThreads)
+					peakThreads = threads;
+			} while ((time = System.nanoTime()) < deadline);
+			final long bytes = getAllocatedBytes() - bytes0;
+			if (pass == 1)
+				System.out.println("  " + subject.name + ": " + String.format("%.1f", (double)(time - time0) / (double)ops) + " ns/op" +
+					((bytes0 < 0) ? "" : (" " + String.format("%.1f", (double)bytes / (double)ops) + " B/op")) +
+					" threads started: " + String.format("%.3f", (double)(bean.getTotalStartedThreadCount() - started0) / (double)ops) + "/op" +
+					" peak extra threads: " + (peakThreads - threads0));
+		}
+		subject.release();
+		waitForThreads(threads0);
+	}
+	
+	private static void runMemory(Subject subject, int count) throws InterruptedException {
+		final int threads0 = Thread.activeCount();
+		final long heap0 = getUsedHeap();
+		subject.create(count);
+		for (int i = 0; i < count; i++)
+			subject.start(i, IDLE_INTERVAL);
+		Thread.sleep(100);
+		final long heap = getUsedHeap() - heap0;
+		final int threads = Thread.activeCount() - threads0;
+		System.out.println("  " + subject.name + ": " + String.format("%.1f", (double)heap / (double)count) + " B/timer of heap, " +
+			String.format("%.3f", (double)threads / (double)count) + " threads/timer");
+		subject.release();
+		waitForThreads(threads0);
+	}
+	
+	private static void startLoad(int threads) {
+		loadRunning = true;
+		for (int i = 0; i < threads; i++) {
+			final Thread thread = new Thread("Load " + i) {
+				@Override
+				public void run() {
+					long x = 0;
+					while (loadRunning) {
+						//burn the CPU, and produce some garbage as well
+						for (int j = 0; j < 100000; j++)
+							x = x * 6364136223846793005L + 1442695040888963407L;
+						if (new long[64 + (int)(x & 63)].length == 0)
+							System.out.print("");
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	private static Thread findThread(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (name.equals(thread.getName()))
+				return thread;
+		}
+		return null;
+	}
+	
+	private static long getCpuTime(ThreadMXBean bean, Thread thread) {
+		if (thread == null || !bean.isThreadCpuTimeSupported())
+			return 0;
+		final long t = bean.getThreadCpuTime(thread.getId());
+		return ((t < 0) ? 0 : t);
+	}
+	
+	private static void waitForMainThread() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		MainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		});
+		latch.await();
+	}
+	
+	private static void run(int mode, int[] intervals, boolean[] onMain, int seconds) throws InterruptedException {
+		final int count = intervals.length;
+		final Probe[] probes = new Probe[count];
+		final Timer[] timers = new Timer[count];
+		for (int i = 0; i < count; i++) {
+			probes[i] = new Probe(intervals[i]);
+			timers[i] = new Timer(probes[i], "Probe " + i);
+			timers[i].setCompensatingForDelays(mode == 1);
+			timers[i].setPrecise(mode == 2);
+			timers[i].setHandledOnMain(onMain[i]);
+		}
+		//make sure both threads exist before sampling their CPU times
+		waitForMainThread();
+		final Timer warmUp = new Timer(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+		warmUp.start(1, true);
+		Thread.sleep(10);
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		final Thread scheduler = findThread("Timer Thread"), main = MainHandler.getMainThread();
+		final long schedulerCpu0 = getCpuTime(bean, scheduler), mainCpu0 = getCpuTime(bean, main);
+		
+		for (int i = 0; i < count; i++)
+			timers[i].start(intervals[i], false);
+		Thread.sleep(seconds * 1000L);
+		for (int i = 0; i < count; i++)
+			timers[i].stopAndWait();
+		waitForMainThread();
+		
+		final long schedulerCpu = getCpuTime(bean, scheduler) - schedulerCpu0, mainCpu = getCpuTime(bean, main) - mainCpu0;
+		final Histogram all = new Histogram(), jitter = new Histogram();
+		final Histogram[] groupP99 = new Histogram[GROUP_LIMITS.length];
+		final long[] groupTicks = new long[GROUP_LIMITS.length], groupMissed = new long[GROUP_LIMITS.length];
+		long ticks = 0, missed = 0, dropped = 0;
+		for (int g = 0; g < GROUP_LIMITS.length; g++)
+			groupP99[g] = new Histogram();
+		for (int i = 0; i < count; i++) {
+			final Probe p = probes[i];
+			int g = 0;
+			while (p.interval > GROUP_LIMITS[g])
+				g++;
+			//the precise mode counts its own missed ticks, since it coalesces them
+			final long m = ((mode == 2) ? timers[i].getMissedTickCount() : p.missed);
+			groupP99[g].add(p.periodError.getPercentile(0.99));
+			groupTicks[g] += p.ticks;
+			groupMissed[g] += m;
+			ticks += p.ticks;
+			missed += m;
+			dropped += timers[i].getDroppedTickCount();
+			all.add(p.periodError.getPercentile(0.5));
+			if (mode == 2) {
+				final Histogram h = timers[i].getJitterHistogram();
+				jitter.add(h.getPercentile(0.99));
+			}
+		}
+		
+		System.out.println("== " + MODE_NAMES[mode] + " ==");
+		System.out.println("ticks: " + ticks + " missed: " + missed + " dropped (main): " + dropped);
+		System.out.println("per-timer p50 period error (us): " + all);
+		for (int g = 0; g < GROUP_LIMITS.length; g++) {
+			if (groupP99[g].getCount() == 0)
+				continue;
+			System.out.println("  <= " + GROUP_LIMITS[g] + " ms: timers=" + groupP99[g].getCount() + " ticks=" + groupTicks[g] + " missed=" + groupMissed[g] +
+				" per-timer p99 period error (us): p50=" + groupP99[g].getPercentile(0.5) + " max=" + groupP99[g].getMax());
+		}
+		if (mode == 2)
+			System.out.println("per-timer p99 lateness (us): " + jitter);
+		if (ticks != 0)
+			System.out.println("cpu: scheduler=" + (schedulerCpu / 1000000L) + " ms main=" + (mainCpu / 1000000L) + " ms (" +
+				((schedulerCpu + mainCpu) / ticks) + " ns/tick)");
+		System.out.println();
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		int count = 200, seconds = 10, loadThreads = Runtime.getRuntime().availableProcessors(), mainPercent = 0;
+		long seed = 1;
+		String test = "all";
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (i == args.length - 1 || arg.length() != 2 || arg.charAt(0) != '-') {
+				System.err.println("Usage: TimerBenchmark [-t jitter|churn|memory|all] [-n timers] [-d seconds] [-l loadThreads] [-m mainPercent] [-s seed]");
+				System.exit(1);
+				return;
+			}
+			i++;
+			switch (arg.charAt(1)) {
+			case 'n':
+				count = Integer.parseInt(args[i]);
+				break;
+			case 'd':
+				seconds = Integer.parseInt(args[i]);
+				break;
+			case 'l':
+				loadThreads = Integer.parseInt(args[i]);
+				break;
+			case 'm':
+				mainPercent = Integer.parseInt(args[i]);
+				break;
+			case 's':
+				seed = Long.parseLong(args[i]);
+				break;
+			case 't':
+				test = args[i];
+				break;
+			}
+		}
+		
+		final Random random = new Random(seed);
+		final int[] intervals = new int[count];
+		final boolean[] onMain = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			intervals[i] = (int)Math.round(Math.exp(random.nextDouble() * Math.log(100.0)));
+			onMain[i] = (random.nextInt(100) < mainPercent);
+		}
+		
+		final boolean all = test.equals("all");
+		if (all || test.equals("churn")) {
+			//both implementations are measured without background load
+			System.out.println("== start/stop churn, " + count + " timers ==");
+			runChurn(new SharedThreadSubject(), count, seed);
+			runChurn(new ThreadPerTimerSubject(), count, seed);
+			System.out.println();
+		}
+		if (all || test.equals("memory")) {
+			//the stack of each thread is not part of the heap, and is not included
+			System.out.println("== memory per running timer, " + count + " timers ==");
+			runMemory(new SharedThreadSubject(), count);
+			runMemory(new ThreadPerTimerSubject(), count);
+			System.out.println();
+		}
+		if (all || test.equals("jitter")) {
+			System.out.println("timers: " + count + " duration: " + seconds + " s load threads: " + loadThreads + " handled on main: " + mainPercent + "% seed: " + seed);
+			System.out.println();
+			startLoad(loadThreads);
+			for (int mode = 0; mode < MODE_NAMES.length; mode++)
+				run(mode, intervals, onMain, seconds);
+			loadRunning = false;
+		}
+	}
+}
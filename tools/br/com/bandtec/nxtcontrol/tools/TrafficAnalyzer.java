@@ -0,0 +1,458 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.tools;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import br.com.bandtec.nxtcontrol.FlightRecorder;
+import br.com.bandtec.nxtcontrol.LCPMessage;
+
+/**
+ * Command-line tool that analyzes the traffic captures written by
+ * FlightRecorder (_NXTTraffic and _NXTTrafficDump files).
+ * 
+ * This class is not part of the Android application, and runs on a plain
+ * JVM (Java 7 or later). From the project's root folder:
+ * 
+ * javac -d bin/tools -sourcepath src:tools tools/br/com/bandtec/nxtcontrol/tools/TrafficAnalyzer.java
+ * java -cp bin/tools br.com.bandtec.nxtcontrol.tools.TrafficAnalyzer [-w windowMs] file...
+ * 
+ * The file is memory-mapped, and a quick sequential pass splits it into
+ * chunks of CHUNK_RECORDS records. The chunks are then analyzed in parallel
+ * by a ForkJoinPool, and the partial results are merged in file order, so
+ * gaps, round trips and coalescing opportunities spanning two chunks are
+ * still accounted for.
+ */
+public final class TrafficAnalyzer {
+	private static final int CHUNK_RECORDS = 1 << 16;
+	private static final int REGION_SHIFT = 30;
+	private static final long REGION_SIZE = 1L << REGION_SHIFT;
+	private static final int MAX_RECORD_SIZE = FlightRecorder.RECORD_HEADER_SIZE + 0xFFFF;
+	//coalescing keys: 256 output ports (SET_OUTPUT_STATE) + 256 mailboxes (MESSAGE_WRITE)
+	private static final int KEY_COUNT = 512;
+	
+	private TrafficAnalyzer() {
+	}
+	
+	/**
+	 * Log-linear histogram of non-negative values (16 sub-buckets per power of 2),
+	 * cheap to fill and to merge
+	 */
+	static final class Histogram {
+		private static final int SUB_BITS = 4;
+		private final long[] counts = new long[64 << SUB_BITS];
+		private long count, total, max;
+		
+		private static int indexOf(long value) {
+			if (value < (1 << SUB_BITS))
+				return (int)value;
+			final int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return ((exp + 1) << SUB_BITS) + (int)((value >>> exp) & ((1 << SUB_BITS) - 1));
+		}
+		
+		private static long valueOf(int index) {
+			if (index < (1 << SUB_BITS))
+				return index;
+			final int exp = (index >>> SUB_BITS) - 1;
+			return ((long)((1 << SUB_BITS) | (index & ((1 << SUB_BITS) - 1)))) << exp;
+		}
+		
+		public void add(long value) {
+			if (value < 0)
+				value = 0;
+			counts[indexOf(value)]++;
+			count++;
+			total += value;
+			if (value > max)
+				max = value;
+		}
+		
+		public void merge(Histogram h) {
+			for (int i = counts.length - 1; i >= 0; i--)
+				counts[i] += h.counts[i];
+			count += h.count;
+			total += h.total;
+			if (h.max > max)
+				max = h.max;
+		}
+		
+		public long percentile(double p) {
+			if (count == 0)
+				return 0;
+			final long target = (long)Math.ceil(p * (double)count);
+			long acc = 0;
+			for (int i = 0; i < counts.length; i++) {
+				acc += counts[i];
+				if (acc >= target && counts[i] != 0)
+					return ((valueOf(i) > max) ? max : valueOf(i));
+			}
+			return max;
+		}
+		
+		public String describe(String unit) {
+			if (count == 0)
+				return "(no samples)";
+			return "n=" + count + " mean=" + (total / count) + unit + " p50=" + percentile(0.5) + unit + " p90=" + percentile(0.9) + unit +
+				" p99=" + percentile(0.99) + unit + " max=" + max + unit;
+		}
+	}
+	
+	/**
+	 * Results computed for a contiguous range of records
+	 */
+	static final class Partial {
+		final long[] commandMix = new long[2 * 256 * 256]; //direction, type, opcode
+		final Histogram gaps = new Histogram(), rtt = new Histogram();
+		final long[] firstKeyTime = new long[KEY_COUNT], lastKeyTime = new long[KEY_COUNT];
+		//replies found before any matching request within this range
+		final ArrayList<long[]> headReplies = new ArrayList<long[]>();
+		//requests still waiting for a reply at the end of this range, per opcode
+		final ArrayList<ArrayList<Long>> tailRequests = new ArrayList<ArrayList<Long>>(256);
+		long frames, outFrames, inFrames, coalescable, firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE, firstOutTime = -1, lastOutTime = -1;
+		
+		Partial() {
+			for (int i = 0; i < 256; i++)
+				tailRequests.add(new ArrayList<Long>());
+			for (int i = 0; i < KEY_COUNT; i++) {
+				firstKeyTime[i] = -1;
+				lastKeyTime[i] = -1;
+			}
+		}
+		
+		private void reply(int opcode, long time) {
+			final ArrayList<Long> pending = tailRequests.get(opcode);
+			if (pending.isEmpty())
+				headReplies.add(new long[] { opcode, time });
+			else
+				rtt.add((time - pending.remove(0)) / 1000L);
+		}
+		
+		void add(int direction, int type, int opcode, int target, long time) {
+			frames++;
+			commandMix[(direction << 16) | (type << 8) | opcode]++;
+			if (time < firstTime)
+				firstTime = time;
+			if (time > lastTime)
+				lastTime = time;
+			if (direction == FlightRecorder.INBOUND) {
+				inFrames++;
+				if ((byte)type == LCPMessage.REPLY_COMMAND)
+					reply(opcode, time);
+				return;
+			}
+			outFrames++;
+			if (lastOutTime >= 0)
+				gaps.add((time - lastOutTime) / 1000L);
+			else
+				firstOutTime = time;
+			lastOutTime = time;
+			if ((byte)type == LCPMessage.DIRECT_COMMAND_REPLY || (byte)type == LCPMessage.SYSTEM_COMMAND_REPLY)
+				tailRequests.get(opcode).add(time);
+			final int key;
+			if ((byte)opcode == LCPMessage.SET_OUTPUT_STATE && ((byte)type == LCPMessage.DIRECT_COMMAND_NOREPLY || (byte)type == LCPMessage.DIRECT_COMMAND_REPLY))
+				key = target;
+			else if ((byte)opcode == LCPMessage.MESSAGE_WRITE && ((byte)type == LCPMessage.DIRECT_COMMAND_NOREPLY || (byte)type == LCPMessage.DIRECT_COMMAND_REPLY))
+				key = 256 + target;
+			else
+				return;
+			if (lastKeyTime[key] >= 0 && (time - lastKeyTime[key]) <= window)
+				coalescable++;
+			if (firstKeyTime[key] < 0)
+				firstKeyTime[key] = time;
+			lastKeyTime[key] = time;
+		}
+		
+		//merges a range that comes right after this one
+		void merge(Partial next) {
+			for (int i = commandMix.length - 1; i >= 0; i--)
+				commandMix[i] += next.commandMix[i];
+			frames += next.frames;
+			outFrames += next.outFrames;
+			inFrames += next.inFrames;
+			coalescable += next.coalescable;
+			if (next.firstTime < firstTime)
+				firstTime = next.firstTime;
+			if (next.lastTime > lastTime)
+				lastTime = next.lastTime;
+			gaps.merge(next.gaps);
+			if (lastOutTime >= 0 && next.firstOutTime >= 0)
+				gaps.add((next.firstOutTime - lastOutTime) / 1000L);
+			if (firstOutTime < 0)
+				firstOutTime = next.firstOutTime;
+			if (next.lastOutTime >= 0)
+				lastOutTime = next.lastOutTime;
+			for (int i = 0; i < KEY_COUNT; i++) {
+				if (lastKeyTime[i] >= 0 && next.firstKeyTime[i] >= 0 && (next.firstKeyTime[i] - lastKeyTime[i]) <= window)
+					coalescable++;
+				if (firstKeyTime[i] < 0)
+					firstKeyTime[i] = next.firstKeyTime[i];
+				if (next.lastKeyTime[i] >= 0)
+					lastKeyTime[i] = next.lastKeyTime[i];
+			}
+			rtt.merge(next.rtt);
+			for (int i = 0; i < next.headReplies.size(); i++) {
+				final long[] r = next.headReplies.get(i);
+				reply((int)r[0], r[1]);
+			}
+			for (int i = 0; i < 256; i++)
+				tailRequests.get(i).addAll(next.tailRequests.get(i));
+		}
+	}
+	
+	/**
+	 * Memory-mapped view of a whole file, possibly larger than 2 GiB. Regions
+	 * overlap by MAX_RECORD_SIZE bytes, so any record is entirely inside the
+	 * region where it starts.
+	 */
+	static final class Input {
+		final MappedByteBuffer[] regions;
+		final long length;
+		
+		Input(FileChannel channel) throws Exception {
+			length = channel.size();
+			regions = new MappedByteBuffer[(int)((length + REGION_SIZE - 1) >>> REGION_SHIFT)];
+			for (int i = 0; i < regions.length; i++) {
+				final long start = (long)i << REGION_SHIFT;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE + MAX_RECORD_SIZE, length - start));
+				regions[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		
+		MappedByteBuffer region(long position) {
+			return regions[(int)(position >>> REGION_SHIFT)];
+		}
+		
+		static int local(long position) {
+			return (int)(position & (REGION_SIZE - 1));
+		}
+		
+		//returns the position of the next record, or -1 if the record is truncated
+		long next(long position) {
+			if ((position + FlightRecorder.RECORD_HEADER_SIZE) > length)
+				return -1;
+			final long next = position + FlightRecorder.RECORD_HEADER_SIZE + (region(position).getShort(local(position) + 11) & 0xFFFF);
+			return ((next > length) ? -1 : next);
+		}
+	}
+	
+	static long window;
+	
+	static final class Task extends RecursiveTask<Partial> {
+		private static final long serialVersionUID = 1L;
+		private final Input input;
+		private final long[] bounds;
+		private final int first, last;
+		
+		Task(Input input, long[] bounds, int first, int last) {
+			this.input = input;
+			this.bounds = bounds;
+			this.first = first;
+			this.last = last;
+		}
+		
+		@Override
+		protected Partial compute() {
+			if ((last - first) > 1) {
+				final int middle = (first + last) >>> 1;
+				final Task right = new Task(input, bounds, middle, last);
+				right.fork();
+				final Partial p = new Task(input, bounds, first, middle).compute();
+				p.merge(right.join());
+				return p;
+			}
+			final Partial p = new Partial();
+			final long end = bounds[last];
+			long position = bounds[first];
+			while (position < end) {
+				final MappedByteBuffer b = input.region(position);
+				final int o = Input.local(position);
+				final int captured = b.getShort(o + 11) & 0xFFFF;
+				if (captured >= 2)
+					p.add(b.get(o + 8) & 1, b.get(o + 13) & 0xFF, b.get(o + 14) & 0xFF, (captured >= 3) ? (b.get(o + 15) & 0xFF) : 0, b.getLong(o));
+				position += FlightRecorder.RECORD_HEADER_SIZE + captured;
+			}
+			return p;
+		}
+	}
+	
+	static String opcodeName(int type, int opcode) {
+		final byte t = (byte)type, o = (byte)opcode;
+		final boolean system = (t == LCPMessage.SYSTEM_COMMAND_REPLY || t == LCPMessage.SYSTEM_COMMAND_NOREPLY);
+		if (system) {
+			switch (o) {
+			case LCPMessage.OPEN_READ: return "OPEN_READ";
+			case LCPMessage.OPEN_WRITE: return "OPEN_WRITE";
+			case LCPMessage.READ: return "READ";
+			case LCPMessage.WRITE: return "WRITE";
+			case LCPMessage.CLOSE: return "CLOSE";
+			case LCPMessage.DELETE: return "DELETE";
+			case LCPMessage.FIND_FIRST: return "FIND_FIRST";
+			case LCPMessage.FIND_NEXT: return "FIND_NEXT";
+			case LCPMessage.GET_FIRMWARE_VERSION: return "GET_FIRMWARE_VERSION";
+			case LCPMessage.OPEN_WRITE_LINEAR: return "OPEN_WRITE_LINEAR";
+			case LCPMessage.OPEN_READ_LINEAR: return "OPEN_READ_LINEAR";
+			case LCPMessage.OPEN_WRITE_DATA: return "OPEN_WRITE_DATA";
+			case LCPMessage.OPEN_APPEND_DATA: return "OPEN_APPEND_DATA";
+			case LCPMessage.BOOT: return "BOOT";
+			case LCPMessage.SET_BRICK_NAME: return "SET_BRICK_NAME";
+			case LCPMessage.GET_DEVICE_INFO: return "GET_DEVICE_INFO";
+			case LCPMessage.DELETE_USER_FLASH: return "DELETE_USER_FLASH";
+			case LCPMessage.POLL_LENGTH: return "POLL_LENGTH";
+			case LCPMessage.POLL: return "POLL";
+			case LCPMessage.NXJ_FIND_FIRST: return "NXJ_FIND_FIRST";
+			case LCPMessage.NXJ_FIND_NEXT: return "NXJ_FIND_NEXT";
+			case LCPMessage.NXJ_PACKET_MODE: return "NXJ_PACKET_MODE";
+			}
+		} else {
+			switch (o) {
+			case LCPMessage.START_PROGRAM: return "START_PROGRAM";
+			case LCPMessage.STOP_PROGRAM: return "STOP_PROGRAM";
+			case LCPMessage.PLAY_SOUND_FILE: return "PLAY_SOUND_FILE";
+			case LCPMessage.PLAY_TONE: return "PLAY_TONE";
+			case LCPMessage.SET_OUTPUT_STATE: return "SET_OUTPUT_STATE";
+			case LCPMessage.SET_INPUT_MODE: return "SET_INPUT_MODE";
+			case LCPMessage.GET_OUTPUT_STATE: return "GET_OUTPUT_STATE";
+			case LCPMessage.GET_INPUT_VALUES: return "GET_INPUT_VALUES";
+			case LCPMessage.RESET_SCALED_INPUT_VALUE: return "RESET_SCALED_INPUT_VALUE";
+			case LCPMessage.MESSAGE_WRITE: return "MESSAGE_WRITE";
+			case LCPMessage.RESET_MOTOR_POSITION: return "RESET_MOTOR_POSITION";
+			case LCPMessage.GET_BATTERY_LEVEL: return "GET_BATTERY_LEVEL";
+			case LCPMessage.STOP_SOUND_PLAYBACK: return "STOP_SOUND_PLAYBACK";
+			case LCPMessage.KEEP_ALIVE: return "KEEP_ALIVE";
+			case LCPMessage.LS_GET_STATUS: return "LS_GET_STATUS";
+			case LCPMessage.LS_WRITE: return "LS_WRITE";
+			case LCPMessage.LS_READ: return "LS_READ";
+			case LCPMessage.GET_CURRENT_PROGRAM_NAME: return "GET_CURRENT_PROGRAM_NAME";
+			case LCPMessage.MESSAGE_READ: return "MESSAGE_READ";
+			case LCPMessage.SAY_TEXT: return "SAY_TEXT";
+			case LCPMessage.VIBRATE_PHONE: return "VIBRATE_PHONE";
+			case LCPMessage.ACTION_BUTTON: return "ACTION_BUTTON";
+			}
+			if (o == LCPMessage.NXJ_DISCONNECT)
+				return "NXJ_DISCONNECT";
+			if (o == LCPMessage.NXJ_DEFRAG)
+				return "NXJ_DEFRAG";
+		}
+		//replies carry the opcode of the command they answer, which may be either direct or system
+		return String.format("0x%02X", opcode);
+	}
+	
+	static String typeName(int type) {
+		switch ((byte)type) {
+		case LCPMessage.DIRECT_COMMAND_REPLY: return "direct";
+		case LCPMessage.DIRECT_COMMAND_NOREPLY: return "direct (no reply)";
+		case LCPMessage.SYSTEM_COMMAND_REPLY: return "system";
+		case LCPMessage.SYSTEM_COMMAND_NOREPLY: return "system (no reply)";
+		case LCPMessage.REPLY_COMMAND: return "reply";
+		}
+		return String.format("type 0x%02X", type);
+	}
+	
+	static void analyze(File file, ForkJoinPool pool) throws Exception {
+		final long startTime = System.nanoTime();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final Input input = new Input(raf.getChannel());
+			if (input.length < 8 || input.regions[0].getInt(0) != FlightRecorder.MAGIC || input.regions[0].getInt(4) != FlightRecorder.VERSION) {
+				System.out.println(file + ": not a traffic capture");
+				return;
+			}
+			//split the file into chunks with roughly the same amount of records
+			long[] bounds = new long[64];
+			int boundCount = 1, records = 0;
+			long position = 8, next;
+			bounds[0] = position;
+			while ((next = input.next(position)) >= 0) {
+				position = next;
+				if ((++records & (CHUNK_RECORDS - 1)) == 0) {
+					if (boundCount == bounds.length)
+						bounds = Arrays.copyOf(bounds, boundCount << 1);
+					bounds[boundCount++] = position;
+				}
+			}
+			if (bounds[boundCount - 1] != position) {
+				if (boundCount == bounds.length)
+					bounds = Arrays.copyOf(bounds, boundCount + 1);
+				bounds[boundCount++] = position;
+			}
+			if (boundCount < 2) {
+				System.out.println(file + ": no frames");
+				return;
+			}
+			final Partial p = pool.invoke(new Task(input, bounds, 0, boundCount - 1));
+			report(file, p, input.length - position, System.nanoTime() - startTime);
+		} finally {
+			if (raf != null)
+				raf.close();
+		}
+	}
+	
+	static void report(File file, Partial p, long trailingBytes, long elapsed) {
+		final double seconds = (double)(p.lastTime - p.firstTime) / 1000000000.0;
+		System.out.println("== " + file + " (analyzed in " + (elapsed / 1000000L) + " ms)");
+		if (trailingBytes > 0)
+			System.out.println("warning: " + trailingBytes + " trailing bytes (truncated record) ignored");
+		System.out.println(String.format("frames: %d (%d out, %d in) in %.3f s, %.1f frames/s", p.frames, p.outFrames, p.inFrames, seconds, (seconds > 0) ? ((double)p.frames / seconds) : 0.0));
+		System.out.println("command mix:");
+		for (int i = 0; i < p.commandMix.length; i++) {
+			if (p.commandMix[i] != 0) {
+				final int type = (i >>> 8) & 0xFF, opcode = i & 0xFF;
+				System.out.println(String.format("  %-4s %-18s %-26s %10d (%.1f%%)", ((i >>> 16) == FlightRecorder.INBOUND) ? "in" : "out",
+					typeName(type), opcodeName(type, opcode), p.commandMix[i], (100.0 * (double)p.commandMix[i]) / (double)p.frames));
+			}
+		}
+		System.out.println("outbound inter-frame gaps: " + p.gaps.describe("us"));
+		System.out.println("reply round trip: " + p.rtt.describe("us"));
+		int unanswered = 0;
+		for (int i = 0; i < 256; i++)
+			unanswered += p.tailRequests.get(i).size();
+		System.out.println("unanswered requests: " + unanswered + ", unmatched replies: " + p.headReplies.size());
+		System.out.println(String.format("coalescing: %d of %d outbound frames (%.1f%%) were superseded by a frame to the same port/mailbox within %d ms",
+			p.coalescable, p.outFrames, (p.outFrames > 0) ? ((100.0 * (double)p.coalescable) / (double)p.outFrames) : 0.0, window / 1000000L));
+	}
+	
+	public static void main(String[] args) throws Exception {
+		window = 20L * 1000000L;
+		final ForkJoinPool pool = new ForkJoinPool();
+		int files = 0;
+		for (int i = 0; i < args.length; i++) {
+			if ("-w".equals(args[i]) && (i + 1) < args.length) {
+				window = Long.parseLong(args[++i]) * 1000000L;
+				continue;
+			}
+			analyze(new File(args[i]), pool);
+			files++;
+		}
+		pool.shutdown();
+		if (files == 0) {
+			System.err.println("usage: TrafficAnalyzer [-w windowMs] file...");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package android.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Plain JVM replacement for android.content.Context, with just the file
+ * methods used by the util package. Files are stored in the directory given
+ * to the constructor.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public class Context {
+	private final File filesDir;
+	
+	public Context(File filesDir) {
+		this.filesDir = filesDir;
+		filesDir.mkdirs();
+	}
+	
+	public File getFilesDir() {
+		return filesDir;
+	}
+	
+	public File getFileStreamPath(String name) {
+		return new File(filesDir, name);
+	}
+	
+	public FileInputStream openFileInput(String name) throws FileNotFoundException {
+		return new FileInputStream(getFileStreamPath(name));
+	}
+	
+	public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+		return new FileOutputStream(getFileStreamPath(name));
+	}
+	
+	public boolean deleteFile(String name) {
+		return getFileStreamPath(name).delete();
+	}
+}
@@ -0,0 +1,54 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package android.graphics;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Plain JVM replacement for android.graphics.Bitmap, backed by a
+ * premultiplied ARGB java.awt.image.BufferedImage, like Android's ARGB_8888.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public final class Bitmap {
+	public static enum Config { ARGB_8888 }
+	
+	BufferedImage image;
+	
+	private Bitmap(int width, int height) {
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+	}
+	
+	public static Bitmap createBitmap(int width, int height, Config config) {
+		return new Bitmap(width, height);
+	}
+	
+	public int getWidth() {
+		return image.getWidth();
+	}
+	
+	public int getHeight() {
+		return image.getHeight();
+	}
+	
+	public void recycle() {
+		image = null;
+	}
+}
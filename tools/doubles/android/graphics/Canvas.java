@@ -0,0 +1,111 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package android.graphics;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+
+/**
+ * Plain JVM replacement for android.graphics.Canvas, drawing into a Bitmap
+ * through java.awt.Graphics2D, with just the methods used by the ui package.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public class Canvas {
+	public static enum EdgeType { BW, AA }
+	
+	private Graphics2D g;
+	private final ArrayList<AffineTransform> savedTransforms = new ArrayList<AffineTransform>();
+	private final ArrayList<Shape> savedClips = new ArrayList<Shape>();
+	private final Rectangle2D.Float tmpRect = new Rectangle2D.Float();
+	private final Line2D.Float tmpLine = new Line2D.Float();
+	
+	public Canvas() {
+	}
+	
+	public Canvas(Bitmap bitmap) {
+		setBitmap(bitmap);
+	}
+	
+	public void setBitmap(Bitmap bitmap) {
+		if (g != null)
+			g.dispose();
+		g = ((bitmap == null) ? null : bitmap.image.createGraphics());
+		savedTransforms.clear();
+		savedClips.clear();
+	}
+	
+	public int save() {
+		savedTransforms.add(g.getTransform());
+		savedClips.add(g.getClip());
+		return savedTransforms.size();
+	}
+	
+	public void restore() {
+		final int i = savedTransforms.size() - 1;
+		g.setTransform(savedTransforms.remove(i));
+		g.setClip(savedClips.remove(i));
+	}
+	
+	public void translate(float dx, float dy) {
+		g.translate(dx, dy);
+	}
+	
+	public boolean clipRect(int left, int top, int right, int bottom) {
+		g.clipRect(left, top, right - left, bottom - top);
+		return !g.getClipBounds().isEmpty();
+	}
+	
+	public boolean quickReject(float left, float top, float right, float bottom, EdgeType type) {
+		final Rectangle clip = g.getClipBounds();
+		return (clip != null && !clip.intersects(left, top, right - left, bottom - top));
+	}
+	
+	public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+		g.drawImage(bitmap.image, (int)left, (int)top, null);
+	}
+	
+	public void drawRect(Rect rect, Paint paint) {
+		drawRect(rect.left, rect.top, rect.right, rect.bottom, paint);
+	}
+	
+	public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+		tmpRect.setRect(left, top, right - left, bottom - top);
+		g.setPaint(paint.getAwtPaint());
+		if (paint.getStyle() == Paint.Style.FILL) {
+			g.fill(tmpRect);
+		} else {
+			g.setStroke(paint.getAwtStroke());
+			g.draw(tmpRect);
+		}
+	}
+	
+	public void drawLine(float startX, float startY, float stopX, float stopY, Paint paint) {
+		tmpLine.setLine(startX, startY, stopX, stopY);
+		g.setPaint(paint.getAwtPaint());
+		g.setStroke(paint.getAwtStroke());
+		g.draw(tmpLine);
+	}
+}
@@ -0,0 +1,35 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package android.graphics;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+
+/**
+ * Plain JVM replacement for android.graphics.LinearGradient, backed by a
+ * java.awt.GradientPaint.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public class LinearGradient extends Shader {
+	public LinearGradient(float x0, float y0, float x1, float y1, int color0, int color1, Shader.TileMode tile) {
+		super(new GradientPaint(x0, y0, new Color(color0, true), x1, y1, new Color(color1, true), false));
+	}
+}
@@ -0,0 +1,82 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package android.graphics;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+
+/**
+ * Plain JVM replacement for android.graphics.Paint, with just the style,
+ * the color, the shader and the stroke width.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public class Paint {
+	public static enum Style { FILL, STROKE }
+	
+	private Style style;
+	private int color;
+	private Color awtColor;
+	private Shader shader;
+	private BasicStroke stroke;
+	
+	public Paint() {
+		style = Style.FILL;
+		color = 0xff000000;
+		awtColor = Color.BLACK;
+		stroke = new BasicStroke(0);
+	}
+	
+	public Style getStyle() {
+		return style;
+	}
+	
+	public void setStyle(Style style) {
+		this.style = style;
+	}
+	
+	public int getColor() {
+		return color;
+	}
+	
+	public void setColor(int color) {
+		if (this.color != color) {
+			this.color = color;
+			awtColor = new Color(color, true);
+		}
+	}
+	
+	public Shader setShader(Shader shader) {
+		this.shader = shader;
+		return shader;
+	}
+	
+	public void setStrokeWidth(float width) {
+		stroke = new BasicStroke(width);
+	}
+	
+	java.awt.Paint getAwtPaint() {
+		return ((shader != null) ? shader.paint : awtColor);
+	}
+	
+	BasicStroke getAwtStroke() {
+		return stroke;
+	}
+}
@@ -0,0 +1,35 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package android.os;
+
+/**
+ * Plain JVM replacement for android.os.SystemClock, with just the method
+ * used by ThreadPerTimer.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public final class SystemClock {
+	private SystemClock() {
+	}
+	
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000L;
+	}
+}
@@ -0,0 +1,211 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package android.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+
+/**
+ * Plain JVM replacement for android.view.View, with just what the list
+ * package and BgDirControl use. There is no window: layout() sets the size
+ * and calls onSizeChanged() and onAttachedToWindow(), and invalidate() does
+ * nothing.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public class View {
+	public static final int VISIBLE = 0;
+	
+	private final Context context;
+	private int width, height;
+	private boolean attached, pressed, enabled;
+	
+	public View(Context context) {
+		this.context = context;
+		this.enabled = true;
+	}
+	
+	public View(Context context, AttributeSet attrs) {
+		this(context);
+	}
+	
+	public View(Context context, AttributeSet attrs, int defStyle) {
+		this(context);
+	}
+	
+	public Context getContext() {
+		return context;
+	}
+	
+	public void invalidate() {
+	}
+	
+	public void invalidate(int l, int t, int r, int b) {
+	}
+	
+	public ViewParent getParent() {
+		return null;
+	}
+	
+	public int getVisibility() {
+		return VISIBLE;
+	}
+	
+	public void setClickable(boolean clickable) {
+	}
+	
+	public void setFocusable(boolean focusable) {
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	public boolean isPressed() {
+		return pressed;
+	}
+	
+	public void setPressed(boolean pressed) {
+		if (this.pressed != pressed) {
+			this.pressed = pressed;
+			drawableStateChanged();
+		}
+	}
+	
+	protected void drawableStateChanged() {
+	}
+	
+	public void setBackground(Drawable background) {
+	}
+	
+	@Deprecated
+	public void setBackgroundDrawable(Drawable background) {
+	}
+	
+	public void setBackgroundResource(int resid) {
+	}
+	
+	public void setBackgroundColor(int color) {
+	}
+	
+	public Drawable getBackground() {
+		return null;
+	}
+	
+	public boolean isOpaque() {
+		return false;
+	}
+	
+	public int getPaddingLeft() {
+		return 0;
+	}
+	
+	public int getPaddingTop() {
+		return 0;
+	}
+	
+	public int getPaddingRight() {
+		return 0;
+	}
+	
+	public int getPaddingBottom() {
+		return 0;
+	}
+	
+	public void setPadding(int left, int top, int right, int bottom) {
+	}
+	
+	protected int getSuggestedMinimumWidth() {
+		return 0;
+	}
+	
+	public int getMinimumWidth() {
+		return 0;
+	}
+	
+	protected int getSuggestedMinimumHeight() {
+		return 0;
+	}
+	
+	public int getMinimumHeight() {
+		return 0;
+	}
+	
+	public static int resolveSize(int size, int measureSpec) {
+		return size;
+	}
+	
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+	}
+	
+	protected final void setMeasuredDimension(int measuredWidth, int measuredHeight) {
+	}
+	
+	public void layout(int l, int t, int r, int b) {
+		final int w = r - l, h = b - t;
+		if (w != width || h != height) {
+			final int oldw = width, oldh = height;
+			width = w;
+			height = h;
+			onSizeChanged(w, h, oldw, oldh);
+		}
+		if (!attached) {
+			attached = true;
+			onAttachedToWindow();
+		}
+	}
+	
+	public void detach() {
+		if (attached) {
+			attached = false;
+			onDetachedFromWindow();
+		}
+	}
+	
+	public final int getWidth() {
+		return width;
+	}
+	
+	public final int getHeight() {
+		return height;
+	}
+	
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+	}
+	
+	protected void onAttachedToWindow() {
+	}
+	
+	protected void onDetachedFromWindow() {
+	}
+	
+	public boolean onTouchEvent(MotionEvent event) {
+		return false;
+	}
+	
+	protected void onDraw(Canvas canvas) {
+	}
+}
@@ -0,0 +1,57 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.activity;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Plain JVM replacement for the real MainHandler, used by the tools that
+ * exercise the util package outside Android. The "main thread" is a single
+ * daemon thread that runs the posted Runnables in order.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public final class MainHandler {
+	private static volatile Thread mainThread;
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "Main Thread");
+			thread.setDaemon(true);
+			mainThread = thread;
+			return thread;
+		}
+	});
+	
+	public static boolean isOnMainThread() {
+		return (mainThread == Thread.currentThread());
+	}
+	
+	public static Thread getMainThread() {
+		return mainThread;
+	}
+	
+	public static boolean post(Runnable runnable) {
+		executor.execute(runnable);
+		return true;
+	}
+}
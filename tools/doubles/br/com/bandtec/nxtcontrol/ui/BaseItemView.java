@@ -0,0 +1,51 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.ui;
+
+import android.content.Context;
+import android.view.View;
+
+/**
+ * Plain JVM replacement for the real BaseItemView, which just keeps the
+ * text and the state of the row.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public final class BaseItemView extends View {
+	private String text;
+	private int state;
+	
+	public BaseItemView(Context context) {
+		super(context);
+	}
+	
+	public void setItemState(String text, int state) {
+		this.text = text;
+		this.state = state;
+	}
+	
+	public String getText() {
+		return text;
+	}
+	
+	public int getState() {
+		return state;
+	}
+}
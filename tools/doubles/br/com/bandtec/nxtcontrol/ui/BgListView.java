@@ -0,0 +1,164 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.ui;
+
+import android.content.Context;
+import android.database.DataSetObserver;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ListAdapter;
+
+/**
+ * Plain JVM replacement for the real BgListView. It simulates a window of
+ * visible rows and counts the getView() calls: a data set change requests a
+ * layout, which binds all the visible rows again when performLayout() is
+ * called (several changes before that cause a single layout, like they do in
+ * ListView), rebindItems() binds only the visible rows within the range right
+ * away, and centerItem() binds only the rows that scroll into view.
+ * 
+ * rebindItems() runs the same ListRebinder code as the real BgListView, and
+ * invalidateViews() requests a layout, like it does in AbsListView.
+ * When fullRebind is true, rebindItems() behaves like a data set change,
+ * which is how every notification used to be handled.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public final class BgListView extends ViewGroup implements ListRebinder.Host {
+	private final View[] rows;
+	private ListAdapter adapter;
+	private int first, visible;
+	private long getViewCalls, notifications;
+	private boolean fullRebind, layoutRequested;
+	private final DataSetObserver observer = new DataSetObserver() {
+		@Override
+		public void onChanged() {
+			notifications++;
+			layoutRequested = true;
+		}
+	};
+	
+	public BgListView(Context context, int visibleRows) {
+		super(context);
+		rows = new View[visibleRows];
+	}
+	
+	public long getViewCalls() {
+		return getViewCalls;
+	}
+	
+	/**
+	 * @return The amount of data set changes plus the amount of rebindItems() calls
+	 */
+	public long getNotifications() {
+		return notifications;
+	}
+	
+	public void setFullRebind(boolean fullRebind) {
+		this.fullRebind = fullRebind;
+	}
+	
+	public int getFirstVisiblePosition() {
+		return first;
+	}
+	
+	@Override
+	public int getChildCount() {
+		return visible;
+	}
+	
+	@Override
+	public View getChildAt(int index) {
+		return rows[index];
+	}
+	
+	public ListAdapter getAdapter() {
+		return adapter;
+	}
+	
+	public void setAdapter(ListAdapter adapter) {
+		if (this.adapter != null)
+			this.adapter.unregisterDataSetObserver(observer);
+		this.adapter = adapter;
+		if (adapter != null) {
+			adapter.registerDataSetObserver(observer);
+			layout();
+		}
+	}
+	
+	private void bind(int position) {
+		getViewCalls++;
+		final int i = position - first;
+		rows[i] = adapter.getView(position, rows[i], null);
+	}
+	
+	public void performLayout() {
+		if (layoutRequested)
+			layout();
+	}
+	
+	private void layout() {
+		layoutRequested = false;
+		final int count = adapter.getCount();
+		if (first > (count - rows.length))
+			first = count - rows.length;
+		if (first < 0)
+			first = 0;
+		visible = ((count - first) < rows.length) ? (count - first) : rows.length;
+		for (int i = 0; i < visible; i++)
+			bind(first + i);
+	}
+	
+	public void rebindItems(int position, int count) {
+		notifications++;
+		if (fullRebind) {
+			layoutRequested = true;
+			return;
+		}
+		getViewCalls += ListRebinder.rebindItems(this, position, count);
+	}
+	
+	@Override
+	public void invalidateViews() {
+		layoutRequested = true;
+	}
+	
+	public void centerItem(int position, boolean smoothly) {
+		performLayout();
+		final int oldFirst = first, oldVisible = visible;
+		final View[] old = rows.clone();
+		first = position - (rows.length >> 1);
+		final int count = adapter.getCount();
+		if (first > (count - rows.length))
+			first = count - rows.length;
+		if (first < 0)
+			first = 0;
+		visible = ((count - first) < rows.length) ? (count - first) : rows.length;
+		//rows that were already visible are just moved
+		for (int i = 0; i < visible; i++) {
+			final int p = first + i;
+			if (p >= oldFirst && p < (oldFirst + oldVisible))
+				rows[i] = old[p - oldFirst];
+			else {
+				rows[i] = null;
+				bind(p);
+			}
+		}
+	}
+}
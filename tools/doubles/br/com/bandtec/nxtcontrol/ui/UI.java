@@ -0,0 +1,115 @@
+//
+//    NXT Control
+//    Copyright (c) 2013 Carlos Rafael Gimenes das Neves
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program. If not, see {http://www.gnu.org/licenses/}.
+//
+//    https://github.com/BandTec/NXTControl
+//
+package br.com.bandtec.nxtcontrol.ui;
+
+import java.util.HashMap;
+
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Shader;
+import android.view.View;
+
+/**
+ * Plain JVM replacement for the real UI class, with the item states and the
+ * parts of drawBg() used by BgDirControl (the pressed, selected and focused
+ * backgrounds, drawn with the same calls and colors as the real one). Sizes
+ * are those of a 2.0 density screen.
+ * 
+ * This file must never be placed in the application's source path.
+ */
+public final class UI {
+	public static final int STATE_PRESSED = 1;
+	public static final int STATE_FOCUSED = 2;
+	public static final int STATE_CURRENT = 4;
+	public static final int STATE_SELECTED = 8;
+	public static final int STATE_MULTISELECTED = 16;
+	
+	public static final int color_selected_grad_lt = 0xffd1e8ff;
+	public static final int color_selected_grad_dk = 0xff5da2e3;
+	public static final int color_selected_border = 0xff518ec2;
+	public static final int color_selected_pressed = 0xffcfe1ff;
+	public static final int color_selected_pressed_border = 0xff4981b0;
+	public static final int color_current_grad_lt = 0xfff7eb6a;
+	public static final int color_current_grad_dk = 0xfffeb645;
+	public static final int color_current_border = 0xffad9040;
+	public static final int color_current_pressed = 0xffffeed4;
+	public static final int color_current_pressed_border = 0xff94671e;
+	
+	public static final int _1dp = 2;
+	public static final int defaultControlSize = 96;
+	private static final float _1dpInset = 1.0f;
+	
+	public static final Rect rect = new Rect();
+	private static final Paint fillPaint = new Paint(), strokePaint = new Paint();
+	private static final HashMap<Integer, LinearGradient> gradients = new HashMap<Integer, LinearGradient>();
+	
+	static {
+		strokePaint.setStyle(Paint.Style.STROKE);
+		strokePaint.setStrokeWidth(_1dp);
+	}
+	
+	private UI() {
+	}
+	
+	private static LinearGradient getGradient(boolean current, int size) {
+		final Integer key = Integer.valueOf((size << 1) | (current ? 1 : 0));
+		LinearGradient g = gradients.get(key);
+		if (g == null) {
+			g = (current ? new LinearGradient(0, 0, 0, size, color_current_grad_lt, color_current_grad_dk, Shader.TileMode.CLAMP) :
+				new LinearGradient(0, 0, 0, size, color_selected_grad_lt, color_selected_grad_dk, Shader.TileMode.CLAMP));
+			gradients.put(key, g);
+		}
+		return g;
+	}
+	
+	public static void prepareGradients(int size) {
+		getGradient(false, size);
+		getGradient(true, size);
+	}
+	
+	public static void drawBg(Canvas canvas, int state, Rect rect, boolean sideBorders) {
+		if ((state & STATE_PRESSED) != 0) {
+			fillPaint.setColor(((state & (STATE_FOCUSED | STATE_CURRENT)) != 0) ? color_current_pressed : color_selected_pressed);
+			canvas.drawRect(rect, fillPaint);
+			strokePaint.setColor(((state & (STATE_FOCUSED | STATE_CURRENT)) != 0) ? color_current_pressed_border : color_selected_pressed_border);
+			canvas.drawRect((float)rect.left + _1dpInset, (float)rect.top + _1dpInset, (float)rect.right - _1dpInset, (float)rect.bottom - _1dpInset, strokePaint);
+		} else if ((state & (STATE_SELECTED | STATE_FOCUSED)) != 0) {
+			//rect.top MUST be 0 for the gradient to work properly
+			fillPaint.setShader(getGradient((state & (STATE_FOCUSED | STATE_CURRENT)) != 0, rect.bottom));
+			canvas.drawRect(rect, fillPaint);
+			fillPaint.setShader(null);
+			strokePaint.setColor(0xffffffff);
+			final float t = (float)(rect.top + _1dp) + _1dpInset;
+			canvas.drawLine((float)(rect.left + _1dp), t, (float)(rect.right - _1dp), t, strokePaint);
+			strokePaint.setColor(((state & (STATE_FOCUSED | STATE_CURRENT)) != 0) ? color_current_border : color_selected_border);
+			canvas.drawRect((float)rect.left + _1dpInset, (float)rect.top + _1dpInset, (float)rect.right - _1dpInset, (float)rect.bottom - _1dpInset, strokePaint);
+		}
+	}
+	
+	public static int handleStateChanges(int state, boolean pressed, boolean focused, View view) {
+		final int newState = (pressed ? (state | STATE_PRESSED) : (state & ~STATE_PRESSED));
+		final int r = (focused ? (newState | STATE_FOCUSED) : (newState & ~STATE_FOCUSED));
+		if (r != state)
+			view.invalidate();
+		return r;
+	}
+}